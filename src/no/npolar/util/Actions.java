@@ -9,7 +9,6 @@ import java.util.ArrayList;
 import java.util.Iterator;
 import org.opencms.configuration.CmsConfigurationManager;
 import org.opencms.db.CmsPublishList;
-import org.opencms.db.CmsDefaultUsers;
 import org.opencms.main.CmsEvent;
 import org.opencms.main.I_CmsEventListener;
 //import org.opencms.main.CmsEventManager;
@@ -38,6 +37,7 @@ import org.opencms.db.CmsResourceState;
 import org.opencms.relations.CmsRelation;
 import org.opencms.relations.CmsRelationFilter;
 import org.opencms.relations.CmsRelationType;
+import org.opencms.util.CmsUUID;
 /**
  * 
  * @author Paul-Inge Flakstad <flakstad at npolar.no>
@@ -45,8 +45,34 @@ import org.opencms.relations.CmsRelationType;
 public class Actions implements I_CmsModuleAction, I_CmsEventListener {
     protected static final String DEFAULT_SITE = "/";
     protected static final String PROJECT_OFFLINE_NAME = "Offline";
+    /** Module parameter name: Set to "true" to resample large images in parallel when creating thumbnails. */
+    public static final String MODULE_PARAM_PARALLEL_RESAMPLING = "thumbnails.parallelresampling";
+    
+    /** Module parameter name: Set to "false" to disable byte-optimization of created thumbnails. */
+    public static final String MODULE_PARAM_OPTIMIZE_ENCODING = "thumbnails.optimize";
+    
+    /** Flag indicating whether or not large images are resampled in parallel when creating thumbnails. */
+    private static boolean parallelResampling = false;
+    /** Flag indicating whether or not created thumbnails are byte-optimized. */
+    private static boolean optimizeEncoding = true;
     
     public void initialize(CmsObject adminCms, CmsConfigurationManager configurationManager, CmsModule module) {
+        ScaledImageStore.configure(module);
+        VideoThumbnailResolver.configure(module);
+        ThumbnailRefresher.configure(module);
+        AssetBundler.configure(module);
+        ThumbnailRelationIndex.buildAsync();
+        parallelResampling = Boolean.valueOf(module.getParameter(MODULE_PARAM_PARALLEL_RESAMPLING, "false").trim()).booleanValue();
+        optimizeEncoding = Boolean.valueOf(module.getParameter(MODULE_PARAM_OPTIMIZE_ENCODING, "true").trim()).booleanValue();
+        try {
+            adminCms.readPropertyDefinition(ImagePlaceholder.PROPERTY_PLACEHOLDER);
+        } catch (CmsException cmse) {
+            try {
+                adminCms.createPropertyDefinition(ImagePlaceholder.PROPERTY_PLACEHOLDER);
+            } catch (CmsException e) {
+                // Placeholders will not be stored, but that's not critical
+            }
+        }
         OpenCms.getEventManager().addCmsEventListener(this);
     }
     
@@ -63,10 +89,18 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
     }
     
     public void shutDown(CmsModule module) {
-        // Do nothing
+        ImagePlaceholder.shutDown();
+        ImageSizeProbe.shutDown();
+        VideoThumbnailResolver.shutDown();
+        ImageInfo.shutDown();
+        ThumbnailRefresher.shutDown();
+        EventCmsObjectPool.clear();
+        ThumbnailRelationIndex.clear();
     }
     
-    public void cmsEvent(CmsEvent event) {        
+    public void cmsEvent(CmsEvent event) {
+        updateCaches(event);
+        
         if (event.getType() == I_CmsEventListener.EVENT_RESOURCE_CREATED /*||
             e.getType() == I_CmsEventListener.EVENT_RESOURCE_DELETED ||
             e.getType() == I_CmsEventListener.EVENT_RESOURCE_COPIED ||
@@ -77,30 +111,21 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
             CmsResource eventResource = (CmsResource)event.getData().get("resource");
             if (eventResource != null) {
                 if (eventResource.getTypeId() == CmsResourceTypeImage.getStaticTypeId()) {
-                    CmsDefaultUsers defaultUsers = new CmsDefaultUsers();
                     CmsObject cmso = null;
                     List subFolders = null;
-                    CmsImageProcessor imgPro = new CmsImageProcessor();
+                    CmsImageProcessor imgPro = createImageProcessor();
                     boolean isThumbnail = false;
                     CmsResource imageFolderResource = null;
                     CmsResource thumb = null;
                     //CmsUser user = null;
                     try {
-                        cmso = OpenCms.initCmsObject(defaultUsers.getUserExport());
-                        cmso.loginUser("Imagehandler", "asdfølkj");
-                        cmso.getRequestContext().setCurrentProject(cmso.readProject(PROJECT_OFFLINE_NAME));
-                        cmso.getRequestContext().setSiteRoot(DEFAULT_SITE);
+                        cmso = initEventCmsObject();
                     } catch (CmsException cmse) {
                         throw new  NullPointerException("Error initializing CmsObject / user / project upon capturing event 'image resource created': " + cmse.getMessage());
                     }
 
                     try {
-                        List eventResourceRelationSources = cmso.getRelationsForResource(cmso.getSitePath(eventResource), CmsRelationFilter.SOURCES);
-                        Iterator relationsItr = eventResourceRelationSources.iterator();
-                        while (relationsItr.hasNext()) {
-                            if (((CmsRelation)relationsItr.next()).getType().equals(CmsRelationType.valueOf(CmsImageProcessor.RELATION_TYPE_SCALED_IMAGE_VERSION_NAME)))
-                                isThumbnail = true;
-                        }
+                        isThumbnail = resourceIsThumbnail(cmso, eventResource);
                         if (isThumbnail) 
                             return;
                         imageFolderResource = cmso.readResource(CmsResource.getParentFolder(cmso.getSitePath(eventResource)));
@@ -125,6 +150,8 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
                                         }
                                         imgPro.generateAllThumbnails(cmso, eventResource);
                                     } // if (image folder has sub-folder(s))
+                                    // Create the (lazy-loading) placeholder in the background, now that the thumbnails are committed
+                                    ImagePlaceholder.schedule(cmso, eventResource);
                                 } catch (Exception e) {
                                     throw new NullPointerException("Error when generating thumbnail image upon capturing event 'image resource created' " + 
                                             "(thumb=" + thumb + "): " + e.getMessage());
@@ -143,45 +170,131 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
             } // if (r != null)
         } // if (event == resource created)
         
-        /*
-         // FUNKE IKKJE, INGENTING SKJER:
-         else if (event.getType() == I_CmsEventListener.EVENT_RESOURCES_MODIFIED) {
-            List eventResources = (List)event.getData().get("resources");
-            if (eventResources != null) {
-                Iterator resourcesItr = eventResources.iterator();
-                while (resourcesItr.hasNext()) {
-                    CmsResource eventResource = (CmsResource)resourcesItr.next();
-                    if (eventResource != null) {
-                        deleteThumbnailsForImage(eventResource);                        
-                    } else {
-                        throw new NullPointerException("Modified resource was null.");
+        else if (event.getType() == I_CmsEventListener.EVENT_RESOURCE_MODIFIED
+                || event.getType() == I_CmsEventListener.EVENT_RESOURCES_MODIFIED) {
+            // Debounced: a burst of saves results in a single refresh per image
+            Iterator<CmsResource> iModified = getEventResources(event).iterator();
+            while (iModified.hasNext()) {
+                ThumbnailRefresher.schedule(iModified.next());
+            }
+        }
+    }
+    
+    /**
+     * Gets a new CmsObject for use when handling events: logged in as the 
+     * image handler user, in the offline project and the root site.
+     * <p>
+     * The returned CmsObject is a copy of a pooled, pre-initialized context, 
+     * see {@link EventCmsObjectPool}.
+     * 
+     * @return A new CmsObject for use when handling events.
+     * @throws CmsException If initializing the CmsObject fails.
+     */
+    protected static CmsObject initEventCmsObject() throws CmsException {
+        return EventCmsObjectPool.get();
+    }
+    
+    /**
+     * Creates a new image processor, configured according to the module 
+     * parameters.
+     * 
+     * @return A new image processor.
+     */
+    protected static CmsImageProcessor createImageProcessor() {
+        CmsImageProcessor imgPro = new CmsImageProcessor();
+        imgPro.setParallelResampling(parallelResampling);
+        imgPro.setOptimizeEncoding(optimizeEncoding);
+        return imgPro;
+    }
+    
+    /**
+     * Updates (invalidates) this module's caches, as necessary for the given 
+     * event.
+     * 
+     * @param event The event.
+     */
+    protected void updateCaches(CmsEvent event) {
+        switch (event.getType()) {
+            case I_CmsEventListener.EVENT_PROPERTY_MODIFIED:
+            case I_CmsEventListener.EVENT_RESOURCE_AND_PROPERTIES_MODIFIED:
+            case I_CmsEventListener.EVENT_RESOURCES_AND_PROPERTIES_MODIFIED:
+                Iterator<CmsResource> iProps = getEventResources(event).iterator();
+                while (iProps.hasNext()) {
+                    CmsResource r = iProps.next();
+                    ImageSize.invalidate(r);
+                    FingerprintCache.invalidate(r.getRootPath());
+                    if (r.isFolder()) {
+                        HeaderElementCache.invalidate(r.getRootPath());
                     }
                 }
-            }
-        }*/
-        
-        /* // FUNKE IKKJE, FEIL (KAN IKKJE UNDELETE F.EX.:
-         else if (event.getType() == I_CmsEventListener.EVENT_RESOURCE_MODIFIED) {
-            CmsResource eventResource = (CmsResource)event.getData().get("resource");
-            if (eventResource != null) {
-                deleteThumbnailsForImage(eventResource);
-            } else {
-                throw new NullPointerException("Modified resource was null.");
+                break;
+            case I_CmsEventListener.EVENT_RESOURCE_CREATED:
+            case I_CmsEventListener.EVENT_RESOURCE_DELETED:
+            case I_CmsEventListener.EVENT_RESOURCE_MOVED:
+            case I_CmsEventListener.EVENT_RESOURCE_COPIED:
+            case I_CmsEventListener.EVENT_RESOURCE_MODIFIED:
+            case I_CmsEventListener.EVENT_RESOURCES_MODIFIED:
+                Iterator<CmsResource> iRes = getEventResources(event).iterator();
+                while (iRes.hasNext()) {
+                    CmsResource r = iRes.next();
+                    ImageSize.invalidate(r);
+                    ImageFolderIndex.invalidate(CmsResource.getParentFolder(r.getRootPath()));
+                    FingerprintCache.invalidate(r.getRootPath());
+                    if (r.isFolder()) {
+                        HeaderElementCache.invalidate(r.getRootPath());
+                    }
+                    if (event.getType() == I_CmsEventListener.EVENT_RESOURCE_DELETED) {
+                        ThumbnailRelationIndex.remove(r.getStructureId());
+                    }
+                }
+                break;
+            case I_CmsEventListener.EVENT_PUBLISH_PROJECT:
+            case I_CmsEventListener.EVENT_CLEAR_CACHES:
+            case I_CmsEventListener.EVENT_CLEAR_ONLINE_CACHES:
+            case I_CmsEventListener.EVENT_CLEAR_OFFLINE_CACHES:
+                ImageSize.clearCache();
+                ImageFolderIndex.clearCache();
+                FingerprintCache.clear();
+                HeaderElementCache.clear();
+                LabelService.clear();
+                EmailObfuscator.clear();
+                break;
+            default:
+                break;
+        }
+    }
+    
+    /**
+     * Gets the resource(s) the given event concerns.
+     * 
+     * @param event The event.
+     * @return The resource(s) the given event concerns, or an empty list if none.
+     */
+    protected static List<CmsResource> getEventResources(CmsEvent event) {
+        List<CmsResource> resources = new ArrayList<CmsResource>();
+        Object single = event.getData().get(I_CmsEventListener.KEY_RESOURCE);
+        if (single instanceof CmsResource) {
+            resources.add((CmsResource)single);
+        }
+        Object multiple = event.getData().get(I_CmsEventListener.KEY_RESOURCES);
+        if (multiple instanceof List) {
+            Iterator i = ((List)multiple).iterator();
+            while (i.hasNext()) {
+                Object o = i.next();
+                if (o instanceof CmsResource) {
+                    resources.add((CmsResource)o);
+                }
             }
         }
-        */
+        return resources;
     }
     
     protected void deleteThumbnailsForImage(CmsResource eventResource) {
         if (eventResource.getState() == CmsResourceState.STATE_DELETED &&
                 eventResource.getTypeId() == CmsResourceTypeImage.getStaticTypeId()) {
-            CmsDefaultUsers defaultUsers = new CmsDefaultUsers();
             CmsObject cmso = null;
             try {
-                cmso = OpenCms.initCmsObject(defaultUsers.getUserExport());
-                cmso.loginUser("Imagehandler", "asdfølkj");
-                cmso.getRequestContext().setCurrentProject(cmso.readProject(PROJECT_OFFLINE_NAME));
-                cmso.getRequestContext().setSiteRoot(DEFAULT_SITE);
+                cmso = initEventCmsObject();
             } catch (CmsException cmse) {
                 throw new  NullPointerException("Error initializing CmsObject / user / project upon capturing event 'image resource created': " + cmse.getMessage());
             }
@@ -202,10 +315,34 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
     }
     
     public List getImageThumbnails(CmsObject cmso, CmsResource image) throws CmsException {
-        ArrayList thumbs = new ArrayList();
+        return readImageThumbnails(cmso, image);
+    }
+    
+    /**
+     * Reads the thumbnails of the given image, i.e. the targets of its 
+     * {@link CmsImageProcessor#RELATION_TYPE_SCALED_IMAGE_VERSION_NAME} relations.
+     * 
+     * @param cmso An initialized CmsObject.
+     * @param image The image.
+     * @return The thumbnails of the given image, or an empty list if none (or if the given resource is not an image).
+     * @throws CmsException If reading the relations or thumbnails fails.
+     */
+    protected static List<CmsResource> readImageThumbnails(CmsObject cmso, CmsResource image) throws CmsException {
+        List<CmsResource> thumbs = new ArrayList<CmsResource>();
         if (CmsResourceTypeImage.getStaticTypeId() != image.getTypeId()) {
             return thumbs;
         }
+        if (ThumbnailRelationIndex.isReady()) {
+            CmsUUID[] ids = ThumbnailRelationIndex.getThumbnailIds(image.getStructureId());
+            for (int i = 0; i < ids.length; i++) {
+                try {
+                    thumbs.add(cmso.readResource(ids[i]));
+                } catch (CmsException e) {
+                    // Deleted, but not yet removed from the index
+                }
+            }
+            return thumbs;
+        }
         List relationsFromImage = cmso.getRelationsForResource(cmso.getSitePath(image), CmsRelationFilter.TARGETS);
         Iterator i = relationsFromImage.iterator();
         CmsRelation rel = null;
@@ -217,9 +354,20 @@ public class Actions implements I_CmsModuleAction, I_CmsEventListener {
         return thumbs;
     }
     
-    protected boolean resourceIsThumbnail(CmsObject cmso, CmsResource resource) {
-        if (resource.getTypeId() == CmsResourceTypeImage.getStaticTypeId())
+    /**
+     * Determines whether or not the given resource is a thumbnail, i.e. the 
+     * target of a {@link CmsImageProcessor#RELATION_TYPE_SCALED_IMAGE_VERSION_NAME} 
+     * relation.
+     * 
+     * @param cmso An initialized CmsObject.
+     * @param resource The resource to check.
+     * @return True if the given resource is a thumbnail, false if not.
+     */
+    protected static boolean resourceIsThumbnail(CmsObject cmso, CmsResource resource) {
+        if (resource.getTypeId() != CmsResourceTypeImage.getStaticTypeId())
             return false;
+        if (ThumbnailRelationIndex.isReady())
+            return ThumbnailRelationIndex.isThumbnail(resource.getStructureId());
         try {
             List eventResourceRelationSources = cmso.getRelationsForResource(cmso.getSitePath(resource), CmsRelationFilter.SOURCES);
             if (eventResourceRelationSources == null)
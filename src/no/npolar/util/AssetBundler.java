@@ -0,0 +1,416 @@
+package no.npolar.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsException;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.staticexport.CmsLinkManager;
+
+/**
+ * Bundles stylesheets and javascripts, so that a page's header elements can
+ * be loaded with a single request per type.
+ * <p>
+ * Each distinct list of members results in one bundle: the members'
+ * contents, minified by {@link AssetMinifier} and concatenated. Bundles are
+ * named by a hash of their content, stored on disk (along with a gzipped
+ * copy), and served with far-future, immutable caching headers. A bundle is
+ * rebuilt only when a member's date last modified changes, as reported by
+ * {@link FingerprintCache}. Superseded bundles are left on disk, since
+ * cached pages may still refer to them.
+ * <p>
+ * Relative <code>url(...)</code> references in stylesheets are rewritten to
+ * absolute links, as the bundle is served from a different location than
+ * its members.
+ * <p>
+ * Members that would change meaning when concatenated are not bundled (the
+ * caller then falls back to separate tags): stylesheets containing
+ * <code>@import</code> or <code>@charset</code> rules (which are ignored
+ * unless first in a file, and whose relative references would break), and
+ * javascripts starting with a "use strict" directive, unless they are the
+ * only member (the directive would otherwise apply to the whole bundle).
+ * <p>
+ * Bundling is disabled by default. It is controlled by the module
+ * parameters {@link #MODULE_PARAM_ENABLED}, {@link #MODULE_PARAM_URI} (the
+ * JSP that invokes {@link #serve(org.opencms.jsp.CmsJspActionElement)}) and
+ * {@link #MODULE_PARAM_DIR}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#getHeaderElement(java.lang.String, java.lang.String)
+ */
+public class AssetBundler {
+    /** Module parameter name for enabling bundling. */
+    public static final String MODULE_PARAM_ENABLED = "bundles.enabled";
+    /** Module parameter name for the URI of the bundle delivery JSP. */
+    public static final String MODULE_PARAM_URI = "bundles.uri";
+    /** Module parameter name for the bundle directory (absolute, or relative to WEB-INF). */
+    public static final String MODULE_PARAM_DIR = "bundles.dir";
+    /** The default URI of the bundle delivery JSP. */
+    public static final String DEFAULT_URI = "/system/modules/no.npolar.util/elements/bundle.jsp";
+    /** The default bundle directory, relative to WEB-INF. */
+    public static final String DEFAULT_DIR = "npolar-bundles";
+    /** Request parameter name for the bundle name. */
+    public static final String PARAM_NAME_BUNDLE = "bundle";
+    /** Bundle type: stylesheets. */
+    public static final String TYPE_CSS = "css";
+    /** Bundle type: javascripts. */
+    public static final String TYPE_JS = "js";
+    /** The Cache-Control header value for bundles. */
+    public static final String CACHE_CONTROL = "public, max-age=" + ScaledImageStore.FINGERPRINTED_MAX_AGE + ", immutable";
+
+    /** The max. number of bundles to keep track of. */
+    private static final int MAX_BUNDLES = 1000;
+    /** Suffix for gzipped bundles. */
+    private static final String GZIP_SUFFIX = ".gz";
+    /** Suffix used for files that are being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+    /** Valid bundle names. */
+    private static final Pattern BUNDLE_NAME = Pattern.compile("[0-9a-f]{40}\\.(css|js)");
+    /** Stylesheet <code>url(...)</code> references. */
+    private static final Pattern CSS_URL = Pattern.compile("url\\(\\s*(['\"]?)([^'\")]+)\\1\\s*\\)");
+    /** Stylesheet at-rules that prevent bundling. */
+    private static final Pattern CSS_UNBUNDLEABLE = Pattern.compile("@(import|charset)\\b", Pattern.CASE_INSENSITIVE);
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(AssetBundler.class);
+
+    /** Known bundles, keyed by project type + site root + type + member list. */
+    private static final ConcurrentHashMap<String, Bundle> bundles = new ConcurrentHashMap<String, Bundle>();
+
+    /** Whether or not bundling is enabled. */
+    private static volatile boolean enabled = false;
+    /** The URI of the bundle delivery JSP. */
+    private static volatile String uri = DEFAULT_URI;
+    /** The bundle directory. */
+    private static File dir = null;
+
+    /**
+     * A built bundle.
+     */
+    private static class Bundle {
+        /** The bundle name (content hash + extension), or null if the members cannot be bundled. */
+        private final String name;
+        /** The members' fingerprints at the time the bundle was built. */
+        private final long[] fingerprints;
+
+        /**
+         * Creates a new bundle.
+         *
+         * @param name The bundle name, or null if the members cannot be bundled.
+         * @param fingerprints The members' fingerprints.
+         */
+        Bundle(String name, long[] fingerprints) {
+            this.name = name;
+            this.fingerprints = fingerprints;
+        }
+    }
+
+    /**
+     * Applies any settings found in the given module's parameters.
+     *
+     * @param module The module.
+     */
+    public static synchronized void configure(CmsModule module) {
+        enabled = Boolean.valueOf(module.getParameter(MODULE_PARAM_ENABLED, "false").trim()).booleanValue();
+        uri = module.getParameter(MODULE_PARAM_URI, DEFAULT_URI).trim();
+        String dirPath = module.getParameter(MODULE_PARAM_DIR, DEFAULT_DIR);
+        File bundleDir = new File(dirPath);
+        if (!bundleDir.isAbsolute()) {
+            bundleDir = new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(dirPath));
+        }
+        dir = bundleDir;
+        bundles.clear();
+    }
+
+    /**
+     * Gets whether or not bundling is enabled.
+     *
+     * @return True if bundling is enabled, false if not.
+     */
+    public static boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * Gets the URI of the bundle of the given members, building the bundle
+     * if necessary.
+     * <p>
+     * The returned URI is not yet processed by the link manager.
+     *
+     * @param cmso An initialized CmsObject, used to read the members (if necessary).
+     * @param members The site paths of the members, in order.
+     * @param type The bundle type, either {@link #TYPE_CSS} or {@link #TYPE_JS}.
+     * @return The URI of the bundle, or null if the members cannot be bundled (e.g. if a member is an external URL, does not exist, or would change meaning when concatenated).
+     */
+    public static String getBundleUri(CmsObject cmso, List<String> members, String type) {
+        long[] fingerprints = new long[members.size()];
+        StringBuilder key = new StringBuilder(256);
+        key.append(cmso.getRequestContext().getCurrentProject().isOnlineProject() ? "1:" : "0:")
+                .append(cmso.getRequestContext().getSiteRoot()).append('|').append(type);
+        for (int i = 0; i < fingerprints.length; i++) {
+            String member = members.get(i).trim();
+            if (!member.startsWith("/") || member.startsWith("//") || member.indexOf('?') > -1) {
+                return null;
+            }
+            fingerprints[i] = FingerprintCache.get(cmso, member);
+            if (fingerprints[i] < 0) {
+                return null;
+            }
+            key.append('|').append(member);
+        }
+
+        Bundle bundle = bundles.get(key.toString());
+        if (bundle == null
+                || !Arrays.equals(bundle.fingerprints, fingerprints)
+                || (bundle.name != null && !new File(getDir(), bundle.name).exists())) {
+            try {
+                bundle = new Bundle(build(cmso, members, type), fingerprints);
+            } catch (Exception e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Unable to build " + type + " bundle of " + members + ".", e);
+                }
+                return null;
+            }
+            if (bundles.size() >= MAX_BUNDLES) {
+                bundles.clear();
+            }
+            bundles.put(key.toString(), bundle);
+        }
+        return bundle.name == null ? null : uri + "?" + PARAM_NAME_BUNDLE + "=" + bundle.name;
+    }
+
+    /**
+     * Serves the bundle named by the {@link #PARAM_NAME_BUNDLE} request
+     * parameter, gzipped if the client accepts it.
+     * <p>
+     * Typically invoked from the JSP that is used as the bundle delivery
+     * endpoint.
+     *
+     * @param cms An initialized action element.
+     * @return True if a response was sent, false if not (e.g. no such bundle).
+     */
+    public static boolean serve(CmsJspActionElement cms) {
+        String name = cms.getRequest().getParameter(PARAM_NAME_BUNDLE);
+        if (name == null || !BUNDLE_NAME.matcher(name).matches()) {
+            return false;
+        }
+        File f = new File(getDir(), name);
+        if (!f.exists()) {
+            return false;
+        }
+        HttpServletRequest request = cms.getRequest();
+        HttpServletResponse response = cms.getResponse();
+        try {
+            String eTag = "\"" + name.substring(0, name.indexOf('.')) + "\"";
+            response.setHeader("ETag", eTag);
+            response.setHeader("Cache-Control", CACHE_CONTROL);
+            response.setHeader("Vary", "Accept-Encoding");
+            String ifNoneMatch = request.getHeader("If-None-Match");
+            if (ifNoneMatch != null && ifNoneMatch.contains(eTag)) {
+                response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+                return true;
+            }
+            response.setContentType(name.endsWith("." + TYPE_CSS)
+                    ? "text/css; charset=UTF-8"
+                    : "application/javascript; charset=UTF-8");
+            String acceptEncoding = request.getHeader("Accept-Encoding");
+            File gzipped = new File(getDir(), name + GZIP_SUFFIX);
+            if (acceptEncoding != null && acceptEncoding.contains("gzip") && gzipped.exists()) {
+                response.setHeader("Content-Encoding", "gzip");
+                f = gzipped;
+            }
+            ScaledImageStore.transfer(f, response);
+            return true;
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to serve bundle '" + name + "'.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Forgets all known bundles, forcing them to be re-checked on next use.
+     * Bundles on disk are kept.
+     */
+    public static void clear() {
+        bundles.clear();
+    }
+
+    /**
+     * Builds the bundle of the given members, and stores it on disk (unless
+     * an identical bundle is already stored).
+     *
+     * @param cmso An initialized CmsObject, used to read the members.
+     * @param members The site paths of the members, in order.
+     * @param type The bundle type, either {@link #TYPE_CSS} or {@link #TYPE_JS}.
+     * @return The bundle name, or null if the members cannot be bundled.
+     * @throws CmsException If reading a member fails.
+     * @throws IOException If writing the bundle fails.
+     */
+    private static String build(CmsObject cmso, List<String> members, String type) throws CmsException, IOException {
+        StringBuilder sb = new StringBuilder(8192);
+        Iterator<String> i = members.iterator();
+        while (i.hasNext()) {
+            String member = i.next().trim();
+            String encoding = cmso.readPropertyObject(member, CmsPropertyDefinition.PROPERTY_CONTENT_ENCODING, true).getValue("UTF-8");
+            String content = new String(cmso.readFile(member).getContents(), encoding);
+            if (TYPE_CSS.equals(type)) {
+                String minified = AssetMinifier.minifyCss(content);
+                if (CSS_UNBUNDLEABLE.matcher(minified).find()) {
+                    return notBundleable(members, member, "@import or @charset rule");
+                }
+                sb.append(rewriteCssUrls(cmso, minified, member)).append('\n');
+            } else {
+                String minified = AssetMinifier.minifyJs(content);
+                if (members.size() > 1 && isStrict(minified)) {
+                    return notBundleable(members, member, "\"use strict\" directive");
+                }
+                // The semicolon guards against members that don't end with one
+                sb.append(minified).append("\n;\n");
+            }
+        }
+        byte[] data = sb.toString().getBytes("UTF-8");
+        String name = ScaledImageStore.digest(data) + "." + type;
+
+        File target = new File(getDir(), name);
+        if (!target.exists()) {
+            write(new File(getDir(), name + GZIP_SUFFIX), data, true);
+            write(target, data, false);
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Built " + type + " bundle '" + name + "' of " + members.size() + " members (" + data.length + " bytes).");
+            }
+        }
+        return name;
+    }
+
+    /**
+     * Logs that the given members cannot be bundled.
+     *
+     * @param members The members.
+     * @param member The member that prevents bundling.
+     * @param reason What in the member prevents bundling.
+     * @return Always null.
+     */
+    private static String notBundleable(List<String> members, String member, String reason) {
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Not bundling " + members + ": '" + member + "' has a " + reason + ".");
+        }
+        return null;
+    }
+
+    /**
+     * Determines whether or not the given (minified) javascript starts with a
+     * "use strict" directive, i.e. is in strict mode as a whole.
+     *
+     * @param js The minified javascript.
+     * @return True if the given javascript starts with a "use strict" directive, false if not.
+     */
+    private static boolean isStrict(String js) {
+        int i = 0;
+        while (i < js.length()) {
+            if (Character.isWhitespace(js.charAt(i))) {
+                i++;
+            } else if (js.startsWith("/*", i)) {
+                // Preserved (license) comment
+                int end = js.indexOf("*/", i + 2);
+                if (end < 0) {
+                    return false;
+                }
+                i = end + 2;
+            } else {
+                return js.startsWith("\"use strict\"", i) || js.startsWith("'use strict'", i);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Rewrites the relative <code>url(...)</code> references in the given
+     * stylesheet to absolute links.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param css The stylesheet.
+     * @param cssUri The stylesheet's site path.
+     * @return The stylesheet, with relative references rewritten.
+     */
+    private static String rewriteCssUrls(CmsObject cmso, String css, String cssUri) {
+        Matcher m = CSS_URL.matcher(css);
+        StringBuffer sb = null;
+        while (m.find()) {
+            String ref = m.group(2).trim();
+            if (ref.startsWith("/") || ref.startsWith("#") || ref.startsWith("data:") || ref.indexOf("://") > -1) {
+                continue;
+            }
+            if (sb == null) {
+                sb = new StringBuffer(css.length() + 256);
+            }
+            String link = OpenCms.getLinkManager().substituteLink(cmso, CmsLinkManager.getAbsoluteUri(ref, cssUri));
+            m.appendReplacement(sb, Matcher.quoteReplacement("url(" + m.group(1) + link + m.group(1) + ")"));
+        }
+        if (sb == null) {
+            return css;
+        }
+        m.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Writes the given data to the given file, via a temporary file.
+     *
+     * @param target The file to write.
+     * @param data The data.
+     * @param gzip Whether or not to gzip the data.
+     * @throws IOException If writing fails.
+     */
+    private static void write(File target, byte[] data, boolean gzip) throws IOException {
+        File temp = new File(target.getParentFile(), target.getName() + "." + System.nanoTime() + TEMP_SUFFIX);
+        OutputStream out = new FileOutputStream(temp);
+        try {
+            if (gzip) {
+                out = new GZIPOutputStream(out);
+            }
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(target)) {
+            temp.delete();
+            if (!target.exists()) {
+                throw new IOException("Unable to move '" + temp.getName() + "' into place as '" + target.getName() + "'.");
+            }
+        }
+    }
+
+    /**
+     * Gets the bundle directory, creating it if necessary.
+     *
+     * @return The bundle directory.
+     */
+    private static synchronized File getDir() {
+        if (dir == null) {
+            dir = new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(DEFAULT_DIR));
+        }
+        if (!dir.exists() && !dir.mkdirs() && LOG.isErrorEnabled()) {
+            LOG.error("Unable to create bundle directory '" + dir.getAbsolutePath() + "'.");
+        }
+        return dir;
+    }
+}
@@ -0,0 +1,286 @@
+package no.npolar.util;
+
+/**
+ * Conservative minifier for stylesheets and javascripts, used when bundling.
+ * <p>
+ * Only comments and redundant whitespace are removed; no code is rewritten.
+ * String literals (and, for javascript, regular expression and template
+ * literals) are left intact, and so are comments starting with "/*!"
+ * (typically license notices). Javascript line breaks are kept, so automatic
+ * semicolon insertion is not affected.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see AssetBundler
+ */
+public class AssetMinifier {
+    /** Characters around which whitespace is redundant in stylesheets. */
+    private static final String CSS_PUNCTUATION = "{};,>";
+    /** Characters after which a "/" starts a regular expression literal (not a division) in javascript. */
+    private static final String JS_REGEX_PRECEDERS = "(,=:[!&|?{};+-*%<>~^";
+
+    /**
+     * Minifies the given stylesheet.
+     *
+     * @param css The stylesheet.
+     * @return The minified stylesheet.
+     */
+    public static String minifyCss(String css) {
+        StringBuilder sb = new StringBuilder(css.length());
+        int len = css.length();
+        boolean pendingSpace = false;
+        int i = 0;
+        while (i < len) {
+            char c = css.charAt(i);
+            if (c == '/' && i + 1 < len && css.charAt(i + 1) == '*') {
+                int end = css.indexOf("*/", i + 2);
+                end = end < 0 ? len : end + 2;
+                if (i + 2 < len && css.charAt(i + 2) == '!') {
+                    sb.append(css, i, end).append('\n');
+                }
+                i = end;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (pendingSpace) {
+                if (sb.length() > 0
+                        && CSS_PUNCTUATION.indexOf(c) < 0
+                        && CSS_PUNCTUATION.indexOf(sb.charAt(sb.length() - 1)) < 0
+                        && sb.charAt(sb.length() - 1) != '\n') {
+                    sb.append(' ');
+                }
+                pendingSpace = false;
+            }
+            if (c == '"' || c == '\'') {
+                i = copyString(css, i, sb);
+                continue;
+            }
+            sb.append(c);
+            i++;
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Minifies the given javascript.
+     *
+     * @param js The javascript.
+     * @return The minified javascript.
+     */
+    public static String minifyJs(String js) {
+        StringBuilder sb = new StringBuilder(js.length());
+        minifyJs(js, 0, sb, false);
+        return sb.toString();
+    }
+
+    /**
+     * Minifies the given javascript, starting at the given index.
+     * <p>
+     * When minifying a template literal substitution ("${ ... }"), braces
+     * are counted, and minification stops after the brace that closes the
+     * substitution.
+     *
+     * @param js The javascript.
+     * @param start The index to start at.
+     * @param sb The buffer to write the minified javascript to.
+     * @param substitution Whether or not the given index is inside a template literal substitution.
+     * @return The index at which minification stopped.
+     */
+    private static int minifyJs(String js, int start, StringBuilder sb, boolean substitution) {
+        int len = js.length();
+        boolean pendingSpace = false;
+        boolean pendingNewline = false;
+        int depth = 0;
+        int i = start;
+        while (i < len) {
+            char c = js.charAt(i);
+            if (c == '/' && i + 1 < len && js.charAt(i + 1) == '/') {
+                while (i < len && js.charAt(i) != '\n' && js.charAt(i) != '\r') {
+                    i++;
+                }
+                continue;
+            }
+            if (c == '/' && i + 1 < len && js.charAt(i + 1) == '*') {
+                int end = js.indexOf("*/", i + 2);
+                end = end < 0 ? len : end + 2;
+                if (i + 2 < len && js.charAt(i + 2) == '!') {
+                    sb.append(js, i, end);
+                    pendingNewline = true;
+                } else if (js.substring(i, end).indexOf('\n') > -1) {
+                    pendingNewline = true;
+                } else {
+                    pendingSpace = true;
+                }
+                i = end;
+                continue;
+            }
+            if (c == '\n' || c == '\r') {
+                pendingNewline = true;
+                i++;
+                continue;
+            }
+            if (Character.isWhitespace(c)) {
+                pendingSpace = true;
+                i++;
+                continue;
+            }
+            if (sb.length() > 0) {
+                if (pendingNewline) {
+                    sb.append('\n');
+                } else if (pendingSpace && isJsWordChar(c) && isJsWordChar(sb.charAt(sb.length() - 1))) {
+                    sb.append(' ');
+                } else if (pendingSpace && (c == '+' || c == '-') && sb.charAt(sb.length() - 1) == c) {
+                    sb.append(' '); // "a + +b" must not become "a++b"
+                }
+            }
+            pendingSpace = false;
+            pendingNewline = false;
+            if (c == '"' || c == '\'') {
+                i = copyString(js, i, sb);
+                continue;
+            }
+            if (c == '`') {
+                i = copyTemplate(js, i, sb);
+                continue;
+            }
+            if (c == '/' && isRegexStart(sb)) {
+                i = copyRegex(js, i, sb);
+                continue;
+            }
+            if (substitution) {
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}' && depth-- == 0) {
+                    sb.append(c);
+                    return i + 1;
+                }
+            }
+            sb.append(c);
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Copies the string literal starting at the given index (at the opening
+     * quote), including escapes and the closing quote.
+     *
+     * @param s The source.
+     * @param start The index of the opening quote.
+     * @param sb The buffer to copy to.
+     * @return The index following the closing quote.
+     */
+    private static int copyString(String s, int start, StringBuilder sb) {
+        char quote = s.charAt(start);
+        int i = start + 1;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == quote) {
+                break;
+            }
+        }
+        i = Math.min(i, s.length());
+        sb.append(s, start, i);
+        return i;
+    }
+
+    /**
+     * Copies the template literal starting at the given index (at the opening
+     * backtick), including escapes and the closing backtick.
+     * <p>
+     * Substitutions ("${ ... }") are minified as javascript, so any nested
+     * template literals, strings or comments in them are handled correctly.
+     *
+     * @param s The source.
+     * @param start The index of the opening backtick.
+     * @param sb The buffer to copy to.
+     * @return The index following the closing backtick.
+     */
+    private static int copyTemplate(String s, int start, StringBuilder sb) {
+        int from = start;
+        int i = start + 1;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == '`') {
+                break;
+            } else if (c == '$' && i < s.length() && s.charAt(i) == '{') {
+                sb.append(s, from, ++i);
+                i = minifyJs(s, i, sb, true);
+                from = i;
+            }
+        }
+        i = Math.min(i, s.length());
+        sb.append(s, from, i);
+        return i;
+    }
+
+    /**
+     * Copies the regular expression literal starting at the given index (at
+     * the opening slash), including any flags.
+     *
+     * @param s The source.
+     * @param start The index of the opening slash.
+     * @param sb The buffer to copy to.
+     * @return The index following the regular expression literal.
+     */
+    private static int copyRegex(String s, int start, StringBuilder sb) {
+        int i = start + 1;
+        boolean inClass = false;
+        while (i < s.length()) {
+            char c = s.charAt(i++);
+            if (c == '\\') {
+                i++;
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if ((c == '/' && !inClass) || c == '\n') {
+                break;
+            }
+        }
+        while (i < s.length() && Character.isLetter(s.charAt(i))) {
+            i++; // Flags
+        }
+        i = Math.min(i, s.length());
+        sb.append(s, start, i);
+        return i;
+    }
+
+    /**
+     * Determines whether a "/" following the given (minified) output would
+     * start a regular expression literal.
+     */
+    private static boolean isRegexStart(StringBuilder sb) {
+        int i = sb.length() - 1;
+        if (i < 0 || sb.charAt(i) == '\n') {
+            return true;
+        }
+        if (JS_REGEX_PRECEDERS.indexOf(sb.charAt(i)) > -1) {
+            return true;
+        }
+        // Keywords after which an expression is expected
+        int end = i + 1;
+        while (i >= 0 && isJsWordChar(sb.charAt(i))) {
+            i--;
+        }
+        String word = sb.substring(i + 1, end);
+        return "return".equals(word) || "typeof".equals(word) || "case".equals(word)
+                || "in".equals(word) || "of".equals(word) || "delete".equals(word)
+                || "void".equals(word) || "throw".equals(word) || "new".equals(word);
+    }
+
+    /**
+     * Determines whether or not the given character can be part of a
+     * javascript identifier, keyword or number.
+     */
+    private static boolean isJsWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '\\' || c > 127;
+    }
+}
@@ -1,15 +1,11 @@
 package no.npolar.util;
 
-import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.math.RoundingMode;
-import java.net.URL;
-import java.text.DecimalFormat;
 import no.npolar.util.exception.*;
 import org.opencms.jsp.CmsJspXmlContentBean;
 import java.util.Date;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Iterator;
 import java.util.Locale;
@@ -32,17 +28,13 @@ import org.opencms.file.CmsResourceFilter;
 import org.opencms.file.CmsObject;
 import org.opencms.file.CmsProperty;
 import org.opencms.file.CmsPropertyDefinition;
-import org.opencms.json.JSONArray;
 import org.opencms.json.JSONException;
-import org.opencms.json.JSONObject;
 import org.opencms.jsp.I_CmsXmlContentContainer;
 import org.opencms.mail.CmsSimpleMail;
 import org.opencms.main.CmsException;
 import org.opencms.main.OpenCms;
 import org.opencms.security.CmsRole;
 import org.opencms.util.CmsHtmlExtractor;
-import org.opencms.util.CmsRequestUtil;
-import org.opencms.util.CmsUriSplitter;
 
 /**
  * This class extends the typical class used by the Norwegian Polar Institute
@@ -109,28 +101,26 @@ public class CmsAgent extends CmsJspXmlContentBean {
         try {
             if (target != null && !target.isEmpty()) {
                 // Get the query string (incl. the "?" character), if it exists
-                String queryString = target.contains("?") ? target.substring(target.indexOf("?")) : "";
-                // Read the resource (remove query string if needed)
-                CmsResource r = this.getCmsObject().readResource(queryString.isEmpty() ? target : target.substring(0, target.indexOf("?")));
-                if (!r.isFolder()) {
-                    // Get the file name (remove the query string if needed)
-                    String fileName = CmsResource.getName(target);
-                    if (!queryString.isEmpty())
-                        fileName = fileName.substring(0, fileName.indexOf("?"));
-                    // Get the parent folder
-                    String folderUri = CmsResource.getParentFolder(target);
+                int queryStart = target.indexOf("?");
+                String queryString = queryStart > -1 ? target.substring(queryStart) : "";
+                String path = queryStart > -1 ? target.substring(0, queryStart) : target;
+                // Get the file name (without the query string)
+                String fileName = CmsResource.getName(path);
 
-                    // Add a fingerprint, if necessary
-                    if (!(queryString.contains("&"+PARAM_NAME_FINGERPRINT+"=") 
-                            || queryString.contains("&amp;"+PARAM_NAME_FINGERPRINT+"=") 
-                            || queryString.contains("?"+PARAM_NAME_FINGERPRINT+"="))) {
-                        // Does the file extension indicate that a fingerprint should be added?
-                        if (fileName.matches("([^\\s]+(\\.(?i)(jpg|jpeg|png|gif|svg|css|js|pdf))$)")) {
-                            target = folderUri + fileName
+                // Add a fingerprint, if necessary
+                if (!(queryString.contains("&"+PARAM_NAME_FINGERPRINT+"=") 
+                        || queryString.contains("&amp;"+PARAM_NAME_FINGERPRINT+"=") 
+                        || queryString.contains("?"+PARAM_NAME_FINGERPRINT+"="))) {
+                    // Does the file extension indicate that a fingerprint should be added?
+                    if (FingerprintCache.isFingerprinted(fileName)) {
+                        // Get the fingerprint (the cached date last modified) - will be -1 for folders and non-existing resources
+                        long fingerprint = FingerprintCache.get(this.getCmsObject(), path);
+                        if (fingerprint > -1) {
+                            target = CmsResource.getParentFolder(path) + fileName
                                         // keep any existing query string intact
                                         + (queryString.isEmpty() ? "?" : queryString.concat("&amp;")) 
                                         // add the fingerprint parameter
-                                        + PARAM_NAME_FINGERPRINT + "=" + r.getDateLastModified();
+                                        + PARAM_NAME_FINGERPRINT + "=" + fingerprint;
                         }
                     }
                 }
@@ -140,7 +130,21 @@ public class CmsAgent extends CmsJspXmlContentBean {
         }
         return super.link(target);
     }
-    
+
+    /**
+     * Adds fingerprint parameters to all local asset URLs in the given HTML,
+     * e.g. images and links in a rich text body.
+     * <p>
+     * Fingerprints are added just like {@link #link(java.lang.String)} does.
+     *
+     * @param html The HTML, typically a rich text body.
+     * @return The given HTML, with fingerprint parameters added.
+     * @see FingerprintLinkRewriter
+     */
+    public String fingerprintLinks(String html) {
+        return new FingerprintLinkRewriter(this.getCmsObject()).rewrite(html);
+    }
+
     /**
      * Determine whether an XML element exists.
      * <p>
@@ -214,24 +218,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @see java.text.SimpleDateFormat
      */
     public static String formatDate(String timestamp, String dateFormat) throws ServletException {
-        Date date = new Date(); // Create a date (representing the moment in time it is created). This object is changed below.
-        float millis = Float.parseFloat(timestamp); // Get the float value of the timestamp
-        date.setTime((long)millis); // Change the date object so that it represents the time kept in "timestamp"
-        if (dateFormat == null)
-            dateFormat = DEFAULT_DATETIME_FORMAT;
-        // Create the desired output format
-        SimpleDateFormat outputFormat = new SimpleDateFormat(dateFormat);
-        String dateString = null;
-        try {
-            dateString = outputFormat.format(date);
-        }
-        catch (Exception e) {
-            //e.printStackTrace();
-            throw new ServletException("An error was encountered while trying to process the date-time " + date.toString() + 
-                    ". Please check the format of the string and correct the text, or use the calendar function to insert a date directly. " +
-                    "If the problem persists, please contact your system administrator.");
-        }
-        return dateString;
+        return formatDate(timestamp, dateFormat, null);
     }
     
     /**
@@ -246,20 +233,18 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * 
      * @param timestamp  The timestamp (a String representaion of a long).
      * @param dateFormat  The output time format. Can be null, in which case {@link #DEFAULT_DATETIME_FORMAT} is used.
-     * @param locale The Locale (language) to use.
+     * @param locale The Locale (language) to use. Can be null, in which case the default locale is used.
      * @return  The date, formatted according to the specified date format and locale.
      * @throws javax.servlet.ServletException  If the formatting fails (probably due to syntax error in dateFormat).
      * @see java.text.SimpleDateFormat
      * @see java.util.Locale
      */
     public static String formatDate(String timestamp, String dateFormat, Locale locale) throws ServletException {
-        Date date = new Date(); // Create a date (representing the moment in time it is created). This object is changed below.
-        float millis = Float.parseFloat(timestamp); // Get the float value of the timestamp
-        date.setTime((long)millis); // Change the date object so that it represents the time kept in "timestamp"
+        Date date = new Date(Formats.parseTimestamp(timestamp));
         if (dateFormat == null)
             dateFormat = DEFAULT_DATETIME_FORMAT;
-        // Create the desired output format
-        SimpleDateFormat outputFormat = new SimpleDateFormat(dateFormat, locale);
+        // Get the desired output format (cached per thread)
+        SimpleDateFormat outputFormat = Formats.getDateFormat(dateFormat, locale);
         String dateString = null;
         try {
             dateString = outputFormat.format(date);
@@ -291,20 +276,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @return The converted value, nicely formatted; e.g. "2.4 MB".
      */
     public static String formatFileSize(int bytes) {
-        DecimalFormat df = new DecimalFormat("#.#");
-        df.setRoundingMode(RoundingMode.HALF_UP);
-        final int KB = 1024;
-        final int MB = KB*KB;
-        final int GB = MB*KB;
-        if (bytes < KB) {
-            return bytes + "&nbsp;bytes";
-        } else if (bytes >= KB && bytes < MB) {
-            return df.format((double)bytes / KB) + "&nbsp;kB";
-        } else if (bytes >= MB && bytes < GB) {
-            return df.format((double)bytes / MB) + "&nbsp;MB";
-        } else {
-            return df.format((double)bytes / GB) + "&nbsp;GB";
-        }
+        return Formats.formatFileSize(bytes);
     }
     
     /**
@@ -351,54 +323,19 @@ public class CmsAgent extends CmsJspXmlContentBean {
     /**
      * Resolves the path to the default image for a Vimeo video, based on the
      * video's URL.
+     * <p>
+     * This method does a (blocking) remote lookup. When rendering, prefer 
+     * {@link #getAutoImage(org.opencms.file.CmsResource)}, which uses the 
+     * cached, non-blocking {@link VideoThumbnailResolver}.
      * 
-     * @param videoUrl  The Vimeo video's URL. (Must start with "http://".)
+     * @param videoUrl  The Vimeo video's URL.
      * @return  The video's default image URL.
      * @throws IOException
      * @throws JSONException 
      */
     public String getVimeoThumb(String videoUrl) throws IOException, JSONException {
-        String videoId = null;
-        try {
-            videoId = videoUrl.replace("http://", "");
-            videoId = videoId.substring(videoId.indexOf("/") + 1);
-            if (videoId.contains("?")) {
-                videoId = videoId.substring(0, videoId.indexOf("?"));
-            }
-        } catch (Exception e) {
-            throw new NullPointerException("Error reading video ID for '" + videoUrl + "': " + e.getMessage());
-        }
-        // 
-        // Read the video metadata from Vimeo
-        //
-        StringBuffer contentBuffer = new StringBuffer(1024);
-        BufferedReader in = null;
-        String inputLine = null;
-        String jsonMetadata = null;
-
-        try {
-            in = new BufferedReader(new InputStreamReader(
-                                        new URL("http://vimeo.com/api/v2/video/" + videoId + ".json").openConnection().getInputStream()
-                                        )
-                                    );
-            while ((inputLine = in.readLine()) != null) {
-                contentBuffer.append(inputLine);
-            }
-            jsonMetadata = contentBuffer.toString();
-            in.close();
-        } catch (Exception e) {
-            throw new IOException("Error reading video metadata: " + e.getMessage());
-        }
-        String thumbnailUrl = "";
-        // Get thumbnail image
-        try {
-            JSONArray ja = new JSONArray(jsonMetadata);
-            JSONObject videoMeta = ja.getJSONObject(0);// new JSONObject(ja.toString());
-            thumbnailUrl = (String)videoMeta.get("thumbnail_medium");
-        } catch (Exception e) {
-            throw new JSONException("Error resolving thumbnail image: " + e.getMessage());
-        }
-        return thumbnailUrl;
+        return new VideoThumbnailResolver.VimeoProvider(VideoThumbnailResolver.DEFAULT_VIMEO_API, 
+                                                        VideoThumbnailResolver.DEFAULT_TIMEOUT).getThumbnailUrl(videoUrl);
     }
 
     /**
@@ -409,15 +346,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @return  The video's default image URL.
      */
     public String getYouTubeThumb(String videoUrl) {
-        String videoId = null;
-        try {
-            String videoUrlQueryPart = new CmsUriSplitter(videoUrl).getQuery();
-            Map ytUrlParts = CmsRequestUtil.createParameterMap(videoUrlQueryPart);
-            videoId = ((String[])(ytUrlParts.get("v")))[0];
-        } catch (Exception e) {
-            throw new NullPointerException("Error resolving video ID for '" + videoUrl + "': " + e.getMessage());
-        }
-        return "http://img.youtube.com/vi/%(id)/0.jpg".replace("%(id)", videoId);
+        return new VideoThumbnailResolver.YouTubeProvider().getThumbnailUrl(videoUrl);
     }
     
     /**
@@ -425,41 +354,57 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * <p>
      * Resource types that "support" automatic images are:
      * <ul>
-     * <li>videoresource (only YouTube / Vimeo, resolves image from these services)</li>
+     * <li>videoresource (only YouTube / Vimeo, resolves image from these services - see {@link VideoThumbnailResolver})</li>
      * <li>resourceinfo (images must be placed in an /img/ subfolder inside the same folder as the target file)</li>
      * <ul>
      * <p>
      * The method relies on the property uri.referenced to contain the URI to the target resource.
+     * <p>
+     * Vimeo thumbnails are fetched in the background, so null is returned for 
+     * a Vimeo video until its thumbnail is available. Use 
+     * {@link #getAutoImageOrPlaceholder(org.opencms.file.CmsResource)} to get 
+     * a placeholder instead.
      * 
      * @param resource  The resource to resolve the image for.
      * @return  The URI to the image, or null if no image could be resolved.
      * @throws CmsException  If anything goes wrong.
      */
     public String getAutoImage(CmsResource resource) throws CmsException {
+        return getAutoImage(resource, false);
+    }
+    
+    /**
+     * Resolves the image for a given resource, which has its image set to "auto",
+     * like {@link #getAutoImage(org.opencms.file.CmsResource)}.
+     * <p>
+     * For a YouTube / Vimeo video whose thumbnail is not yet available, the 
+     * placeholder image is returned instead of null (typically a transparent 
+     * data URI - not suitable for linking or scaling). See 
+     * {@link VideoThumbnailResolver#resolveOrPlaceholder(java.lang.String)}.
+     * 
+     * @param resource  The resource to resolve the image for.
+     * @return  The URI to the image, the placeholder image, or null if no image could be resolved.
+     * @throws CmsException  If anything goes wrong.
+     */
+    public String getAutoImageOrPlaceholder(CmsResource resource) throws CmsException {
+        return getAutoImage(resource, true);
+    }
+    
+    /**
+     * Resolves the image for a given resource, which has its image set to "auto".
+     * 
+     * @param resource  The resource to resolve the image for.
+     * @param usePlaceholder  If true, a placeholder is returned for videos whose thumbnail is not yet available.
+     * @return  The URI to the image, (possibly) the placeholder image, or null if no image could be resolved.
+     * @throws CmsException  If anything goes wrong.
+     */
+    private String getAutoImage(CmsResource resource, boolean usePlaceholder) throws CmsException {
         String imageUri = null;
         if (OpenCms.getResourceManager().getResourceType("videoresource").getTypeId() == resource.getTypeId()) { // Then this item is a video
             String videoUrl = this.getCmsObject().readPropertyObject(resource, "uri.referenced", false).getValue(""); // A referenced URI (e.g. the YouTube/Vimeo URL OR a path to a local video)
-            // YouTube video
-            if (videoUrl.indexOf("youtube.com/") > -1) {
-                try {
-                    imageUri = getYouTubeThumb(videoUrl);
-                    //out.println("<!-- YouTube video, resolved image is '" + imageUri + "' -->");
-                } catch (Exception e) {
-                    //out.println("<!-- Exception: " + e.getMessage() + " -->");
-                }
-            }
-            // Vimeo video
-            else if (videoUrl.indexOf("vimeo.com/") > -1) {
-                try {
-                    imageUri = getVimeoThumb(videoUrl);
-                    //out.println("<!-- Vimeo video, resolved image is '" + imageUri + "' -->");
-                } catch (Exception e) {
-                    //out.println("<!-- Exception: " + e.getMessage() + " -->");
-                }
-            }
-            else {
-                //out.println("<!-- Unknown video type for 'auto' image -->");
-            }
+            // YouTube / Vimeo video (Vimeo thumbnails are fetched in the background)
+            VideoThumbnailResolver resolver = VideoThumbnailResolver.getInstance();
+            imageUri = usePlaceholder ? resolver.resolveOrPlaceholder(videoUrl) : resolver.resolve(videoUrl);
         }
         else if (OpenCms.getResourceManager().getResourceType("resourceinfo").getTypeId() == resource.getTypeId()) { // Then this item is a resource info page
             String resourceUrl = this.getCmsObject().readPropertyObject(resource, PROPERTY_URI_REFERENCED, false).getValue(""); // A referenced URI (e.g. a path to a local PDF)
@@ -468,25 +413,12 @@ public class CmsAgent extends CmsJspXmlContentBean {
             }
 
             if (this.getCmsObject().existsResource(resourceUrl)) {
-                // External resource: Resolve image from "img" subfolder of the resource's parent folder (name must be the resource name + .jpg).
-                imageUri = CmsResource.getParentFolder(resourceUrl).concat("img/").concat(CmsResource.getName(resourceUrl));
-                imageUri = imageUri.substring(0, imageUri.lastIndexOf(".")).concat(".jpg");
-                //out.println("<!-- imageUri = '" + imageUri + "' -->");
-
-                if (!this.getCmsObject().existsResource(imageUri)) {
-                    //out.println("<!-- Image '" + imageUri + "' did not exist, looking for .png ...");
-                    imageUri = imageUri.substring(0, imageUri.lastIndexOf(".")).concat(".png");
-
-                    if (!this.getCmsObject().existsResource(imageUri)) {
-                        //out.println("<!-- Image '" + imageUri + "' did not exist, looking for .gif ...");
-                        imageUri = imageUri.substring(0, imageUri.lastIndexOf(".")).concat(".gif");
-
-                        if (!this.getCmsObject().existsResource(imageUri)) {
-                            //out.println("<!-- Image '" + imageUri + "' did not exist, unable to resolve image ...");
-                            imageUri = null;
-                        }
-                    }
+                // External resource: Resolve image from "img" subfolder of the resource's parent folder (name must be the resource name + .jpg/.png/.gif).
+                String baseName = CmsResource.getName(resourceUrl);
+                if (baseName.lastIndexOf(".") > 0) {
+                    baseName = baseName.substring(0, baseName.lastIndexOf("."));
                 }
+                imageUri = ImageFolderIndex.getImage(this.getCmsObject(), CmsResource.getParentFolder(resourceUrl).concat("img/"), baseName);
             } else {
                 //out.println("<!-- Resource '" + resourceUrl + "' did not exist locally, unable to resolve image ...");
                 // External resource, unable to resolve image automatically
@@ -577,63 +509,19 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * The size of the array can be:<br />
      *      1 - the width, if the property value is a single number, e.g.: "300"<br />
      *      2 - the property value is of standard form, e.g.: "w:400,h:300"<br />
+     * <p>
+     * If the resource is an image, and its "image.size" property is missing or 
+     * malformed, the dimensions are read from the image header instead. See 
+     * {@link ImageSizeProbe}.
+     * <p>
+     * Parsed values are cached per resource version, see {@link ImageSize}.
      * @param resource  The resource to examine "image.size" on
      * @return  An integer array holding the width, or the width and height
      * @throws org.opencms.main.CmsException  If the resource cannot be read
      * @throws no.npolar.util.exception.MalformedPropertyValueException  If there is something wrong with the format of the property value
      */
     public int[] getImageSize(CmsResource resource) throws CmsException, MalformedPropertyValueException {
-        // Get the property "image.size" as a String
-        String sizeValue = this.getCmsObject().readPropertyObject(resource, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue();
-        // Prevent NullPointerException
-        if (sizeValue == null)
-            return null;
-        // Initialize the main variables
-        int width = 0, height = 0;
-        
-        // If a comma separator exists, assume that the format is "w:123,h:123"
-        if (sizeValue.indexOf(",") != -1) {
-            // Split the String into two separate substrings using "," as the separator
-            String[] aspectRatio = sizeValue.split(",");
-            // This length of aspectRatio should always be 2. (If not, the "image.size" property of the original image is missing or malformatted.)
-            if (aspectRatio.length == 2) {
-                // We need to make sure the property is correctly formatted. Correct-format-example: aspectRatio[0]=w:400 and aspectRatio[1]=h:300
-                if (aspectRatio[0].lastIndexOf("w:") != -1 && aspectRatio[0].length() >= 3 && 
-                        aspectRatio[1].lastIndexOf("h:") != -1 && aspectRatio[1].length() >= 3) { 
-                    try {
-                        width = Integer.parseInt( aspectRatio[0].substring(aspectRatio[0].lastIndexOf(":") + 1, aspectRatio[0].length()));
-                        height = Integer.parseInt( aspectRatio[1].substring(aspectRatio[1].lastIndexOf(":")+ 1, aspectRatio[1].length()));
-                        int[] twoValues = { width, height };
-                        return twoValues;
-                    } catch (Exception e) {
-                        throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                            "': 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                            " The exception was: " +  e.getMessage()); 
-                    }
-                } 
-                else { 
-                    throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                        "': 'image.size' was missing either 'w:' or 'h:'. Correct format example: 'w:123,h:123'"); 
-                }
-            }
-            else { 
-                throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                    "': 'image.size' did not contain 2 elements, or did not use the correct separator sign. Correct format example: 'w:123,h:123'"); 
-            }
-        }
-        // No comma separator exists, assume that the value is a single number that should be the width
-        else {
-            try {
-                // The value should be a single number describing the width
-                width = Integer.parseInt(sizeValue);
-                int oneValue[] = {width};
-                return oneValue;
-            } catch (Exception e) {
-                throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                    "': 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                    " The exception was: " +  e.getMessage()); 
-            }
-        }
+        return getImageSize(this.getCmsObject(), resource);
     }
     
     /**
@@ -641,6 +529,12 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * The size of the array can be:<br />
      *      1 - the width, if the property value is a single number, e.g.: "300"<br />
      *      2 - the property value is of standard form, e.g.: "w:400,h:300"<br />
+     * <p>
+     * If the resource is an image, and its "image.size" property is missing or 
+     * malformed, the dimensions are read from the image header instead. See 
+     * {@link ImageSizeProbe}.
+     * <p>
+     * Parsed values are cached per resource version, see {@link ImageSize}.
      * @param cmso  The CmsObject reference to use when reading the resource
      * @param resource  The resource to examine "image.size" on
      * @return  An integer array holding the width, or the width and height
@@ -648,57 +542,8 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @throws no.npolar.util.exception.MalformedPropertyValueException  If there is something wrong with the format of the property value
      */
     public static int[] getImageSize(CmsObject cmso, CmsResource resource) throws CmsException, MalformedPropertyValueException {
-        // Get the property "image.size" as a String
-        String sizeValue = cmso.readPropertyObject(resource, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue();
-        // Prevent NullPointerException
-        if (sizeValue == null)
-            return null;
-        // Initialize the main variables
-        int width = 0, height = 0;
-        
-        // If a comma separator exists, assume that the format is "w:123,h:123"
-        if (sizeValue.indexOf(",") != -1) {
-            // Split the String into two separate substrings using "," as the separator
-            String[] aspectRatio = sizeValue.split(",");
-            // This length of aspectRatio should always be 2. (If not, the "image.size" property of the original image is missing or malformatted.)
-            if (aspectRatio.length == 2) {
-                // We need to make sure the property is correctly formatted. Correct-format-example: aspectRatio[0]=w:400 and aspectRatio[1]=h:300
-                if (aspectRatio[0].lastIndexOf("w:") != -1 && aspectRatio[0].length() >= 3 && 
-                        aspectRatio[1].lastIndexOf("h:") != -1 && aspectRatio[1].length() >= 3) { 
-                    try {
-                        width = Integer.parseInt( aspectRatio[0].substring(aspectRatio[0].lastIndexOf(":") + 1, aspectRatio[0].length()));
-                        height = Integer.parseInt( aspectRatio[1].substring(aspectRatio[1].lastIndexOf(":")+ 1, aspectRatio[1].length()));
-                        int[] twoValues = { width, height };
-                        return twoValues;
-                    } catch (Exception e) {
-                        throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                            "': 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                            " The exception was: " +  e.getMessage()); 
-                    }
-                } 
-                else { 
-                    throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                        "': 'image.size' was missing either 'w:' or 'h:'. Correct format example: 'w:123,h:123'"); 
-                }
-            }
-            else { 
-                throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                    "': 'image.size' did not contain 2 elements, or did not use the correct separator sign. Correct format example: 'w:123,h:123'"); 
-            }
-        }
-        // No comma separator exists, assume that the value is a single number that should be the width
-        else {
-            try {
-                // The value should be a single number describing the width
-                width = Integer.parseInt(sizeValue);
-                int oneValue[] = {width};
-                return oneValue;
-            } catch (Exception e) {
-                throw new MalformedPropertyValueException("Property value was not of correct format for '" + resource.getName() + 
-                    "': 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                    " The exception was: " +  e.getMessage()); 
-            }
-        }
+        ImageSize size = ImageSize.read(cmso, resource);
+        return size == null ? null : size.toArray();
     }
     
     /**
@@ -714,57 +559,8 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @throws no.npolar.util.exception.MalformedPropertyValueException  If there is something wrong with the format of the property value.
      */
     public static int[] getImageSize(String propertyImageSizeValue) throws MalformedPropertyValueException {
-        // Get the property "image.size" as a String
-        String sizeValue = propertyImageSizeValue;
-        // Prevent NullPointerException
-        if (sizeValue == null)
-            return null;
-        // Initialize the main variables
-        int width = 0, height = 0;
-        
-        // If a comma separator exists, assume that the format is "w:123,h:123"
-        if (sizeValue.indexOf(",") != -1) {
-            // Split the String into two separate substrings using "," as the separator
-            String[] aspectRatio = sizeValue.split(",");
-            // This length of aspectRatio should always be 2. (If not, the "image.size" property of the original image is missing or malformatted.)
-            if (aspectRatio.length == 2) {
-                // We need to make sure the property is correctly formatted. Correct-format-example: aspectRatio[0]=w:400 and aspectRatio[1]=h:300
-                if (aspectRatio[0].lastIndexOf("w:") != -1 && aspectRatio[0].length() >= 3 && 
-                        aspectRatio[1].lastIndexOf("h:") != -1 && aspectRatio[1].length() >= 3) { 
-                    try {
-                        width = Integer.parseInt( aspectRatio[0].substring(aspectRatio[0].lastIndexOf(":") + 1, aspectRatio[0].length()));
-                        height = Integer.parseInt( aspectRatio[1].substring(aspectRatio[1].lastIndexOf(":")+ 1, aspectRatio[1].length()));
-                        int[] twoValues = { width, height };
-                        return twoValues;
-                    } catch (Exception e) {
-                        throw new MalformedPropertyValueException("Property value was not of correct format" +
-                            ": 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                            " The exception was: " +  e.getMessage()); 
-                    }
-                } 
-                else { 
-                    throw new MalformedPropertyValueException("Property value was not of correct format" + 
-                        ": 'image.size' was missing either 'w:' or 'h:'. Correct format example: 'w:123,h:123'"); 
-                }
-            }
-            else { 
-                throw new MalformedPropertyValueException("Property value was not of correct format" + 
-                    ": 'image.size' did not contain 2 elements, or did not use the correct separator sign. Correct format example: 'w:123,h:123'"); 
-            }
-        }
-        // No comma separator exists, assume that the value is a single number that should be the width
-        else {
-            try {
-                // The value should be a single number describing the width
-                width = Integer.parseInt(sizeValue);
-                int oneValue[] = {width};
-                return oneValue;
-            } catch (Exception e) {
-                throw new MalformedPropertyValueException("Property value was not of correct format" +
-                    ": 'image.size' contained a non-numeric value where numeric value was expected. Correct format example: 'w:123,h:123'." + 
-                    " The exception was: " +  e.getMessage()); 
-            }
-        }
+        ImageSize size = ImageSize.parse(propertyImageSizeValue);
+        return size == null ? null : size.toArray();
     }
     
     /**
@@ -1160,6 +956,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * since there are encoding issues with OpenCms' native methods.
      * <p>
      * NOTE: This method is ugly and uses hard-coded paths for the workplace files!!!
+     * (See {@link LabelService#VFS_BUNDLE_FOLDERS}.)
      * 
      * @param labelname  The label to get
      * @param locale  The locale (if anything but russian, OpenCms' native label() method is used)
@@ -1171,44 +968,10 @@ public class CmsAgent extends CmsJspXmlContentBean {
             return this.label(labelname);
         }
         // Give special treatment to russian stuff
-        else {
-            String filename = "workplace_"+locale.toLowerCase()+".properties";
-            String[] folders = new String[3];
-            folders[0] = "/system/modules/no.npolar.language/classes/no/npolar/language/"; //local machine
-            folders[1] = "/system/modules/no.npolar.site.ivorygull/classes/no/npolar/site/ivorygull/";
-            folders[2] = "/system/modules/no.npolar.common.newsbulletin/classes/no/npolar/common/newsbulletin/";
-            
-            java.util.HashMap mapping = new java.util.HashMap(); // Will hold key/value pairs of labels
-            
-            String workplaceFile = null;
-                String fileContent = null;
-                String[] lines;
-                String[] keysAndValues;
-
-                for (int j = 0; j < folders.length; j++) {
-                    workplaceFile = folders[j].concat(filename);
-                    
-                    if (this.getCmsObject().existsResource(workplaceFile)) {
-                        fileContent   = this.getContent(workplaceFile); // Get the file contents of the workplace file
-                        
-                        lines = fileContent.split("\\n");
-                        for (int i = 0; i < lines.length; i++) {
-                            if (lines[i].trim().length() > 0) {
-                                if (!lines[i].trim().substring(0,1).equals("#")) {
-                                    keysAndValues = lines[i].split("=");
-                                    if (keysAndValues.length == 2) {
-                                        mapping.put(keysAndValues[0], keysAndValues[1]);
-                                    }
-                                }
-                            }
-                        }
-                    }
-                }
-            String value = (String)mapping.get(labelname);
-            if (value == null)
-                return this.label(labelname);
-            return value;
-        }
+        LabelService.Template value = LabelService.getVfsLabel(this.getCmsObject(), labelname, locale);
+        if (value == null)
+            return this.label(labelname);
+        return value.toString();
     }
     
     /**
@@ -1227,11 +990,8 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @return the label
      */
     public String labelUnicode(String key) {
-        try {
-            return new String(this.label(key).getBytes("ISO-8859-1"), "UTF-8");
-        } catch (java.io.UnsupportedEncodingException e) {
-            return "[Default label: ".concat(this.label(key)).concat("]");
-        }
+        // Decoded once per locale and key
+        return LabelService.getWorkplaceLabel(this, key).toString();
     }
     
     /**
@@ -1245,7 +1005,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      */
     public String labelUnicode(String key, String ... params) {
         try {
-            return resolveLabelParameters(labelUnicode(key), params);
+            return LabelService.getWorkplaceLabel(this, key).format(params);
         } catch (Exception e) {
             return label(key);
         }
@@ -1259,11 +1019,7 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @return The given parameterized string, with parameters resolved (i.e. with the given parameter strings injected).
      */
     protected String resolveLabelParameters(String str, String ... params) {
-        String s = str;
-        for (int i = 0; i < params.length; i++){
-            s = s.replaceAll("\\{".concat(String.valueOf(i)).concat("\\}"), params[i]);
-        }
-        return s;
+        return new LabelService.Template(str).format(params);
     }
     
     /**
@@ -1276,24 +1032,18 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @param resourceUri the URI of the resource to resolve elements for
      * @return a list of paths to resources
      * @throws org.opencms.main.CmsException if reading property values fails
+     * @see HeaderElementCache
      */
     public List resolveHeaderElements(String property, String resourceUri) throws CmsException {
-        CmsObject cmso              = this.getCmsObject();
-        ArrayList<String> elements  = new ArrayList<String>();
-        String examineUri           = resourceUri;
-
-        while (examineUri != null) {
-            String propertyValue = cmso.readPropertyObject(examineUri, property, false).getValue();
-
-            if (propertyValue != null) {
-                String[] propertyValues = propertyValue.split(PROPERTY_VALUE_DELIMITER);
-                for (String value : propertyValues) {
-                    if (value != null) {
-                        elements.add(value);
-                    }
-                }
-            }
-            examineUri = CmsResource.getParentFolder(examineUri);
+        CmsObject cmso = this.getCmsObject();
+        if (CmsResource.isFolder(resourceUri)) {
+            return new ArrayList<String>(HeaderElementCache.getInherited(cmso, resourceUri, property));
+        }
+        List<String> elements = HeaderElementCache.readValues(cmso, resourceUri, property);
+        String parentFolder = CmsResource.getParentFolder(resourceUri);
+        if (parentFolder != null) {
+            // Inherited elements are cached per folder
+            elements.addAll(HeaderElementCache.getInherited(cmso, parentFolder, property));
         }
         return elements;
     }
@@ -1371,6 +1121,9 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * <p>
      * This method also takes the "blacklist" into consideration. The returned 
      * string can be inserted directly into the HTML &lt;head&gt; node.
+     * <p>
+     * If bundling is enabled, multiple stylesheets or javascripts are replaced 
+     * by a single bundle.
      * 
      * @param property one of the designated properties javascript, css or head.snippet
      * @param resourceUri the URI of the resource to get header elements for
@@ -1378,12 +1131,11 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @throws JspException if inclusion of a snippet goes wrong
      * @throws CmsException if a property cannot be accessed
      * @see #resolveHeaderElements(java.lang.String, java.lang.String) 
+     * @see AssetBundler
      */
     public String getHeaderElement(String property, String resourceUri) throws JspException, CmsException {
-        List headerElements = this.resolveHeaderElements(property, resourceUri);
-        List blacklist = this.getBlacklist(resourceUri);
-        // Remove blacklisted resources
-        headerElements.removeAll(blacklist);
+        // Blacklisted resources are removed (resolved lists are cached per folder)
+        List headerElements = HeaderElementCache.getHeaderElements(this.getCmsObject(), resourceUri, property);
         
         String headerSection = "";
 
@@ -1399,21 +1151,153 @@ public class CmsAgent extends CmsJspXmlContentBean {
             }
         }
         else if (property.equals(PROPERTY_CSS) || property.equals(PROPERTY_JAVASCRIPT)) {
-            if (!headerElements.isEmpty()) {
-                Iterator<String> itr = headerElements.iterator();
-                while (itr.hasNext()) {
-                    String resourcePath = itr.next();
-                    if (property.equals(PROPERTY_CSS))
-                        headerSection += "<link href=\"" + this.link(resourcePath) + "\" rel=\"stylesheet\" type=\"text/css\" />\n";
-                    else if (property.equals(PROPERTY_JAVASCRIPT))
-                        headerSection += "<script src=\"" + this.link(resourcePath) + "\" type=\"text/javascript\"></script>\n";
-                }
+            Iterator<String> itr = getHeaderElementLinks(property, headerElements).iterator();
+            while (itr.hasNext()) {
+                String link = itr.next();
+                if (property.equals(PROPERTY_CSS))
+                    headerSection += "<link href=\"" + link + "\" rel=\"stylesheet\" type=\"text/css\" />\n";
+                else if (property.equals(PROPERTY_JAVASCRIPT))
+                    headerSection += "<script src=\"" + link + "\" type=\"text/javascript\"></script>\n";
             }
         }
 
         return headerSection;
     }
     
+    /**
+     * Gets the links to the given CSS or javascript header elements, replacing 
+     * them by a single bundle if bundling is enabled.
+     * 
+     * @param property either {@link #PROPERTY_CSS} or {@link #PROPERTY_JAVASCRIPT}
+     * @param headerElements the resolved (blacklist-filtered) header elements
+     * @return the links, ready to use in the HTML
+     * @see AssetBundler
+     */
+    protected List<String> getHeaderElementLinks(String property, List<String> headerElements) {
+        if (headerElements.size() > 1 && AssetBundler.isEnabled()) {
+            // Try bundling all elements into one (null if not possible)
+            String bundleUri = AssetBundler.getBundleUri(this.getCmsObject(), 
+                    headerElements, 
+                    property.equals(PROPERTY_CSS) ? AssetBundler.TYPE_CSS : AssetBundler.TYPE_JS);
+            if (bundleUri != null) {
+                headerElements = Collections.singletonList(bundleUri);
+            }
+        }
+        List<String> links = new ArrayList<String>(headerElements.size());
+        Iterator<String> itr = headerElements.iterator();
+        while (itr.hasNext()) {
+            links.add(this.link(itr.next()));
+        }
+        return links;
+    }
+    
+    /**
+     * Convenience method for getting preload hints for the requested 
+     * resource's CSS and javascripts.
+     * 
+     * @return preload link elements for the requested resource's CSS and javascripts
+     * @throws CmsException if a property cannot be accessed
+     * @see #getPreloadHints(no.npolar.util.ImageUtil.ImageSources)
+     */
+    public String getPreloadHints() throws CmsException {
+        return getPreloadHints((ImageUtil.ImageSources)null);
+    }
+    
+    /**
+     * Convenience method for getting preload hints for the requested 
+     * resource's CSS and javascripts, and the given hero image - using the 
+     * default {@link ImageUtil} settings for the image.
+     * 
+     * @param heroImageUri the URI of the page's most important image (typically the largest image in the initial viewport), or null if none
+     * @return preload link elements for the requested resource's CSS and javascripts, and the given hero image
+     * @throws CmsException if a property cannot be accessed
+     * @see #getPreloadHints(no.npolar.util.ImageUtil.ImageSources)
+     */
+    public String getPreloadHints(String heroImageUri) throws CmsException {
+        ImageUtil.ImageSources heroImage = null;
+        if (heroImageUri != null && !heroImageUri.isEmpty()) {
+            try {
+                heroImage = ImageUtil.getImageSources(this, 
+                        heroImageUri, 
+                        ImageUtil.CROP_RATIO_NO_CROP, 
+                        ImageUtil.DEFAULT_MAX_WIDTH, 
+                        ImageUtil.DEFAULT_MAX_VP_WIDTH, 
+                        ImageUtil.DEFAULT_SIZE, 
+                        ImageUtil.DEFAULT_QUALITY, 
+                        ImageUtil.DEFAULT_BREAKPOINT);
+            } catch (Exception e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Unable to preload hero image '" + heroImageUri + "': " + e.getMessage());
+                }
+            }
+        }
+        return getPreloadHints(heroImage);
+    }
+    
+    /**
+     * Gets preload hints for the requested resource's CSS and javascripts 
+     * (the same ones that {@link #getCss()} and {@link #getJavascript()} 
+     * produce), and for the given hero image.
+     * <p>
+     * Each asset is hinted twice: as a <code>Link: &lt;...&gt;; rel=preload</code> 
+     * response header (if the response is not yet committed), and as a 
+     * returned <code>&lt;link rel="preload"&gt;</code> element. Both allow the 
+     * browser to start fetching the assets before it has parsed the HTML head, 
+     * so this method should be invoked as early as possible - before any 
+     * content is written.
+     * 
+     * @param heroImage the srcset/sizes/src values of the page's most important image, or null if none (see {@link ImageUtil#getImageSources(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, int, int, int, int, java.lang.String)})
+     * @return preload link elements, ready to be inserted into the HTML &lt;head&gt; node
+     * @throws CmsException if a property cannot be accessed
+     */
+    public String getPreloadHints(ImageUtil.ImageSources heroImage) throws CmsException {
+        String resourceUri = this.getRequestContext().getUri();
+        CmsObject cmso = this.getCmsObject();
+        StringBuilder hints = new StringBuilder(512);
+        
+        if (heroImage != null) {
+            String attrs = "";
+            String params = "";
+            if (!heroImage.getSrcset().isEmpty()) {
+                attrs = " imagesrcset=\"" + heroImage.getSrcset() + "\" imagesizes=\"" + heroImage.getSizes() + "\"";
+                params = "; imagesrcset=\"" + heroImage.getSrcset() + "\"; imagesizes=\"" + heroImage.getSizes() + "\"";
+            }
+            addPreload(hints, heroImage.getSrc(), "image", attrs + " fetchpriority=\"high\"", params);
+        }
+        Iterator<String> itr = getHeaderElementLinks(PROPERTY_CSS, 
+                HeaderElementCache.getHeaderElements(cmso, resourceUri, PROPERTY_CSS)).iterator();
+        while (itr.hasNext()) {
+            addPreload(hints, itr.next(), "style", "", "");
+        }
+        itr = getHeaderElementLinks(PROPERTY_JAVASCRIPT, 
+                HeaderElementCache.getHeaderElements(cmso, resourceUri, PROPERTY_JAVASCRIPT)).iterator();
+        while (itr.hasNext()) {
+            addPreload(hints, itr.next(), "script", "", "");
+        }
+        return hints.toString();
+    }
+    
+    /**
+     * Adds a preload hint for the given link, both as a <code>Link</code> 
+     * response header (if the response is not yet committed) and as a 
+     * <code>&lt;link rel="preload"&gt;</code> element.
+     * 
+     * @param hints the buffer to append the link element to
+     * @param link the link (as used in the HTML, i.e. with any ampersands escaped)
+     * @param as the destination, e.g. "style"
+     * @param attrs any additional attributes for the link element (with leading space), or an empty string
+     * @param params any additional parameters for the Link header (with leading "; "), or an empty string
+     */
+    private void addPreload(StringBuilder hints, String link, String as, String attrs, String params) {
+        hints.append("<link rel=\"preload\" href=\"").append(link).append("\" as=\"").append(as).append("\"")
+                .append(attrs).append(" />\n");
+        HttpServletResponse response = this.getResponse();
+        if (!response.isCommitted()) {
+            response.addHeader("Link", "<" + link.replace("&amp;", "&") + ">; rel=preload; as=" + as 
+                    + params.replace("&amp;", "&"));
+        }
+    }
+    
     /**
      * Obfuscates all e-mail addresses in a text using javascript, making the e-mail
      * addresses more difficult for crawlers to detect. 
@@ -1431,55 +1315,8 @@ public class CmsAgent extends CmsJspXmlContentBean {
         if (txt == null)
             return "";
         
-        String text = txt;
-
-        Pattern p = Pattern.compile(MAILTO_REGEX_PATTERN);
-        Matcher m = p.matcher(text); // Get a Matcher object
-        String match = null;
-        int offset = 0; // The offset is important, since we'll be altering the text string during inside while (m.find())
-        String jsCode = null; // The javascript code that will replace the original text
-        Map swapMap = new HashMap<String, String>();
-        
-        // Find each mailto:-occurence and map it to its javascript equivalent
-        while(m.find()) {
-            match = text.substring(m.start() + offset, m.end() + offset);
-            jsCode = getJavascriptMailto(match);
-            swapMap.put(match, jsCode);
-            //text = text.replace(match, jsCode);
-            //offset += (jsCode.length() - match.length());
-        }
-        
-        Set keys = swapMap.keySet();
-        Iterator iKeys = keys.iterator();
-        while (iKeys.hasNext()) {
-            String key = (String)iKeys.next();
-            text = text.replace(key, (String)swapMap.get(key));
-        }
-        
-        // Now replace all remaining plain text addresses
-        p = Pattern.compile(EMAIL_REGEX_PATTERN);
-        m = p.matcher(text); // Get a Matcher object
-        match = null;
-        offset = 0;
-        jsCode = null;
-        swapMap.clear();
-        // Find each email address and map it to its javascript equivalent
-        while(m.find()) {
-            match = text.substring(m.start() + offset, m.end() + offset);
-            jsCode = getJavascriptEmail(match, createAsMailtoLink, null);
-            swapMap.put(match, jsCode);
-            //text = text.replaceFirst(match, jsCode);
-            //offset += (jsCode.length() - match.length());
-        }
-        
-        keys = swapMap.keySet();
-        iKeys = keys.iterator();
-        while (iKeys.hasNext()) {
-            String key = (String)iKeys.next();
-            text = text.replace(key, (String)swapMap.get(key));
-        }
-        
-        return text;
+        // Single pass, memoized per content hash
+        return EmailObfuscator.obfuscate(txt, createAsMailtoLink);
     }
     
     /**
@@ -1593,25 +1430,11 @@ public class CmsAgent extends CmsJspXmlContentBean {
      * @throws java.lang.IllegalArgumentException if the tag is not formatted correctly.
      */
     protected static String getAttribValue(String tagCode, String attribName) throws IllegalArgumentException {
-        final String VALUE_START_TOKEN = "=\"";
-        String[] tagSplit = tagCode.split(">");
-        
-        if (tagSplit.length < 2) {
+        TagAttributes attributes = TagAttributes.parse(tagCode);
+        if (attributes.getEnd() < 0) {
             throw new IllegalArgumentException("Argument string was not a well-formed tag, required character '>' was missing.");
         }
-        
-        String attrib = null;
-        
-        try {
-            if (tagSplit[0].contains(attribName.concat("="))) {
-                int startIndex = tagSplit[0].indexOf(attribName.concat(VALUE_START_TOKEN)) + attribName.length() + VALUE_START_TOKEN.length();            
-                attrib = tagSplit[0].substring(startIndex);
-                attrib = attrib.substring(0, attrib.indexOf("\""));
-            }
-        } catch (Exception e) {
-            throw new IllegalArgumentException("Argument string was not correctly formatted, is the character sequence '" + attribName + "=\"...\"' missing?");
-        }
-        return attrib;
+        return attributes.get(attribName);
     }
     
     /**
@@ -1625,13 +1448,8 @@ public class CmsAgent extends CmsJspXmlContentBean {
      */
     public static String getTagStringValue(String tag) throws IllegalArgumentException {
         try {
-            // tag = "<tag ....>Value</tag>"
-            String[] tagSplit = tag.split(">");
-            // tagSplit[0] = "<tag"
-            // tagSplit[1] = "Value</tag"
-            String val = tagSplit[1].substring(0, tagSplit[1].indexOf("<"));
-            // val = "Value"
-            return val;
+            // tag = "<tag ....>Value</tag>" -> "Value"
+            return TagAttributes.getText(tag);
         } catch (Exception e) {
             throw new IllegalArgumentException("Argument string '" + tag + "' was not a well-formed tag.");
         }
@@ -1640,37 +1458,15 @@ public class CmsAgent extends CmsJspXmlContentBean {
     /**
      * Returns a map containing all attributes within a tag, where the map keys 
      * are the attribute names and the map values are the attribute values.
+     * <p>
+     * The map preserves the order of the attributes in the tag.
      * 
      * @param tag The complete HTML/XML tag.
      * @return A map of all attributes, or an empty map if none.
      */
     public static Map getTagAttributesAsMap(String tag) {
-        final String VALUE_START_TOKEN = "=\"";
-        final String VALUE_END_TOKEN = "\"";
-        
-        HashMap attribs = new HashMap();
-        
         try {
-            /*String[] tagSplit = tag.split(">");
-            allAttribs = tagSplit[0].trim().substring(tagSplit[0].indexOf(" ")).trim();*/
-            
-            // Separate the opening tag in a string
-            String openingTag = (tag.endsWith(" />")) ? tag.replace(" />", "") : tag.split(">")[0];
-            
-            // Separate the attributes contained in the opening tag in a string
-            String allAttribs = openingTag.trim().substring(openingTag.indexOf(" ")).trim();
-            
-            while (allAttribs.length() > 0) {
-                int firstQuoteIndex = allAttribs.indexOf(VALUE_START_TOKEN) + 1;
-                int secondQuoteIndex = allAttribs.indexOf(VALUE_END_TOKEN, firstQuoteIndex + 1);
-                String attrib = allAttribs.substring(0, secondQuoteIndex + 1);
-                String key = attrib.substring(0, attrib.indexOf(VALUE_START_TOKEN));
-                String val = attrib.substring(attrib.indexOf(VALUE_START_TOKEN)+2);
-                val = val.substring(0, val.length() - 1);
-                attribs.put(key, val);
-                allAttribs = allAttribs.replace(attrib, "").trim();
-            }
-            return attribs;
+            return TagAttributes.parse(tag).toMap();
         } catch (Exception e) {
             throw new IllegalArgumentException("Argument string '" + tag + "' was not a well-formed tag. (" + e.getMessage() + ")");
         }
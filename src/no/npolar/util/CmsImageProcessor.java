@@ -21,6 +21,11 @@ import javax.servlet.ServletException;
 import org.opencms.i18n.CmsMessageContainer;
 import org.opencms.relations.CmsRelationType;
 import org.opencms.util.CmsUUID;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import javax.imageio.ImageIO;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
 
 /**
  * CmsImageProcessor provides useful functions for processing images, primarily
@@ -46,6 +51,20 @@ public class CmsImageProcessor extends CmsImageScaler {
     public static final String FOLDER_URI_ENDING = "/";
     public static final String RELATION_TYPE_SCALED_IMAGE_VERSION_NAME = "SCALED_IMAGE_VERSION";
     public static final int IMAGE_SCALE_TYPE = 3;
+    /** Images smaller than this (width x height) are never resampled in parallel. */
+    public static final int PARALLEL_RESAMPLING_MIN_PIXELS = 2000000;
+    
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(CmsImageProcessor.class);
+    /** The shared parallel resampler. */
+    private static final ParallelImageResampler RESAMPLER = new ParallelImageResampler();
+    /** The shared sequential resampler (same filter, runs in the calling thread). */
+    private static final ParallelImageResampler SEQUENTIAL_RESAMPLER = new ParallelImageResampler(false);
+    
+    /** Flag indicating whether or not large images should be resampled in parallel. */
+    private boolean parallelResampling = false;
+    /** Flag indicating whether or not scaled images should be byte-optimized. */
+    private boolean optimizeEncoding = true;
     
     /**
      * Creates a new, empty image processor object.
@@ -216,8 +235,8 @@ public class CmsImageProcessor extends CmsImageScaler {
         
         // Get the original (fullsize) image as a CmsResource
         CmsResource original = cmso.readDefaultFile(imagePath);
-        // Get the property "image.size" from the original image. This property holds the width and height of the image.
-        int[] imageSize = CmsAgent.getImageSize(cmso.readPropertyObject(original, "image.size", false).getValue());
+        // Get the width and height of the original image, from its "image.size" property (or, if necessary, from the image header)
+        int[] imageSize = CmsAgent.getImageSize(cmso, original);
         // Error check the image's "image.size" property
         if (imageSize == null) {
             throw new MissingPropertyException("Could not find any value for property 'image.size' on the original image file '" + imagePath + "'.");
@@ -265,8 +284,12 @@ public class CmsImageProcessor extends CmsImageScaler {
         
         // Read the existing fullsize image
         CmsFile imageFile = cmso.readFile(imagePath);
-        // Get the raw data for a scaled version of the fullsize image
-        byte[] imageRawData = this.scaleImage(imageFile);
+        // Get the raw data for a scaled version of the fullsize image - reuse an identical, existing thumbnail if possible
+        String thumbnailKey = ThumbnailIndex.createKey(cmso, imageFile, this);
+        byte[] imageRawData = ThumbnailIndex.get(cmso, thumbnailKey);
+        if (imageRawData == null) {
+            imageRawData = this.scaleImage(imageFile);
+        }
         // Create a list for resource properties
         ArrayList resourceProperties = new ArrayList(); 
         // Create an empty property
@@ -281,6 +304,7 @@ public class CmsImageProcessor extends CmsImageScaler {
                             org.opencms.file.types.CmsResourceTypeImage.getStaticTypeId(),
                             imageRawData,
                             resourceProperties);
+        ThumbnailIndex.put(thumbnailKey, thumb);
         // Remove any existing locks before publishing (Note: will cause an error if inherited lock exists)
         cmso.unlockResource(thumbnailPath);
         if (publishDirectly) {
@@ -390,8 +414,8 @@ public class CmsImageProcessor extends CmsImageScaler {
         CmsResource thumb = null;
         // Get the original (fullsize) image as a CmsResource
         CmsResource original = cmso.readResource(imagePath);//readDefaultFile(imagePath);
-        // Get the property "image.size" from the original image. This property holds the width and height of the image.
-        int[] imageSize = CmsAgent.getImageSize(cmso.readPropertyObject(original, "image.size", false).getValue());
+        // Get the width and height of the original image, from its "image.size" property (or, if necessary, from the image header)
+        int[] imageSize = CmsAgent.getImageSize(cmso, original);
         // Error check the image's "image.size" property
         if (imageSize == null) {
             throw new MissingPropertyException("Could not find any value for property 'image.size' on the original image file '" + imagePath + "'.");
@@ -439,8 +463,12 @@ public class CmsImageProcessor extends CmsImageScaler {
         
         // Read the existing fullsize image
         CmsFile imageFile = cmso.readFile(imagePath);
-        // Get the raw data for a scaled version of the fullsize image
-        byte[] imageRawData = this.scaleImage(imageFile);
+        // Get the raw data for a scaled version of the fullsize image - reuse an identical, existing thumbnail if possible
+        String thumbnailKey = ThumbnailIndex.createKey(cmso, imageFile, this);
+        byte[] imageRawData = ThumbnailIndex.get(cmso, thumbnailKey);
+        if (imageRawData == null) {
+            imageRawData = this.scaleImage(imageFile);
+        }
         // Create a list for resource properties
         ArrayList resourceProperties = new ArrayList(); 
         // Create an empty property
@@ -463,6 +491,7 @@ public class CmsImageProcessor extends CmsImageScaler {
         } catch (Exception e) {
             throw new NullPointerException("Thumbnail resource creation failed. " + e.getMessage());
         }
+        ThumbnailIndex.put(thumbnailKey, thumb);
         
         // Remove any existing locks before publishing (Note: will cause an error if inherited lock exists)
         cmso.unlockResource(thumbnailPath);
@@ -527,6 +556,38 @@ public class CmsImageProcessor extends CmsImageScaler {
                                                                             MissingPropertyException,
                                                                             DeleteResourceException, 
                                                                             PublishException {
+        return generateThumbnail(cmso, fullsizePath, thumbnailFolder, null);
+    }
+    
+    /**
+     * Generates a thumbnail image inside the given folder, like 
+     * {@link #generateThumbnail(org.opencms.file.CmsObject, java.lang.String, java.lang.String)}, 
+     * but optionally deferring the follow-up VFS writes to the given batch.
+     * <p>
+     * If a batch is given, new thumbnail folders are not published right 
+     * away, and the relation between the image and the thumbnail is not 
+     * written right away. Instead, both are added to the batch, and done when 
+     * the batch is committed. If the original image is published (unchanged), 
+     * the thumbnail and the original are also added to the batch's publish 
+     * list.
+     * 
+     * @param cmso  Initialized CmsObject
+     * @param fullsizePath the path to the image to create a thumbnail of
+     * @param thumbnailFolder the path to the thumbnail folder (the folder will be created if it doesn't exist)
+     * @param batch  the batch to add follow-up writes to, or null to do them right away
+     * @return the created thumbnail image resource
+     * @see ThumbnailBatch#commit(org.opencms.file.CmsObject)
+     */
+    public CmsResource generateThumbnail(CmsObject cmso, 
+                                            String fullsizePath, 
+                                            String thumbnailFolder,
+                                            ThumbnailBatch batch) throws ServletException, 
+                                                                            CmsException,
+                                                                            IllegalArgumentException,
+                                                                            MalformedPropertyValueException,
+                                                                            MissingPropertyException,
+                                                                            DeleteResourceException, 
+                                                                            PublishException {
         //
         // Initial checks, examine existence and types of files/folders
         //
@@ -603,11 +664,15 @@ public class CmsImageProcessor extends CmsImageScaler {
                 throw new ServletException(Messages.get().container(Messages.ERR_PROP_UPDATE_FAILED_2, thumbnailFolder, e.getMessage()).key());
                 //throw new ServletException("Thumbnail property update failed: " + e.getMessage());
             }
-            try {
-                OpenCms.getPublishManager().publishResource(cmso, cmso.getSitePath(thumbnailFolderResource));
-            } catch (Exception e) {
-                throw new PublishException(Messages.get().container(Messages.ERR_RESOURCE_CREATED_NOT_PUBLISHED_2, e.getMessage()).key());
-                //throw new PublishException("Thumbnail folder was created, but not published: " + e.getMessage());
+            if (batch != null) {
+                batch.addPublish(thumbnailFolderResource);
+            } else {
+                try {
+                    OpenCms.getPublishManager().publishResource(cmso, cmso.getSitePath(thumbnailFolderResource));
+                } catch (Exception e) {
+                    throw new PublishException(Messages.get().container(Messages.ERR_RESOURCE_CREATED_NOT_PUBLISHED_2, e.getMessage()).key());
+                    //throw new PublishException("Thumbnail folder was created, but not published: " + e.getMessage());
+                }
             }
         }
         
@@ -618,9 +683,8 @@ public class CmsImageProcessor extends CmsImageScaler {
         CmsResource thumbnailResource = null;
         // Get the original (fullsize) image as a CmsResource
         CmsResource fullsizeResource = cmso.readResource(fullsizePath);//readDefaultFile(imagePath);
-        // Get the property "image.size" from the original image. This property holds the width and height of the image.
-        int[] imageSize = CmsAgent.getImageSize(cmso.readPropertyObject(fullsizeResource, 
-                                                                        CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue());
+        // Get the width and height of the original image, from its "image.size" property (or, if necessary, from the image header)
+        int[] imageSize = CmsAgent.getImageSize(cmso, fullsizeResource);
         // Error check the image's "image.size" property
         if (imageSize == null) {
             throw new PublishException(Messages.get().container(Messages.ERR_MISSING_PROPERTY_VALUE_2, 
@@ -673,8 +737,12 @@ public class CmsImageProcessor extends CmsImageScaler {
         
         // Read the existing fullsize image
         CmsFile imageFile = cmso.readFile(fullsizePath);
-        // Get the raw data for the downscaled version of the fullsize image
-        byte[] imageRawData = this.scaleImage(imageFile);
+        // Get the raw data for the downscaled version of the fullsize image - reuse an identical, existing thumbnail if possible
+        String thumbnailKey = ThumbnailIndex.createKey(cmso, imageFile, this);
+        byte[] imageRawData = ThumbnailIndex.get(cmso, thumbnailKey);
+        if (imageRawData == null) {
+            imageRawData = this.scaleImage(imageFile);
+        }
         // Create a list for resource properties
         ArrayList resourceProperties = new ArrayList(); 
         // Create an empty property
@@ -695,6 +763,7 @@ public class CmsImageProcessor extends CmsImageScaler {
             throw new NullPointerException(Messages.get().container(Messages.ERR_RESOURCE_CREATION_FAILED_2, thumbnailPath, e.getMessage()).key());
             //throw new NullPointerException("Thumbnail resource creation failed: " + e.getMessage());
         }
+        ThumbnailIndex.put(thumbnailKey, thumbnailResource);
         
         //
         // Thumbnail resource creation done, ready to publish
@@ -729,7 +798,11 @@ public class CmsImageProcessor extends CmsImageScaler {
         } catch (IllegalArgumentException iae) {
             // Do nothing, relation type REFERENCED_IMAGE has not been configured
         }
-        if (referencedImage != null) {
+        if (referencedImage != null && batch != null) {
+            // Deferred: all relations for the original are written in one lock window
+            batch.addRelation(fullsizeResource, thumbnailResource, referencedImage.getName());
+        }
+        else if (referencedImage != null) {
             try {
                 if (cmso.getLock(fullsizePath).isNullLock())
                     cmso.lockResource(fullsizePath);
@@ -737,6 +810,7 @@ public class CmsImageProcessor extends CmsImageScaler {
                     throw new NullPointerException("Unable to set lock on resource '" + fullsizePath + "'.");
                 }
                 cmso.addRelationToResource(fullsizePath, thumbnailPath, referencedImage.getName());
+                ThumbnailRelationIndex.add(fullsizeResource.getStructureId(), thumbnailResource.getStructureId());
                 if (!cmso.getLock(fullsizePath).isUnlocked())
                     cmso.unlockResource(fullsizePath);
                 // Publish the fullsize image if it was unchanged prior to adding the relation
@@ -759,6 +833,12 @@ public class CmsImageProcessor extends CmsImageScaler {
                 //throw new CmsException("Could not add a relation between the fullsize image and its thumbnail: " + cmse.getMessage());
             }
         }
+        // Publish the thumbnail (and the original, now modified by the relation) along with the batch, if the original was published
+        if (batch != null && fullsizeImageIsStateUnchanged) {
+            batch.addPublish(thumbnailResource);
+            batch.addPublish(fullsizeResource);
+        }
+        
         // Run garbage collector
         java.lang.Runtime.getRuntime().gc();
         System.gc();
@@ -872,6 +952,35 @@ public class CmsImageProcessor extends CmsImageScaler {
                                                                                             MissingPropertyException,
                                                                                             DeleteResourceException, 
                                                                                             PublishException {
+        // Collect publishing and relation writes, and do them all at once
+        ThumbnailBatch batch = new ThumbnailBatch();
+        try {
+            return generateAllThumbnails(cmso, imageResource, batch);
+        } finally {
+            // Commit also if a thumbnail failed, so that the ones created so far are related (and published)
+            batch.commit(cmso);
+        }
+    }
+    
+    /**
+     * Generates a thumbnail image in each folder that is on the same level as the
+     * original image, adding all follow-up writes to the given batch. 
+     * <p>
+     * The caller is responsible for committing the batch.
+     * 
+     * @param cmso  Initialized CmsObject
+     * @param imageResource  The original image
+     * @param batch  The batch to add follow-up writes to
+     * @return  List of generated thumbnails. Each item in the list is a CmsResource.
+     * @see #generateThumbnail(org.opencms.file.CmsObject, java.lang.String, java.lang.String, no.npolar.util.ThumbnailBatch)
+     */
+    public List generateAllThumbnails(CmsObject cmso, CmsResource imageResource, ThumbnailBatch batch) throws ServletException, 
+                                                                                            CmsException,
+                                                                                            IllegalArgumentException,
+                                                                                            MalformedPropertyValueException,
+                                                                                            MissingPropertyException,
+                                                                                            DeleteResourceException, 
+                                                                                            PublishException {
         String imagePath            = cmso.getSitePath(imageResource);
         // List of subfolders + iterator
         List thumbsFolders          = cmso.getSubFolders(CmsResource.getFolderPath(imagePath));
@@ -883,13 +992,164 @@ public class CmsImageProcessor extends CmsImageScaler {
         // Loop over all the subfolders, put a thumbnail in each
         while (i.hasNext()) {
             thumbnailFolder = (CmsResource)i.next();
-            thumb = generateThumbnail(cmso, imagePath, cmso.getSitePath(thumbnailFolder));
+            thumb = generateThumbnail(cmso, imagePath, cmso.getSitePath(thumbnailFolder), batch);
             thumbs.add(thumb);
         }
         // Return the list of thumbnails
         return thumbs;
     }
     
+    /**
+     * Sets whether or not large images should be resampled in parallel, using 
+     * {@link ParallelImageResampler}, when scaling. Default is false.
+     * <p>
+     * Only plain downscales of large JPEG and PNG images (no cropping or 
+     * filters, and the aspect ratio is kept) are resampled in parallel. All other scale operations are 
+     * handled sequentially, see {@link #scaleImage(org.opencms.file.CmsFile)}.
+     * 
+     * @param parallelResampling  If true, large images are resampled in parallel.
+     */
+    public void setParallelResampling(boolean parallelResampling) {
+        this.parallelResampling = parallelResampling;
+    }
+    
+    /**
+     * Gets whether or not large images are resampled in parallel.
+     * 
+     * @return  True if large images are resampled in parallel, false if not.
+     * @see #setParallelResampling(boolean)
+     */
+    public boolean isParallelResampling() {
+        return parallelResampling;
+    }
+    
+    /**
+     * Sets whether or not scaled images should be byte-optimized, using 
+     * {@link ImageVariantEncoder}. Default is true.
+     * <p>
+     * With optimization, plain downscales of JPEG images are decoded, 
+     * resampled and encoded once by {@link ImageVariantEncoder} (progressive, 
+     * tuned chroma subsampling), also when parallel resampling is disabled. 
+     * All other output is optimized losslessly, see 
+     * {@link ImageVariantEncoder#optimize(byte[], java.lang.String)}.
+     * 
+     * @param optimizeEncoding  If true, scaled images are byte-optimized.
+     */
+    public void setOptimizeEncoding(boolean optimizeEncoding) {
+        this.optimizeEncoding = optimizeEncoding;
+    }
+    
+    /**
+     * Gets whether or not scaled images are byte-optimized.
+     * 
+     * @return  True if scaled images are byte-optimized, false if not.
+     * @see #setOptimizeEncoding(boolean)
+     */
+    public boolean isOptimizeEncoding() {
+        return optimizeEncoding;
+    }
+    
+    /**
+     * Returns a scaled version of the given image file, according to the 
+     * parameters of this scaler.
+     * <p>
+     * Plain downscales (no cropping, no filters, scale type 3 or 4, aspect 
+     * ratio kept) are resampled and encoded here, by 
+     * {@link ImageVariantEncoder#encode(java.awt.image.BufferedImage, java.lang.String, int)}, 
+     * if either
+     * <ul>
+     * <li>parallel resampling is enabled, and the image is large (it is then 
+     * resampled in parallel), or</li>
+     * <li>encoding optimization is enabled, and the image is a JPEG (so the 
+     * thumbnail is compressed once, and written progressive).</li>
+     * </ul>
+     * Otherwise, or if this fails, the default OpenCms scaling is used. If 
+     * encoding optimization is enabled, its output is passed through 
+     * {@link ImageVariantEncoder#optimize(byte[], java.lang.String)}, which 
+     * never adds a second lossy compression.
+     * 
+     * @param file  The image file to scale.
+     * @return  The scaled image data.
+     * @see #setParallelResampling(boolean)
+     * @see #setOptimizeEncoding(boolean)
+     */
+    @Override
+    public byte[] scaleImage(CmsFile file) {
+        if (parallelResampling || optimizeEncoding) {
+            try {
+                byte[] scaled = resampleAndEncode(file);
+                if (scaled != null) {
+                    return scaled;
+                }
+            } catch (Exception e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error("Resampling of image '" + file.getRootPath() + "' failed, using default scaling.", e);
+                }
+            }
+        }
+        byte[] scaled = super.scaleImage(file);
+        return optimizeEncoding ? ImageVariantEncoder.optimize(scaled, file.getRootPath()) : scaled;
+    }
+    
+    /**
+     * Scales the given image file using {@link ParallelImageResampler} and 
+     * {@link ImageVariantEncoder}, if possible.
+     * 
+     * @param file  The image file to scale.
+     * @return  The scaled image data, or null if the default OpenCms scaling should be used for this image.
+     * @throws Exception  If anything goes wrong.
+     */
+    private byte[] resampleAndEncode(CmsFile file) throws Exception {
+        String format = ImageVariantEncoder.getFormatName(file.getRootPath());
+        if (format == null) {
+            return null;
+        }
+        if (!isPlainResize()) {
+            return null;
+        }
+        byte[] content = file.getContents();
+        int[] size = ImageSizeProbe.readDimensions(content);
+        int width = getWidth();
+        int height = getHeight();
+        if (size == null 
+                || width <= 0 || height <= 0
+                || width >= size[0] || height >= size[1]) {
+            return null;
+        }
+        // Only plain resizes: the target must keep the aspect ratio (allowing for rounding)
+        if (Math.abs(getNewHeight(width, size[0], size[1]) - height) > 1) {
+            return null;
+        }
+        boolean parallel = parallelResampling && (long)size[0] * size[1] >= PARALLEL_RESAMPLING_MIN_PIXELS;
+        if (!parallel && !(optimizeEncoding && "jpeg".equals(format))) {
+            return null;
+        }
+        
+        BufferedImage source = ImageIO.read(new ByteArrayInputStream(content));
+        if (source == null) {
+            return null;
+        }
+        BufferedImage scaled = (parallel ? RESAMPLER : SEQUENTIAL_RESAMPLER).resample(source, width, height);
+        if (scaled.isAlphaPremultiplied()) {
+            scaled.coerceData(false);
+        }
+        
+        return ImageVariantEncoder.encode(scaled, format, getQuality());
+    }
+    
+    /**
+     * Determines whether or not the parameters of this scaler describe a plain 
+     * resize: no cropping, no filters, and a scale type that neither crops 
+     * nor pads (so no position or background color applies).
+     * 
+     * @return  True if the parameters of this scaler describe a plain resize, false if not.
+     */
+    private boolean isPlainResize() {
+        return !isCropping()
+                && (getFilters() == null || getFilters().isEmpty())
+                && (getType() == IMAGE_SCALE_TYPE || getType() == ImageUtil.SCALE_TYPE_NOCROP);
+    }
+    
     /**
      * Calculates a new height based on the new width, preserving the aspect ratio.
      * @param newWidth  The new width
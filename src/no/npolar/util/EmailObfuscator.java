@@ -0,0 +1,262 @@
+package no.npolar.util;
+
+import java.io.UnsupportedEncodingException;
+
+/**
+ * Single-pass scanner that obfuscates e-mail addresses in HTML, replacing
+ * both <code>mailto</code> links and plain text addresses with javascript.
+ * <p>
+ * The text is scanned once, left to right, and the output is built in a
+ * single buffer. Addresses are recognized by scanning outwards from each
+ * "@", so there is no backtracking. Addresses inside tags (e.g. in attribute
+ * values other than <code>mailto</code> links) and inside
+ * <code>script</code> elements are left untouched.
+ * <p>
+ * Results are memoized per content hash, as the same contact blocks tend to
+ * appear on many pages.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#obfuscateEmailAddr(java.lang.String, boolean)
+ */
+public class EmailObfuscator {
+    /** The max. number of memoized results. */
+    private static final int MAX_MEMOIZED = 500;
+    /** The max. length of the local part of an address. */
+    private static final int MAX_LOCAL_LENGTH = 64;
+    /** The max. length of the domain part of an address. */
+    private static final int MAX_DOMAIN_LENGTH = 255;
+    /** The special (non-alphanumeric) characters allowed in the local part of an address. */
+    private static final String LOCAL_SPECIALS = "!#$%&'*+/=?^_`{|}~-.";
+    /** The mailto prefix. */
+    private static final String MAILTO = "mailto:";
+    /** The anchor end tag. */
+    private static final String ANCHOR_END = "</a>";
+
+    /** Memoized results, keyed by mode + content hash. */
+    private static final LruCache<String, String> memoized = new LruCache<String, String>(MAX_MEMOIZED);
+
+    /**
+     * Obfuscates all e-mail addresses in the given text.
+     *
+     * @param text The text to process.
+     * @param createAsMailtoLink If true, addresses in plaintext will be converted to mailto links.
+     * @return The obfuscated text.
+     * @see CmsAgent#getJavascriptMailto(java.lang.String)
+     * @see CmsAgent#getJavascriptEmail(java.lang.String, boolean, java.lang.String)
+     */
+    public static String obfuscate(String text, boolean createAsMailtoLink) {
+        if (text.indexOf('@') < 0) {
+            return text;
+        }
+        String key;
+        try {
+            key = (createAsMailtoLink ? "1:" : "0:") + ScaledImageStore.digest(text.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            return scan(text, createAsMailtoLink);
+        }
+        String result = memoized.get(key);
+        if (result == null) {
+            result = scan(text, createAsMailtoLink);
+            memoized.put(key, result);
+        }
+        return result;
+    }
+
+    /**
+     * Removes all memoized results.
+     */
+    public static void clear() {
+        memoized.clear();
+    }
+
+    /**
+     * Scans the given text, obfuscating all e-mail addresses.
+     *
+     * @param text The text to process.
+     * @param createAsMailtoLink If true, addresses in plaintext will be converted to mailto links.
+     * @return The obfuscated text.
+     */
+    protected static String scan(String text, boolean createAsMailtoLink) {
+        int len = text.length();
+        StringBuilder sb = new StringBuilder(len + 512);
+        int copied = 0; // Everything before this index has been handled
+        int i = 0;
+        while (i < len) {
+            char c = text.charAt(i);
+            if (c == '<') {
+                int tagEnd = text.indexOf('>', i);
+                if (tagEnd < 0) {
+                    break;
+                }
+                if (isAnchorStart(text, i)) {
+                    int linkEnd = getMailtoLinkEnd(text, i, tagEnd);
+                    if (linkEnd > -1) {
+                        try {
+                            String js = CmsAgent.getJavascriptMailto(text.substring(i, linkEnd));
+                            sb.append(text, copied, i).append(js);
+                            copied = i = linkEnd;
+                            continue;
+                        } catch (Exception e) {
+                            // Unexpected format: leave the tag as-is
+                        }
+                    }
+                } else if (text.regionMatches(true, i, "<script", 0, 7)) {
+                    // Skip to the end tag
+                    int scriptEnd = indexOfIgnoreCase(text, "</script", tagEnd);
+                    i = scriptEnd < 0 ? len : scriptEnd;
+                    continue;
+                }
+                i = tagEnd + 1;
+                continue;
+            }
+            if (c == '@') {
+                int start = getLocalStart(text, i, copied);
+                int end = getDomainEnd(text, i);
+                if (start < i && end > -1) {
+                    sb.append(text, copied, start)
+                            .append(CmsAgent.getJavascriptEmail(text.substring(start, end), createAsMailtoLink, null));
+                    copied = i = end;
+                    continue;
+                }
+            }
+            i++;
+        }
+        if (copied == 0) {
+            return text;
+        }
+        return sb.append(text, copied, len).toString();
+    }
+
+    /**
+     * Determines whether an anchor tag ("&lt;a" followed by whitespace)
+     * starts at the given index.
+     */
+    private static boolean isAnchorStart(String text, int i) {
+        return i + 2 < text.length()
+                && text.charAt(i + 1) == 'a'
+                && Character.isWhitespace(text.charAt(i + 2));
+    }
+
+    /**
+     * Gets the end of the mailto link whose start tag spans the given
+     * indexes.
+     *
+     * @param text The text.
+     * @param tagStart The index of the start tag's "&lt;".
+     * @param tagEnd The index of the start tag's "&gt;".
+     * @return The index following the link's end tag, or -1 if the tag is not a mailto link to a valid address (or if there is no end tag).
+     */
+    private static int getMailtoLinkEnd(String text, int tagStart, int tagEnd) {
+        int mailto = text.indexOf(MAILTO, tagStart);
+        if (mailto < 0 || mailto > tagEnd) {
+            return -1;
+        }
+        int at = text.indexOf('@', mailto);
+        if (at < 0 || at > tagEnd) {
+            return -1;
+        }
+        int addrStart = mailto + MAILTO.length();
+        if (getLocalStart(text, at, addrStart) != addrStart || getDomainEnd(text, at) < 0) {
+            return -1;
+        }
+        int end = text.indexOf(ANCHOR_END, tagEnd);
+        return end < 0 ? -1 : end + ANCHOR_END.length();
+    }
+
+    /**
+     * Gets the start of the local part of the address with its "@" at the
+     * given index, scanning backwards.
+     *
+     * @param text The text.
+     * @param at The index of the "@".
+     * @param min Do not scan beyond this index.
+     * @return The start of the local part, or the index of the "@" if there is no valid local part.
+     */
+    private static int getLocalStart(String text, int at, int min) {
+        int start = at;
+        int limit = Math.max(min, at - MAX_LOCAL_LENGTH);
+        while (start > limit && isLocalChar(text.charAt(start - 1))) {
+            start--;
+        }
+        // No leading dots
+        while (start < at && text.charAt(start) == '.') {
+            start++;
+        }
+        if (start == at || text.charAt(at - 1) == '.') {
+            return at;
+        }
+        // No consecutive dots: use the part after the last ".."
+        for (int i = at - 1; i > start; i--) {
+            if (text.charAt(i) == '.' && text.charAt(i - 1) == '.') {
+                return i + 1 < at ? i + 1 : at;
+            }
+        }
+        return start;
+    }
+
+    /**
+     * Gets the end of the domain part of the address with its "@" at the
+     * given index, scanning forwards.
+     * <p>
+     * The domain must consist of at least two labels, each starting and
+     * ending with a letter or digit.
+     *
+     * @param text The text.
+     * @param at The index of the "@".
+     * @return The index following the domain part, or -1 if there is no valid domain part.
+     */
+    private static int getDomainEnd(String text, int at) {
+        int len = Math.min(text.length(), at + 1 + MAX_DOMAIN_LENGTH);
+        int end = at + 1;
+        int labels = 0;
+        int labelStart = end;
+        int lastValidEnd = -1;
+        while (end < len) {
+            char c = text.charAt(end);
+            if (isAlphanumeric(c)) {
+                end++;
+                if (labels > 0) {
+                    // Complete label (ends with letter/digit) after at least one dot
+                    lastValidEnd = end;
+                }
+            } else if (c == '-' && end > labelStart) {
+                end++;
+            } else if (c == '.' && end > labelStart && isAlphanumeric(text.charAt(end - 1))) {
+                labels++;
+                end++;
+                labelStart = end;
+            } else {
+                break;
+            }
+        }
+        return lastValidEnd;
+    }
+
+    /**
+     * Gets the index of the given (lower case) string, ignoring case.
+     */
+    private static int indexOfIgnoreCase(String text, String s, int from) {
+        for (int i = from; i <= text.length() - s.length(); i++) {
+            if (text.regionMatches(true, i, s, 0, s.length())) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Determines whether or not the given character is an (ASCII) letter or
+     * digit.
+     */
+    private static boolean isAlphanumeric(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Determines whether or not the given character is allowed in the local
+     * part of an address.
+     */
+    private static boolean isLocalChar(char c) {
+        return isAlphanumeric(c) || LOCAL_SPECIALS.indexOf(c) > -1;
+    }
+}
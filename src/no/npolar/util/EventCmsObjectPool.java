@@ -0,0 +1,91 @@
+package no.npolar.util;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import org.opencms.db.CmsDefaultUsers;
+import org.opencms.file.CmsObject;
+import org.opencms.main.CmsException;
+import org.opencms.main.OpenCms;
+
+/**
+ * Small pool of pre-initialized CmsObjects for event handling: logged in as
+ * the image handler user, in the offline project and the root site.
+ * <p>
+ * Logging in is expensive, and serializes on the user and session handling,
+ * so it is done once per pooled context instead of once per event. Each call
+ * to {@link #get()} returns a copy of a pooled context, so callers may modify
+ * their copy freely. Pooled contexts are re-initialized after
+ * {@link #MAX_AGE} milliseconds.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see Actions#initEventCmsObject()
+ */
+public class EventCmsObjectPool {
+    /** The number of pooled contexts. */
+    public static final int POOL_SIZE = 2;
+    /** The max. age of a pooled context, in milliseconds (30 minutes). */
+    public static final long MAX_AGE = 30 * 60 * 1000;
+
+    /** The image handler user name. */
+    private static final String USER_NAME = "Imagehandler";
+    /** The image handler user password. */
+    private static final String USER_PASSWORD = "asdfølkj";
+
+    /** The pooled contexts. */
+    private static final CmsObject[] contexts = new CmsObject[POOL_SIZE];
+    /** The time each pooled context was initialized. */
+    private static final long[] created = new long[POOL_SIZE];
+    /** Used to hand out the pooled contexts round-robin. */
+    private static final AtomicInteger next = new AtomicInteger(0);
+
+    /**
+     * Gets a copy of a pooled context, initializing (or re-initializing) the
+     * pooled context if necessary.
+     *
+     * @return A new CmsObject, logged in as the image handler user, in the offline project and the root site.
+     * @throws CmsException If initializing the CmsObject fails.
+     */
+    public static CmsObject get() throws CmsException {
+        int i = (next.getAndIncrement() & Integer.MAX_VALUE) % POOL_SIZE;
+        CmsObject base = null;
+        synchronized (contexts) {
+            if (contexts[i] != null && System.currentTimeMillis() - created[i] <= MAX_AGE) {
+                base = contexts[i];
+            }
+        }
+        if (base == null) {
+            // Log in outside the lock; a concurrent caller may do the same, which is harmless
+            base = init();
+            synchronized (contexts) {
+                contexts[i] = base;
+                created[i] = System.currentTimeMillis();
+            }
+        }
+        return OpenCms.initCmsObject(base);
+    }
+
+    /**
+     * Discards all pooled contexts. They will be re-initialized on demand.
+     */
+    public static void clear() {
+        synchronized (contexts) {
+            for (int i = 0; i < POOL_SIZE; i++) {
+                contexts[i] = null;
+                created[i] = 0;
+            }
+        }
+    }
+
+    /**
+     * Creates and initializes a new context.
+     *
+     * @return A new CmsObject, logged in as the image handler user, in the offline project and the root site.
+     * @throws CmsException If initializing the CmsObject fails.
+     */
+    private static CmsObject init() throws CmsException {
+        CmsObject cmso = OpenCms.initCmsObject(new CmsDefaultUsers().getUserExport());
+        cmso.loginUser(USER_NAME, USER_PASSWORD);
+        cmso.getRequestContext().setCurrentProject(cmso.readProject(Actions.PROJECT_OFFLINE_NAME));
+        cmso.getRequestContext().setSiteRoot(Actions.DEFAULT_SITE);
+        return cmso;
+    }
+}
@@ -0,0 +1,112 @@
+package no.npolar.util;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+
+/**
+ * Cache of resource fingerprints (date last modified), used when adding
+ * fingerprint parameters to links.
+ * <p>
+ * Fingerprints are keyed by project type + root path, so each resource is
+ * read only once until it changes. Entries are invalidated by {@link Actions}
+ * when resources change, and cleared on publish.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#link(java.lang.String)
+ */
+public class FingerprintCache {
+    /** The file extensions that should be fingerprinted (lower case, without the dot). */
+    public static final Set<String> FINGERPRINTED_EXTENSIONS = new HashSet<String>(
+            Arrays.asList(new String[] { "jpg", "jpeg", "png", "gif", "svg", "css", "js", "pdf" }));
+
+    /** Marks a resource that does not exist (or is a folder). */
+    private static final Long NONE = Long.valueOf(-1);
+    /** The max. number of cached fingerprints. The cache is cleared when this is exceeded. */
+    private static final int MAX_ENTRIES = 20000;
+    /** The cached fingerprints, keyed by project type + root path. */
+    private static final ConcurrentHashMap<String, Long> CACHE = new ConcurrentHashMap<String, Long>(1024);
+
+    /**
+     * Determines whether or not files with the given name should be
+     * fingerprinted, based on the file extension.
+     * <p>
+     * Names containing whitespace are never fingerprinted.
+     *
+     * @param fileName The file name, without any query string.
+     * @return True if files with the given name should be fingerprinted, false if not.
+     */
+    public static boolean isFingerprinted(String fileName) {
+        int dot = fileName.lastIndexOf('.');
+        if (dot < 1 || dot == fileName.length() - 1) {
+            return false;
+        }
+        for (int i = 0; i < fileName.length(); i++) {
+            if (Character.isWhitespace(fileName.charAt(i))) {
+                return false;
+            }
+        }
+        return FINGERPRINTED_EXTENSIONS.contains(fileName.substring(dot + 1).toLowerCase(Locale.ENGLISH));
+    }
+
+    /**
+     * Gets the fingerprint of the given resource, reading it if necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the resource (if necessary).
+     * @param path The resource path (no parameters).
+     * @return The fingerprint of the given resource, or -1 if it does not exist or is a folder.
+     */
+    public static long get(CmsObject cmso, String path) {
+        String key = getCacheKey(cmso.getRequestContext().getCurrentProject().isOnlineProject(),
+                cmso.getRequestContext().addSiteRoot(path));
+        Long fingerprint = CACHE.get(key);
+        if (fingerprint == null) {
+            fingerprint = NONE;
+            try {
+                CmsResource r = cmso.readResource(path);
+                if (!r.isFolder()) {
+                    fingerprint = Long.valueOf(r.getDateLastModified());
+                }
+            } catch (Exception e) {
+                // No such resource (or not readable)
+            }
+            if (CACHE.size() >= MAX_ENTRIES) {
+                CACHE.clear();
+            }
+            CACHE.put(key, fingerprint);
+        }
+        return fingerprint.longValue();
+    }
+
+    /**
+     * Removes the cached fingerprints for the given resource.
+     *
+     * @param rootPath The resource's root path.
+     */
+    public static void invalidate(String rootPath) {
+        CACHE.remove(getCacheKey(true, rootPath));
+        CACHE.remove(getCacheKey(false, rootPath));
+    }
+
+    /**
+     * Removes all cached fingerprints.
+     */
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * Gets the cache key for the given resource.
+     *
+     * @param online Whether or not the key is for the online project.
+     * @param rootPath The resource's root path.
+     * @return The cache key for the given resource.
+     */
+    private static String getCacheKey(boolean online, String rootPath) {
+        return (online ? "1:" : "0:") + rootPath;
+    }
+}
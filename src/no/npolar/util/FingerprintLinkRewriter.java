@@ -0,0 +1,321 @@
+package no.npolar.util;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.main.OpenCms;
+
+/**
+ * Single-pass, streaming rewriter that adds fingerprint parameters to asset
+ * URLs in HTML, e.g. in rich text bodies.
+ * <p>
+ * Local (VFS) URLs in <code>src</code>, <code>href</code>, <code>poster</code>
+ * and <code>data-src</code> attributes are fingerprinted like
+ * {@link CmsAgent#link(java.lang.String)} does, using the same
+ * {@link FingerprintCache}. Everything else - text, comments, and the content
+ * of <code>script</code> and <code>style</code> elements - is copied as-is.
+ * <p>
+ * No DOM is built: only the current tag is buffered.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class FingerprintLinkRewriter {
+    /** The attributes that may hold asset URLs. */
+    public static final Set<String> URL_ATTRIBUTES = new HashSet<String>(
+            Arrays.asList(new String[] { "src", "href", "poster", "data-src" }));
+    /** Tags longer than this are copied as-is. */
+    private static final int MAX_TAG_LENGTH = 8192;
+
+    /** The CmsObject used to read fingerprints. */
+    private final CmsObject cmso;
+    /** The OpenCms context path prefix (e.g. "/opencms/opencms"), or an empty string if none. */
+    private final String contextPrefix;
+
+    /**
+     * Creates a new rewriter.
+     *
+     * @param cmso An initialized CmsObject, used to read fingerprints (if necessary).
+     */
+    public FingerprintLinkRewriter(CmsObject cmso) {
+        this.cmso = cmso;
+        String context = null;
+        try {
+            context = OpenCms.getSystemInfo().getOpenCmsContext();
+        } catch (Exception e) {
+            // Not running in OpenCms
+        }
+        this.contextPrefix = context == null ? "" : context;
+    }
+
+    /**
+     * Rewrites the given HTML.
+     *
+     * @param html The HTML to rewrite.
+     * @return The rewritten HTML.
+     */
+    public String rewrite(String html) {
+        if (html == null || html.indexOf('<') < 0) {
+            return html;
+        }
+        StringWriter out = new StringWriter(html.length() + 256);
+        try {
+            rewrite(new StringReader(html), out);
+        } catch (IOException e) {
+            // Cannot happen with string readers/writers
+            return html;
+        }
+        return out.toString();
+    }
+
+    /**
+     * Rewrites the HTML read from the given reader, writing the result to the
+     * given writer.
+     *
+     * @param in The HTML to rewrite.
+     * @param out The writer to write the rewritten HTML to.
+     * @throws IOException If reading or writing fails.
+     */
+    public void rewrite(Reader in, Writer out) throws IOException {
+        int c;
+        StringBuilder tag = new StringBuilder(256);
+        while ((c = in.read()) != -1) {
+            if (c != '<') {
+                out.write(c);
+                continue;
+            }
+            tag.setLength(0);
+            tag.append('<');
+            int end = readTag(in, tag);
+            if (end == -2) {
+                // Comment
+                out.append(tag);
+                copyUntil(in, out, "-->");
+            } else if (end != '>') {
+                // Unterminated, or too long: leave it be
+                out.append(tag);
+            } else {
+                String name = getTagName(tag);
+                out.append(name.isEmpty() ? tag : rewriteTag(tag));
+                if (("script".equals(name) || "style".equals(name)) && tag.charAt(tag.length() - 2) != '/') {
+                    copyUntil(in, out, "</" + name);
+                }
+            }
+        }
+        out.flush();
+    }
+
+    /**
+     * Reads the rest of a tag (after the initial '<') into the given buffer,
+     * up to and including the closing '>' (outside quotes).
+     *
+     * @param in The reader.
+     * @param tag The buffer, holding the initial '<'.
+     * @return '>' if the tag was read completely, -2 if the tag is a comment (the buffer then holds "&lt;!--"), or -1 if the end of input or max. length was reached.
+     * @throws IOException If reading fails.
+     */
+    private int readTag(Reader in, StringBuilder tag) throws IOException {
+        char quote = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            tag.append((char)c);
+            if (tag.length() == 4 && "<!--".contentEquals(tag)) {
+                return -2;
+            }
+            if (quote != 0) {
+                if (c == quote) {
+                    quote = 0;
+                }
+            } else if (c == '"' || c == '\'') {
+                quote = (char)c;
+            } else if (c == '>') {
+                return '>';
+            }
+            if (tag.length() >= MAX_TAG_LENGTH) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Copies everything from the given reader to the given writer, up to and
+     * including the given (case-insensitive, ASCII) terminator.
+     *
+     * @param in The reader.
+     * @param out The writer.
+     * @param terminator The terminator, e.g. "--&gt;".
+     * @throws IOException If reading or writing fails.
+     */
+    private static void copyUntil(Reader in, Writer out, String terminator) throws IOException {
+        // For each partial match length, the length of the longest proper 
+        // suffix of the partial match that is also a prefix of the terminator
+        // (so e.g. "--->" is seen as closing a comment)
+        int[] fallback = new int[terminator.length()];
+        for (int i = 1, k = 0; i < terminator.length(); i++) {
+            while (k > 0 && terminator.charAt(i) != terminator.charAt(k)) {
+                k = fallback[k - 1];
+            }
+            if (terminator.charAt(i) == terminator.charAt(k)) {
+                k++;
+            }
+            fallback[i] = k;
+        }
+        
+        int matched = 0;
+        int c;
+        while ((c = in.read()) != -1) {
+            out.write(c);
+            char lc = Character.toLowerCase((char)c);
+            while (matched > 0 && lc != terminator.charAt(matched)) {
+                matched = fallback[matched - 1];
+            }
+            if (lc == terminator.charAt(matched)) {
+                if (++matched == terminator.length()) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the (lower case) name of the given tag.
+     *
+     * @param tag The tag, e.g. "&lt;img src=...&gt;".
+     * @return The (lower case) name of the given tag, or an empty string for closing tags, doctypes etc.
+     */
+    private static String getTagName(CharSequence tag) {
+        int i = 1;
+        while (i < tag.length() && isNameChar(tag.charAt(i))) {
+            i++;
+        }
+        return tag.subSequence(1, i).toString().toLowerCase(Locale.ENGLISH);
+    }
+
+    /**
+     * Rewrites the URL attributes of the given (complete) tag.
+     *
+     * @param tag The tag.
+     * @return The rewritten tag.
+     */
+    private CharSequence rewriteTag(CharSequence tag) {
+        StringBuilder result = null;
+        int copied = 0;
+        int len = tag.length() - 1; // Skip the closing '>'
+        int i = 1;
+        while (i < len && isNameChar(tag.charAt(i))) {
+            i++; // Skip the tag name
+        }
+        while (i < len) {
+            // Attribute name
+            while (i < len && !isNameChar(tag.charAt(i))) {
+                i++;
+            }
+            int nameStart = i;
+            while (i < len && isNameChar(tag.charAt(i))) {
+                i++;
+            }
+            if (nameStart == i) {
+                break;
+            }
+            String name = tag.subSequence(nameStart, i).toString().toLowerCase(Locale.ENGLISH);
+            while (i < len && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            if (i >= len || tag.charAt(i) != '=') {
+                continue; // No value
+            }
+            i++;
+            while (i < len && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            // Attribute value
+            int valueStart;
+            int valueEnd;
+            if (i < len && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                char quote = tag.charAt(i);
+                valueStart = ++i;
+                while (i < len && tag.charAt(i) != quote) {
+                    i++;
+                }
+                valueEnd = i++;
+            } else {
+                valueStart = i;
+                while (i < len && !Character.isWhitespace(tag.charAt(i))) {
+                    i++;
+                }
+                valueEnd = i;
+            }
+            if (URL_ATTRIBUTES.contains(name)) {
+                String url = tag.subSequence(valueStart, valueEnd).toString();
+                String rewritten = rewriteUrl(url);
+                if (rewritten != url) {
+                    if (result == null) {
+                        result = new StringBuilder(tag.length() + 32);
+                    }
+                    result.append(tag, copied, valueStart).append(rewritten);
+                    copied = valueEnd;
+                }
+            }
+        }
+        if (result == null) {
+            return tag;
+        }
+        return result.append(tag, copied, tag.length());
+    }
+
+    /**
+     * Adds a fingerprint to the given URL, if it is a local URL to an asset
+     * that should be fingerprinted.
+     *
+     * @param url The URL.
+     * @return The URL with a fingerprint added, or the very same URL instance if no fingerprint was added.
+     */
+    protected String rewriteUrl(String url) {
+        if (url.length() < 2 || url.charAt(0) != '/' || url.charAt(1) == '/') {
+            return url; // Not a local, absolute path
+        }
+        int fragmentStart = url.indexOf('#');
+        String fragment = fragmentStart > -1 ? url.substring(fragmentStart) : "";
+        String withoutFragment = fragmentStart > -1 ? url.substring(0, fragmentStart) : url;
+        int queryStart = withoutFragment.indexOf('?');
+        String query = queryStart > -1 ? withoutFragment.substring(queryStart) : "";
+        String path = queryStart > -1 ? withoutFragment.substring(0, queryStart) : withoutFragment;
+
+        if (query.contains("?" + CmsAgent.PARAM_NAME_FINGERPRINT + "=")
+                || query.contains("&" + CmsAgent.PARAM_NAME_FINGERPRINT + "=")
+                || query.contains(";" + CmsAgent.PARAM_NAME_FINGERPRINT + "=")) {
+            return url; // Already fingerprinted
+        }
+        if (!FingerprintCache.isFingerprinted(CmsResource.getName(path))) {
+            return url;
+        }
+        String vfsPath = path;
+        if (!contextPrefix.isEmpty() && path.startsWith(contextPrefix + "/")) {
+            vfsPath = path.substring(contextPrefix.length());
+        }
+        long fingerprint = FingerprintCache.get(cmso, vfsPath);
+        if (fingerprint < 0) {
+            return url;
+        }
+        return path
+                + (query.isEmpty() ? "?" : query.concat("&amp;"))
+                + CmsAgent.PARAM_NAME_FINGERPRINT + "=" + fingerprint
+                + fragment;
+    }
+
+    /**
+     * Determines whether or not the given character can be part of a tag or
+     * attribute name.
+     */
+    private static boolean isNameChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '-' || c == '_' || c == ':';
+    }
+}
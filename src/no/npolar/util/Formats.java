@@ -0,0 +1,158 @@
+package no.npolar.util;
+
+import java.math.BigDecimal;
+import java.text.DecimalFormatSymbols;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Cached, thread-safe date and file size formatting.
+ * <p>
+ * Date formats are created once per pattern and locale, and then reused.
+ * As {@link SimpleDateFormat} is not thread-safe, each thread keeps its own
+ * (bounded) set of formats, so concurrent requests - e.g. several lists
+ * being rendered at once - never share an instance.
+ * <p>
+ * File sizes are formatted using integer arithmetic only, so no
+ * <code>DecimalFormat</code> is involved.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#formatDate(java.lang.String, java.lang.String, java.util.Locale)
+ * @see CmsAgent#formatFileSize(int)
+ */
+public class Formats {
+    /** The max. number of date formats kept per thread. */
+    private static final int MAX_DATE_FORMATS = 50;
+    /** The number of bytes in a kilobyte. */
+    private static final long KB = 1024;
+    /** The number of bytes in a megabyte. */
+    private static final long MB = KB * KB;
+    /** The number of bytes in a gigabyte. */
+    private static final long GB = MB * KB;
+    /** The decimal separator used in file sizes (that of the default locale). */
+    private static final char DECIMAL_SEPARATOR = DecimalFormatSymbols.getInstance().getDecimalSeparator();
+
+    /**
+     * Each thread's date formats, keyed by locale + pattern.
+     * <p>
+     * A plain ThreadLocal holding only JDK classes, so container threads
+     * never keep a reference to this webapp's classloader.
+     */
+    private static final ThreadLocal<Map<String, SimpleDateFormat>> dateFormats = new ThreadLocal<Map<String, SimpleDateFormat>>();
+
+    /**
+     * Gets a date format for the given pattern and locale.
+     * <p>
+     * The returned instance belongs to the current thread: it must not be
+     * modified, nor be handed over to other threads.
+     *
+     * @param pattern The date format pattern.
+     * @param locale The locale. Can be null, in which case the default locale is used.
+     * @return A date format for the given pattern and locale.
+     * @throws IllegalArgumentException If the given pattern is invalid.
+     * @see java.text.SimpleDateFormat
+     */
+    public static SimpleDateFormat getDateFormat(String pattern, Locale locale) throws IllegalArgumentException {
+        if (locale == null) {
+            locale = Locale.getDefault();
+        }
+        Map<String, SimpleDateFormat> formats = dateFormats.get();
+        if (formats == null) {
+            formats = new HashMap<String, SimpleDateFormat>();
+            dateFormats.set(formats);
+        }
+        String key = locale.toString().concat(":").concat(pattern);
+        SimpleDateFormat format = formats.get(key);
+        if (format == null) {
+            format = new SimpleDateFormat(pattern, locale);
+            if (formats.size() >= MAX_DATE_FORMATS) {
+                formats.clear(); // Thread-confined, so no locking (or LRU bookkeeping) is needed
+            }
+            formats.put(key, format);
+        }
+        return format;
+    }
+
+    /**
+     * Formats the given date.
+     *
+     * @param date The date.
+     * @param pattern The date format pattern.
+     * @param locale The locale. Can be null, in which case the default locale is used.
+     * @return The formatted date.
+     * @throws IllegalArgumentException If the given pattern is invalid.
+     */
+    public static String formatDate(Date date, String pattern, Locale locale) throws IllegalArgumentException {
+        return getDateFormat(pattern, locale).format(date);
+    }
+
+    /**
+     * Formats the given timestamp.
+     *
+     * @param millis The timestamp, in milliseconds.
+     * @param pattern The date format pattern.
+     * @param locale The locale. Can be null, in which case the default locale is used.
+     * @return The formatted timestamp.
+     * @throws IllegalArgumentException If the given pattern is invalid.
+     */
+    public static String formatDate(long millis, String pattern, Locale locale) throws IllegalArgumentException {
+        return formatDate(new Date(millis), pattern, locale);
+    }
+
+    /**
+     * Parses the given timestamp string, without any loss of precision.
+     * <p>
+     * The string is normally the string representation of a long, but
+     * decimal and scientific notation (e.g. "1.4E12") is also accepted. Any
+     * fraction of a millisecond is discarded.
+     *
+     * @param timestamp The timestamp, in milliseconds.
+     * @return The timestamp, as a long.
+     * @throws NumberFormatException If the given string is not a number.
+     */
+    public static long parseTimestamp(String timestamp) throws NumberFormatException {
+        String s = timestamp.trim();
+        try {
+            return Long.parseLong(s);
+        } catch (NumberFormatException e) {
+            return new BigDecimal(s).longValue();
+        }
+    }
+
+    /**
+     * Converts the given number of bytes to a value formatted for screen
+     * output, e.g. "2.4&amp;nbsp;MB".
+     * <p>
+     * Values of 1 kB and above are rounded (half-up) to one decimal, and
+     * a zero decimal is omitted.
+     *
+     * @param bytes The number of bytes.
+     * @return The formatted value.
+     */
+    public static String formatFileSize(long bytes) {
+        if (bytes < KB) {
+            return bytes + "&nbsp;bytes";
+        }
+        long unit;
+        String suffix;
+        if (bytes < MB) {
+            unit = KB;
+            suffix = "&nbsp;kB";
+        } else if (bytes < GB) {
+            unit = MB;
+            suffix = "&nbsp;MB";
+        } else {
+            unit = GB;
+            suffix = "&nbsp;GB";
+        }
+        long tenths = (bytes * 20 + unit) / (unit * 2); // Rounded half-up
+        StringBuilder sb = new StringBuilder(24).append(tenths / 10);
+        if (tenths % 10 != 0) {
+            sb.append(DECIMAL_SEPARATOR).append(tenths % 10);
+        }
+        return sb.append(suffix).toString();
+    }
+}
@@ -0,0 +1,215 @@
+package no.npolar.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.main.CmsException;
+
+/**
+ * Per-folder cache of inherited header element lists, i.e. the values of the
+ * {@link CmsAgent#PROPERTY_CSS}, {@link CmsAgent#PROPERTY_JAVASCRIPT},
+ * {@link CmsAgent#PROPERTY_HEAD_SNIPPET} and {@link CmsAgent#PROPERTY_BLACKLIST}
+ * properties, collected from a folder and all its ancestors.
+ * <p>
+ * Each folder's entry is built from its parent folder's (cached) entry plus
+ * the folder's own property value, so resolving a page's header elements
+ * requires reading only the page's own properties - not one property per
+ * ancestor folder. The fully resolved (blacklist-applied) lists are cached
+ * per folder as well.
+ * <p>
+ * Entries are invalidated by {@link Actions} when a folder's properties
+ * change, which also invalidates all entries below that folder, and cleared
+ * on publish.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#getHeaderElement(java.lang.String, java.lang.String)
+ */
+public class HeaderElementCache {
+    /** Prefix for keys of resolved (blacklist-applied) lists in a folder entry. */
+    private static final String RESOLVED_PREFIX = "!";
+    /** The max. number of cached folders. */
+    private static final int MAX_CACHED = 5000;
+    /** Cached folder entries, keyed by project type + folder root path. */
+    private static final LruCache<String, FolderEntry> CACHE = new LruCache<String, FolderEntry>(MAX_CACHED);
+
+    /**
+     * Cached lists for a single folder.
+     */
+    private static class FolderEntry {
+        /** The parent folder's entry, or null if this is the root folder. */
+        private final FolderEntry parent;
+        /** Inherited lists, keyed by property name (resolved lists have the key prefixed with {@link #RESOLVED_PREFIX}). */
+        private final ConcurrentHashMap<String, List<String>> lists = new ConcurrentHashMap<String, List<String>>();
+
+        /**
+         * Creates a new entry.
+         *
+         * @param parent The parent folder's entry, or null if this is the root folder.
+         */
+        FolderEntry(FolderEntry parent) {
+            this.parent = parent;
+        }
+    }
+
+    /**
+     * Gets the header elements for the given resource, inherited elements
+     * included and blacklisted elements removed.
+     *
+     * @param cmso An initialized CmsObject, used to read properties (if necessary).
+     * @param resourceUri The resource's site path.
+     * @param property The property name, e.g. {@link CmsAgent#PROPERTY_CSS}.
+     * @return The header elements for the given resource, in order (the resource's own elements first). The list is not modifiable.
+     * @throws CmsException If reading a property fails.
+     */
+    public static List<String> getHeaderElements(CmsObject cmso, String resourceUri, String property) throws CmsException {
+        if (CmsResource.isFolder(resourceUri)) {
+            return getResolved(cmso, getEntry(cmso, resourceUri), resourceUri, property);
+        }
+        List<String> own = readValues(cmso, resourceUri, property);
+        List<String> ownBlacklist = readValues(cmso, resourceUri, CmsAgent.PROPERTY_BLACKLIST);
+        String parentFolder = CmsResource.getParentFolder(resourceUri);
+        if (parentFolder == null) {
+            own.removeAll(ownBlacklist);
+            return Collections.unmodifiableList(own);
+        }
+        FolderEntry parent = getEntry(cmso, parentFolder);
+        if (own.isEmpty() && ownBlacklist.isEmpty()) {
+            // The common case: nothing set on the resource itself
+            return getResolved(cmso, parent, parentFolder, property);
+        }
+        own.addAll(getInherited(cmso, parent, parentFolder, property));
+        ownBlacklist.addAll(getInherited(cmso, parent, parentFolder, CmsAgent.PROPERTY_BLACKLIST));
+        own.removeAll(ownBlacklist);
+        return Collections.unmodifiableList(own);
+    }
+
+    /**
+     * Gets the inherited values of the given property for the given folder,
+     * that is, the values set on the folder and all its ancestors.
+     *
+     * @param cmso An initialized CmsObject, used to read properties (if necessary).
+     * @param folderPath The folder's site path, with trailing slash.
+     * @param property The property name.
+     * @return The inherited values, in order (the folder's own values first). The list is not modifiable.
+     * @throws CmsException If reading a property fails.
+     */
+    public static List<String> getInherited(CmsObject cmso, String folderPath, String property) throws CmsException {
+        return getInherited(cmso, getEntry(cmso, folderPath), folderPath, property);
+    }
+
+    /**
+     * Reads the values of the given property, as set on the given resource
+     * (not inherited).
+     *
+     * @param cmso An initialized CmsObject, used to read the property.
+     * @param resourceUri The resource's site path.
+     * @param property The property name.
+     * @return The property values. Empty if the property is not set.
+     * @throws CmsException If reading the property fails.
+     */
+    public static List<String> readValues(CmsObject cmso, String resourceUri, String property) throws CmsException {
+        List<String> values = new ArrayList<String>();
+        String propertyValue = cmso.readPropertyObject(resourceUri, property, false).getValue();
+        if (propertyValue != null) {
+            String[] propertyValues = propertyValue.split(CmsAgent.PROPERTY_VALUE_DELIMITER);
+            for (String value : propertyValues) {
+                if (value != null) {
+                    values.add(value);
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Removes the cached entry for the given folder, and thereby also the
+     * entries for all its sub-folders.
+     *
+     * @param folderRootPath The folder's root path.
+     */
+    public static void invalidate(String folderRootPath) {
+        if (!folderRootPath.endsWith("/")) {
+            folderRootPath = folderRootPath.concat("/");
+        }
+        CACHE.remove(getCacheKey(true, folderRootPath));
+        CACHE.remove(getCacheKey(false, folderRootPath));
+    }
+
+    /**
+     * Removes all cached entries.
+     */
+    public static void clear() {
+        CACHE.clear();
+    }
+
+    /**
+     * Gets the entry for the given folder, creating it (and any missing
+     * ancestor entries) if necessary.
+     * <p>
+     * A cached entry is re-used only if its parent entry is the currently
+     * cached entry for the parent folder. Replacing a folder's entry thus
+     * replaces the entries below it as well.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param folderPath The folder's site path, with trailing slash.
+     * @return The entry for the given folder.
+     */
+    private static FolderEntry getEntry(CmsObject cmso, String folderPath) {
+        String key = getCacheKey(cmso.getRequestContext().getCurrentProject().isOnlineProject(),
+                cmso.getRequestContext().addSiteRoot(folderPath));
+        String parentFolder = CmsResource.getParentFolder(folderPath);
+        FolderEntry parent = parentFolder == null ? null : getEntry(cmso, parentFolder);
+        FolderEntry entry = CACHE.get(key);
+        if (entry == null || entry.parent != parent) {
+            entry = new FolderEntry(parent);
+            CACHE.put(key, entry);
+        }
+        return entry;
+    }
+
+    /**
+     * Gets the inherited values of the given property for the given folder,
+     * building the list from the parent entry's list if necessary.
+     */
+    private static List<String> getInherited(CmsObject cmso, FolderEntry entry, String folderPath, String property) throws CmsException {
+        List<String> values = entry.lists.get(property);
+        if (values == null) {
+            values = readValues(cmso, folderPath, property);
+            if (entry.parent != null) {
+                values.addAll(getInherited(cmso, entry.parent, CmsResource.getParentFolder(folderPath), property));
+            }
+            values = Collections.unmodifiableList(values);
+            entry.lists.put(property, values);
+        }
+        return values;
+    }
+
+    /**
+     * Gets the inherited values of the given property for the given folder,
+     * with the inherited blacklist applied.
+     */
+    private static List<String> getResolved(CmsObject cmso, FolderEntry entry, String folderPath, String property) throws CmsException {
+        List<String> values = entry.lists.get(RESOLVED_PREFIX + property);
+        if (values == null) {
+            List<String> resolved = new ArrayList<String>(getInherited(cmso, entry, folderPath, property));
+            resolved.removeAll(getInherited(cmso, entry, folderPath, CmsAgent.PROPERTY_BLACKLIST));
+            values = Collections.unmodifiableList(resolved);
+            entry.lists.put(RESOLVED_PREFIX + property, values);
+        }
+        return values;
+    }
+
+    /**
+     * Gets the cache key for the given folder.
+     *
+     * @param online Whether or not the key is for the online project.
+     * @param folderRootPath The folder's root path, with trailing slash.
+     * @return The cache key for the given folder.
+     */
+    private static String getCacheKey(boolean online, String folderRootPath) {
+        return (online ? "1:" : "0:") + folderRootPath;
+    }
+}
@@ -0,0 +1,37 @@
+package no.npolar.util;
+
+import java.io.IOException;
+
+/**
+ * Interface implemented by classes that resolve the default image
+ * (thumbnail) of videos hosted by a specific video service.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see VideoThumbnailResolver
+ */
+public interface I_VideoThumbnailProvider {
+    /**
+     * Gets whether or not this provider handles the given video URL.
+     *
+     * @param videoUrl The video URL.
+     * @return True if this provider handles the given video URL, false if not.
+     */
+    public boolean accepts(String videoUrl);
+
+    /**
+     * Gets whether or not resolving requires a remote lookup. (If not, the
+     * thumbnail URL can be resolved directly from the video URL.)
+     *
+     * @return True if resolving requires a remote lookup, false if not.
+     */
+    public boolean isRemote();
+
+    /**
+     * Resolves the thumbnail URL for the given video URL.
+     *
+     * @param videoUrl The video URL.
+     * @return The thumbnail URL.
+     * @throws IOException If resolving fails.
+     */
+    public String getThumbnailUrl(String videoUrl) throws IOException;
+}
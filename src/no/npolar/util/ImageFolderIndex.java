@@ -0,0 +1,137 @@
+package no.npolar.util;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+
+/**
+ * Cached index of the images in a folder, mapping each image's base name
+ * (the file name without extension) to its file name.
+ * <p>
+ * Used to resolve "automatic" images, where the image is identified by base
+ * name only, e.g. <code>img/report.jpg</code> for <code>report.pdf</code>.
+ * Each folder listing is read once, and subsequent lookups are plain map
+ * lookups.
+ * <p>
+ * Supported image extensions are, in order of priority: .jpg, .png and .gif.
+ * <p>
+ * Entries are invalidated by {@link Actions} when resources in the folder
+ * change, and cleared on publish.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ImageFolderIndex {
+    /** The supported image extensions, in order of priority. */
+    public static final String[] IMAGE_EXTENSIONS = { ".jpg", ".png", ".gif" };
+
+    /** The max. number of cached folder indexes. */
+    private static final int MAX_CACHED = 1000;
+    /** Cached folder indexes, keyed by project type + folder root path. */
+    private static final LruCache<String, Map<String, String>> CACHE = new LruCache<String, Map<String, String>>(MAX_CACHED);
+
+    /**
+     * Gets the path to the image with the given base name in the given
+     * folder.
+     *
+     * @param cmso An initialized CmsObject, used to read the folder (if necessary).
+     * @param folderPath The folder's site path, e.g. "/docs/img/".
+     * @param baseName The image's base name, e.g. "report".
+     * @return The site path to the image, e.g. "/docs/img/report.jpg", or null if no such image exists.
+     */
+    public static String getImage(CmsObject cmso, String folderPath, String baseName) {
+        if (!folderPath.endsWith("/")) {
+            folderPath = folderPath.concat("/");
+        }
+        String fileName = getIndex(cmso, folderPath).get(baseName);
+        return fileName == null ? null : folderPath.concat(fileName);
+    }
+
+    /**
+     * Removes the cached index for the given folder.
+     *
+     * @param folderRootPath The folder's root path.
+     */
+    public static void invalidate(String folderRootPath) {
+        if (!folderRootPath.endsWith("/")) {
+            folderRootPath = folderRootPath.concat("/");
+        }
+        CACHE.remove(getCacheKey(true, folderRootPath));
+        CACHE.remove(getCacheKey(false, folderRootPath));
+    }
+
+    /**
+     * Removes all cached indexes.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Gets the index for the given folder, reading the folder listing if
+     * necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the folder (if necessary).
+     * @param folderPath The folder's site path, with trailing slash.
+     * @return The index for the given folder. Empty if the folder does not exist.
+     */
+    private static Map<String, String> getIndex(CmsObject cmso, String folderPath) {
+        String key = getCacheKey(cmso.getRequestContext().getCurrentProject().isOnlineProject(),
+                cmso.getRequestContext().addSiteRoot(folderPath));
+        Map<String, String> index = CACHE.get(key);
+        if (index == null) {
+            index = new HashMap<String, String>();
+            try {
+                List files = cmso.readResources(folderPath, CmsResourceFilter.DEFAULT_FILES, false);
+                Iterator i = files.iterator();
+                while (i.hasNext()) {
+                    String fileName = ((CmsResource)i.next()).getName();
+                    int priority = getPriority(fileName);
+                    if (priority < 0) {
+                        continue;
+                    }
+                    String baseName = fileName.substring(0, fileName.lastIndexOf("."));
+                    String existing = index.get(baseName);
+                    if (existing == null || priority < getPriority(existing)) {
+                        index.put(baseName, fileName);
+                    }
+                }
+            } catch (Exception e) {
+                // No such folder (or not readable): cache the empty index
+            }
+            index = Collections.unmodifiableMap(index);
+            CACHE.put(key, index);
+        }
+        return index;
+    }
+
+    /**
+     * Gets the priority of the given file name's extension.
+     *
+     * @param fileName The file name.
+     * @return The priority (lower is better), or -1 if the extension is not a supported image extension.
+     */
+    private static int getPriority(String fileName) {
+        for (int i = 0; i < IMAGE_EXTENSIONS.length; i++) {
+            if (fileName.endsWith(IMAGE_EXTENSIONS[i])) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the cache key for the given folder.
+     *
+     * @param online Whether or not the key is for the online project.
+     * @param folderRootPath The folder's root path, with trailing slash.
+     * @return The cache key for the given folder.
+     */
+    private static String getCacheKey(boolean online, String folderRootPath) {
+        return (online ? "1:" : "0:") + folderRootPath;
+    }
+}
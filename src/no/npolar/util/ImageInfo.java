@@ -0,0 +1,363 @@
+package no.npolar.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import no.npolar.util.exception.ImageAccessException;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.file.types.CmsResourceTypeImage;
+import org.opencms.main.OpenCms;
+
+/**
+ * Immutable holder of the image details needed to produce image markup:
+ * the image resource, its size, its description and its fingerprint.
+ * <p>
+ * Details can be read for a single image, or for many images at once, see
+ * {@link #read(org.opencms.file.CmsObject, java.util.Collection, boolean, boolean)}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see ImageUtil#getImages(org.opencms.jsp.CmsJspActionElement, java.util.List, java.lang.String, int, int, int, int, java.lang.String, boolean)
+ */
+public class ImageInfo {
+    /** Batches smaller than this are read sequentially, in the calling thread. */
+    public static final int PARALLEL_THRESHOLD = 8;
+    /** The number of pool threads, shared by all batch reads. */
+    public static final int MAX_THREADS = Math.min(4, Runtime.getRuntime().availableProcessors());
+    /** The max. number of pool threads used by a single batch read (in addition to the calling thread). */
+    public static final int MAX_POOL_THREADS_PER_READ = Math.max(1, MAX_THREADS / 2);
+    /** The max. time to wait for a chunk read by a pool thread, in milliseconds. */
+    public static final long CHUNK_TIMEOUT = 5000;
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ImageInfo.class);
+
+    /** Executes batch reads. */
+    private static ExecutorService executor = null;
+    /** The pool threads not currently in use. */
+    private static final Semaphore poolSlots = new Semaphore(MAX_THREADS);
+
+    /** The image resource. */
+    private final CmsResource resource;
+    /** The image size. */
+    private final ImageSize size;
+    /** The image description, or null if not read. */
+    private final String description;
+    /** The image placeholder, or null if none (or not read). */
+    private final String placeholder;
+
+    /**
+     * Creates a new image info instance.
+     *
+     * @param resource The image resource.
+     * @param size The image size.
+     * @param description The image description, or null if not read.
+     * @param placeholder The image placeholder, or null if none (or not read).
+     */
+    public ImageInfo(CmsResource resource, ImageSize size, String description, String placeholder) {
+        this.resource = resource;
+        this.size = size;
+        this.description = description;
+        this.placeholder = placeholder;
+    }
+
+    /**
+     * Reads the details for the given image.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param imagePath The image path (no parameters).
+     * @param readDescription If true, the "Description" property is read.
+     * @param readPlaceholder If true, the placeholder is read. See {@link ImagePlaceholder}.
+     * @return The details for the given image.
+     * @throws ImageAccessException If the image does not exist, or if its details cannot be read.
+     */
+    public static ImageInfo read(CmsObject cmso, String imagePath, boolean readDescription, boolean readPlaceholder)
+            throws ImageAccessException {
+        CmsResource imageResource = null;
+        try {
+            imageResource = cmso.readResource(imagePath, CmsResourceFilter.requireType(CmsResourceTypeImage.getStaticTypeId()));
+        } catch (Exception e) {
+            throw new ImageAccessException("Attempting to scale image '" + imagePath + "', which does not exist.");
+        }
+
+        ImageSize imageSize = null;
+        try {
+            imageSize = ImageSize.read(cmso, imageResource);
+        } catch (Exception e) {
+            throw new ImageAccessException("Error reading details from image '" + imagePath + "': " + e.getMessage());
+        }
+        if (imageSize == null || !imageSize.hasHeight()) {
+            throw new ImageAccessException("Error reading details from image '" + imagePath + "': Width and height are unknown.");
+        }
+
+        String imageDescription = null;
+        if (readDescription) {
+            try {
+                imageDescription = cmso.readPropertyObject(imageResource, CmsPropertyDefinition.PROPERTY_DESCRIPTION, false).getValue("");
+            } catch (Exception e) {
+                throw new ImageAccessException("Error reading property 'Description' for image '" + imagePath + "': " + e.getMessage());
+            }
+        }
+
+        return new ImageInfo(imageResource,
+                imageSize,
+                imageDescription,
+                readPlaceholder ? ImagePlaceholder.get(cmso, imageResource) : null);
+    }
+
+    /**
+     * Reads the details for all the given images, reading each distinct image
+     * only once.
+     * <p>
+     * Larger batches are split into chunks. The calling thread reads one
+     * chunk itself, while up to {@link #MAX_POOL_THREADS_PER_READ} chunks are
+     * read by pool threads, each using its own copy of the given CmsObject.
+     * A chunk is handed to the pool only if a pool thread is available right
+     * away - otherwise it is read in the calling thread, so chunks never
+     * queue behind other requests' chunks. A chunk that fails, or is not
+     * done within {@link #CHUNK_TIMEOUT}, is re-read in the calling thread
+     * (without discarding the other chunks).
+     * <p>
+     * Images that cannot be read are logged, and left out of the returned map.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param imagePaths The image paths (no parameters).
+     * @param readDescription If true, the "Description" property is read.
+     * @param readPlaceholder If true, the placeholder is read. See {@link ImagePlaceholder}.
+     * @return The details for the given images, keyed by image path.
+     */
+    public static Map<String, ImageInfo> read(CmsObject cmso,
+            Collection<String> imagePaths,
+            boolean readDescription,
+            boolean readPlaceholder) {
+
+        List<String> distinct = new ArrayList<String>(new LinkedHashSet<String>(imagePaths));
+        int numChunks = Math.min(MAX_POOL_THREADS_PER_READ + 1, distinct.size() / PARALLEL_THRESHOLD);
+        if (numChunks < 2) {
+            return readSequential(cmso, distinct, readDescription, readPlaceholder);
+        }
+
+        // The first chunk is read in the calling thread, the rest are handed to the pool (if possible)
+        int chunkSize = (distinct.size() + numChunks - 1) / numChunks;
+        List<List<String>> localChunks = new ArrayList<List<String>>(numChunks);
+        List<List<String>> pooledChunks = new ArrayList<List<String>>(numChunks);
+        List<ChunkRead> pooledReads = new ArrayList<ChunkRead>(numChunks);
+        localChunks.add(distinct.subList(0, chunkSize));
+        for (int i = chunkSize; i < distinct.size(); i += chunkSize) {
+            List<String> chunk = distinct.subList(i, Math.min(i + chunkSize, distinct.size()));
+            ChunkRead chunkRead = submit(cmso, chunk, readDescription, readPlaceholder);
+            if (chunkRead == null) {
+                localChunks.add(chunk);
+            } else {
+                pooledChunks.add(chunk);
+                pooledReads.add(chunkRead);
+            }
+        }
+
+        Map<String, ImageInfo> infos = new HashMap<String, ImageInfo>(distinct.size() * 2);
+        Iterator<List<String>> iLocal = localChunks.iterator();
+        while (iLocal.hasNext()) {
+            infos.putAll(readSequential(cmso, iLocal.next(), readDescription, readPlaceholder));
+        }
+        for (int i = 0; i < pooledReads.size(); i++) {
+            ChunkRead chunkRead = pooledReads.get(i);
+            try {
+                infos.putAll(chunkRead.get(CHUNK_TIMEOUT, TimeUnit.MILLISECONDS));
+                continue;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (Exception e) {
+                // Failed or timed out: handled below
+                if (LOG.isWarnEnabled()) {
+                    LOG.warn("Reading image details in the background failed (" + e + "), reading " 
+                            + pooledChunks.get(i).size() + " image(s) in the calling thread.");
+                }
+            }
+            chunkRead.cancel(true);
+            infos.putAll(readSequential(cmso, pooledChunks.get(i), readDescription, readPlaceholder));
+        }
+        return infos;
+    }
+
+    /**
+     * A chunk read by a pool thread. Holds one of the pool's slots, until it
+     * is done (or cancelled).
+     */
+    private static class ChunkRead extends FutureTask<Map<String, ImageInfo>> {
+        /**
+         * Creates a new chunk read.
+         *
+         * @param callable The read.
+         */
+        ChunkRead(Callable<Map<String, ImageInfo>> callable) {
+            super(callable);
+        }
+
+        /**
+         * Releases the pool slot.
+         */
+        @Override
+        protected void done() {
+            poolSlots.release();
+        }
+    }
+
+    /**
+     * Hands the given chunk to the pool, if a pool thread is available right
+     * away.
+     *
+     * @param cmso An initialized CmsObject, which is copied for the pool thread.
+     * @param chunk The image paths to read.
+     * @param readDescription If true, the "Description" property is read.
+     * @param readPlaceholder If true, the placeholder is read.
+     * @return The chunk read, or null if the chunk should be read in the calling thread instead.
+     */
+    private static ChunkRead submit(CmsObject cmso,
+            final List<String> chunk,
+            final boolean readDescription,
+            final boolean readPlaceholder) {
+        if (!poolSlots.tryAcquire()) {
+            return null;
+        }
+        final CmsObject chunkCms;
+        try {
+            chunkCms = OpenCms.initCmsObject(cmso);
+        } catch (Exception e) {
+            poolSlots.release();
+            return null;
+        }
+        ChunkRead chunkRead = new ChunkRead(new Callable<Map<String, ImageInfo>>() {
+            public Map<String, ImageInfo> call() {
+                return readSequential(chunkCms, chunk, readDescription, readPlaceholder);
+            }
+        });
+        try {
+            getExecutor().execute(chunkRead);
+        } catch (Exception e) {
+            // Rejected (shutting down)
+            chunkRead.cancel(false); // Releases the slot
+            return null;
+        }
+        return chunkRead;
+    }
+
+    /**
+     * Reads the details for all the given images, in the calling thread.
+     *
+     * @see #read(org.opencms.file.CmsObject, java.util.Collection, boolean, boolean)
+     */
+    private static Map<String, ImageInfo> readSequential(CmsObject cmso,
+            List<String> imagePaths,
+            boolean readDescription,
+            boolean readPlaceholder) {
+        Map<String, ImageInfo> infos = new HashMap<String, ImageInfo>(imagePaths.size() * 2);
+        Iterator<String> i = imagePaths.iterator();
+        while (i.hasNext()) {
+            String imagePath = i.next();
+            try {
+                infos.put(imagePath, read(cmso, imagePath, readDescription, readPlaceholder));
+            } catch (ImageAccessException e) {
+                if (LOG.isErrorEnabled()) {
+                    LOG.error(e.getMessage());
+                }
+            }
+        }
+        return infos;
+    }
+
+    /**
+     * Gets the batch read executor, creating it if necessary.
+     *
+     * @return The batch read executor.
+     */
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newFixedThreadPool(MAX_THREADS, new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "npolar-image-info");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Shuts down the batch read executor, if running.
+     */
+    public static synchronized void shutDown() {
+        if (executor != null) {
+            // Cancel any unstarted reads, so their pool slots are released
+            Iterator<Runnable> i = executor.shutdownNow().iterator();
+            while (i.hasNext()) {
+                Runnable r = i.next();
+                if (r instanceof Future) {
+                    ((Future<?>)r).cancel(false);
+                }
+            }
+            executor = null;
+        }
+    }
+
+    /**
+     * Gets the image resource.
+     *
+     * @return The image resource.
+     */
+    public CmsResource getResource() {
+        return resource;
+    }
+
+    /**
+     * Gets the image size.
+     *
+     * @return The image size.
+     */
+    public ImageSize getSize() {
+        return size;
+    }
+
+    /**
+     * Gets the image description.
+     *
+     * @return The image description, or null if it was not read.
+     */
+    public String getDescription() {
+        return description;
+    }
+
+    /**
+     * Gets the image placeholder.
+     *
+     * @return The image placeholder, or null if none (or if it was not read).
+     */
+    public String getPlaceholder() {
+        return placeholder;
+    }
+
+    /**
+     * Gets the image fingerprint (its date last modified).
+     *
+     * @return The image fingerprint.
+     */
+    public long getFingerprint() {
+        return resource.getDateLastModified();
+    }
+}
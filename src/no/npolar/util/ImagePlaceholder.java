@@ -0,0 +1,308 @@
+package no.npolar.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Image;
+import java.awt.image.BufferedImage;
+import java.awt.image.ConvolveOp;
+import java.awt.image.Kernel;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.codec.binary.Base64;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.main.OpenCms;
+
+/**
+ * Creates and reads tiny, blurred placeholders for images.
+ * <p>
+ * A placeholder is a ~20px wide JPEG version of the image, stored as a data
+ * URI in the image's {@link #PROPERTY_PLACEHOLDER} property. It is intended
+ * as a background for lazy-loaded images, shown until the actual image is
+ * loaded. See {@link ImageUtil#getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean)}.
+ * <p>
+ * Placeholders are created in the background, once per image version. The
+ * property value is prefixed with the image's content date, so a placeholder
+ * for an older version is never used.
+ * <p>
+ * The job also writes the image's "image.size" property, if it is missing or
+ * malformed (see {@link ImageSizeProbe}), in the same lock window.
+ * <p>
+ * The background job never steals or removes another lock: if the image is
+ * locked when the job runs, the job is retried later (up to
+ * {@link #MAX_ATTEMPTS} times).
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ImagePlaceholder {
+    /** The name of the property that holds the placeholder. */
+    public static final String PROPERTY_PLACEHOLDER = "image.placeholder";
+    /** The placeholder width. */
+    public static final int PLACEHOLDER_WIDTH = 20;
+    /** The placeholder JPEG quality. */
+    public static final float PLACEHOLDER_QUALITY = 0.6f;
+    /** Separates the version from the data URI in the property value. */
+    private static final char VERSION_SEPARATOR = '|';
+    /** The data URI prefix. */
+    private static final String DATA_URI_PREFIX = "data:image/jpeg;base64,";
+    /** The max. number of attempts at writing a placeholder to a (locked) image. */
+    public static final int MAX_ATTEMPTS = 10;
+    /** The delay before retrying a job, in milliseconds. */
+    public static final long RETRY_DELAY = 30000;
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ImagePlaceholder.class);
+
+    /** Executes placeholder creation jobs, one at a time. */
+    private static ScheduledExecutorService executor = null;
+
+    /**
+     * Gets the placeholder for the given image, as a data URI.
+     *
+     * @param cmso An initialized CmsObject, used to read the property.
+     * @param image The image.
+     * @return The placeholder for the given image, as a data URI, or null if none exists for the current image version.
+     */
+    public static String get(CmsObject cmso, CmsResource image) {
+        try {
+            String value = cmso.readPropertyObject(image, PROPERTY_PLACEHOLDER, false).getValue();
+            if (value != null) {
+                int i = value.indexOf(VERSION_SEPARATOR);
+                if (i > 0 && value.substring(0, i).equals(String.valueOf(image.getDateContent()))) {
+                    return value.substring(i + 1);
+                }
+            }
+        } catch (Exception e) {
+            // Ignore, no placeholder
+        }
+        return null;
+    }
+
+    /**
+     * Schedules creation of a placeholder for the given image.
+     * <p>
+     * The job runs in the background, using a copy of the given CmsObject.
+     * Callers should schedule only when they are done writing to the image
+     * (e.g. after committing a {@link ThumbnailBatch}). Nothing is scheduled
+     * in the online project (as the property cannot be written there).
+     *
+     * @param cmso An initialized CmsObject, used to read and update the image.
+     * @param image The image.
+     */
+    public static void schedule(CmsObject cmso, CmsResource image) {
+        if (cmso.getRequestContext().getCurrentProject().isOnlineProject()) {
+            return;
+        }
+        try {
+            schedule(OpenCms.initCmsObject(cmso), image, 1, 0);
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to schedule placeholder creation for '" + image.getRootPath() + "'.", e);
+            }
+        }
+    }
+
+    /**
+     * Schedules an attempt at creating a placeholder for the given image.
+     *
+     * @param jobCms The CmsObject to use in the job (not shared with other threads).
+     * @param image The image.
+     * @param attempt The attempt number, starting at 1.
+     * @param delay The delay before running the job, in milliseconds.
+     */
+    private static void schedule(final CmsObject jobCms, final CmsResource image, final int attempt, long delay) {
+        getExecutor().schedule(new Runnable() {
+            public void run() {
+                try {
+                    CmsResource current = jobCms.readResource(image.getStructureId());
+                    String sizeValue = jobCms.readPropertyObject(current, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue();
+                    boolean sizeNeeded = ImageSizeProbe.isProbeNeeded(current, sizeValue);
+                    if (get(jobCms, current) != null && !sizeNeeded) {
+                        return;
+                    }
+                    if (!jobCms.getLock(current).isUnlocked()) {
+                        // Someone (maybe an event handler) is working on the image: try again later
+                        if (attempt < MAX_ATTEMPTS) {
+                            schedule(jobCms, image, attempt + 1, RETRY_DELAY);
+                        } else if (LOG.isWarnEnabled()) {
+                            LOG.warn("Gave up creating placeholder for '" + image.getRootPath() + "', as it remained locked.");
+                        }
+                        return;
+                    }
+                    byte[] data = jobCms.readFile(current).getContents();
+                    List<CmsProperty> properties = new ArrayList<CmsProperty>(2);
+                    if (get(jobCms, current) == null) {
+                        String dataUri = create(data);
+                        if (dataUri != null) {
+                            properties.add(new CmsProperty(PROPERTY_PLACEHOLDER,
+                                    current.getDateContent() + String.valueOf(VERSION_SEPARATOR) + dataUri, null));
+                        }
+                    }
+                    if (sizeNeeded) {
+                        int[] size = ImageSizeProbe.readDimensions(data);
+                        if (size != null) {
+                            properties.add(new CmsProperty(CmsPropertyDefinition.PROPERTY_IMAGE_SIZE,
+                                    ImageSizeProbe.toPropertyValue(size), null));
+                        }
+                    }
+                    if (!properties.isEmpty()) {
+                        ImageSizeProbe.writeProperties(jobCms, current, properties);
+                    }
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to create placeholder for '" + image.getRootPath() + "'.", e);
+                    }
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Creates a placeholder for the given image data.
+     * <p>
+     * The image is decoded using subsampling (so the full image is never held
+     * in memory), scaled down using area averaging, blurred, and encoded as a
+     * low-quality JPEG.
+     *
+     * @param data The image data.
+     * @return The placeholder, as a data URI, or null if the image could not be read.
+     * @throws IOException If decoding or encoding fails.
+     */
+    public static String create(byte[] data) throws IOException {
+        BufferedImage source = readSubsampled(data, PLACEHOLDER_WIDTH * 4);
+        if (source == null) {
+            return null;
+        }
+        int width = Math.min(PLACEHOLDER_WIDTH, source.getWidth());
+        int height = Math.max(1, Math.round((float)source.getHeight() * width / source.getWidth()));
+
+        // Scale down, and flatten any transparency onto white (JPEG has no alpha)
+        Image scaled = source.getScaledInstance(width, height, Image.SCALE_AREA_AVERAGING);
+        BufferedImage tiny = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = tiny.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, width, height);
+            g.drawImage(scaled, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+
+        // Blur (3x3 box)
+        float[] box = new float[9];
+        for (int i = 0; i < box.length; i++) {
+            box[i] = 1f / box.length;
+        }
+        BufferedImage blurred = new ConvolveOp(new Kernel(3, 3, box), ConvolveOp.EDGE_NO_OP, null).filter(tiny, null);
+
+        return DATA_URI_PREFIX + new String(Base64.encodeBase64(encodeJpeg(blurred, PLACEHOLDER_QUALITY)), "US-ASCII");
+    }
+
+    /**
+     * Shuts down the background executor, if running.
+     */
+    public static synchronized void shutDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+    }
+
+    /**
+     * Reads the given image data, subsampled so that the result is not much
+     * wider than the given minimum width.
+     *
+     * @param data The image data.
+     * @param minWidth The minimum width of the result.
+     * @return The (subsampled) image, or null if no suitable reader was found.
+     * @throws IOException If decoding fails.
+     */
+    private static BufferedImage readSubsampled(byte[] data, int minWidth) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (iis == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int step = Math.max(1, reader.getWidth(0) / minWidth);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Encodes the given image as JPEG, using the given quality.
+     *
+     * @param image The image.
+     * @param quality The quality, between 0 and 1.
+     * @return The JPEG data.
+     * @throws IOException If encoding fails.
+     */
+    private static byte[] encodeJpeg(BufferedImage image, float quality) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            ios.close();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Gets the background executor, creating it if necessary.
+     *
+     * @return The background executor.
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "npolar-image-placeholder");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+}
@@ -0,0 +1,292 @@
+package no.npolar.util;
+
+import no.npolar.util.exception.MalformedPropertyValueException;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.main.CmsException;
+
+/**
+ * Immutable representation of an "image.size" property value.
+ * <p>
+ * The value is either of the standard form, e.g. "w:400,h:300", or a single
+ * number describing the width only, e.g. "300" (typically used on thumbnail
+ * folders).
+ * <p>
+ * Values read via {@link #read(org.opencms.file.CmsObject, org.opencms.file.CmsResource)}
+ * are cached per resource (structure ID + date last modified), so the
+ * property is read and parsed only once per resource version. The cache is
+ * invalidated by {@link Actions} on property changes and publish events.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public final class ImageSize {
+    /** Value used for an undefined dimension. */
+    public static final int UNDEFINED = -1;
+
+    /** The max. number of cached values. */
+    private static final int MAX_CACHED = 5000;
+    /** Cached values, keyed by project type + structure ID + date last modified. */
+    private static final LruCache<String, ImageSize> CACHE = new LruCache<String, ImageSize>(MAX_CACHED);
+    /** Cache marker for resources with no "image.size" value. */
+    private static final ImageSize NONE = new ImageSize(UNDEFINED, UNDEFINED);
+
+    /** The width. */
+    private final int width;
+    /** The height, or {@link #UNDEFINED} if only the width is defined. */
+    private final int height;
+
+    /**
+     * Creates a new size.
+     *
+     * @param width The width.
+     * @param height The height, or {@link #UNDEFINED} if only the width is defined.
+     */
+    public ImageSize(int width, int height) {
+        this.width = width;
+        this.height = height;
+    }
+
+    /**
+     * Gets the width.
+     *
+     * @return The width.
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height.
+     *
+     * @return The height, or {@link #UNDEFINED} if only the width is defined.
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets whether or not the height is defined.
+     *
+     * @return True if both width and height are defined, false if only the width is.
+     */
+    public boolean hasHeight() {
+        return height != UNDEFINED;
+    }
+
+    /**
+     * Gets this size as an integer array, holding either the width, or the
+     * width and height.
+     *
+     * @return This size as an integer array.
+     * @see CmsAgent#getImageSize(java.lang.String)
+     */
+    public int[] toArray() {
+        if (hasHeight()) {
+            int[] twoValues = { width, height };
+            return twoValues;
+        }
+        int[] oneValue = { width };
+        return oneValue;
+    }
+
+    /**
+     * Gets this size as an "image.size" property value, e.g. "w:400,h:300" or
+     * "300".
+     *
+     * @return This size as an "image.size" property value.
+     */
+    @Override
+    public String toString() {
+        return hasHeight() ? "w:" + width + ",h:" + height : String.valueOf(width);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof ImageSize)) {
+            return false;
+        }
+        ImageSize other = (ImageSize)o;
+        return width == other.width && height == other.height;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * width + height;
+    }
+
+    /**
+     * Reads the "image.size" property of the given resource.
+     * <p>
+     * If the resource is an image, and the property is missing or malformed,
+     * the dimensions are read from the image header instead, and written back
+     * to the property by a background job. See {@link ImageSizeProbe}.
+     * <p>
+     * Results are cached per resource version.
+     *
+     * @param cmso An initialized CmsObject, used to read the property.
+     * @param resource The resource.
+     * @return The size, or null if the resource has no "image.size" value.
+     * @throws CmsException If the property cannot be read.
+     * @throws MalformedPropertyValueException If the property value is malformed.
+     */
+    public static ImageSize read(CmsObject cmso, CmsResource resource) throws CmsException, MalformedPropertyValueException {
+        String key = getCacheKey(cmso.getRequestContext().getCurrentProject().isOnlineProject(), resource);
+        ImageSize size = CACHE.get(key);
+        if (size == null) {
+            String sizeValue = cmso.readPropertyObject(resource, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue();
+            if (ImageSizeProbe.isProbeNeeded(resource, sizeValue)) {
+                int[] probedSize = ImageSizeProbe.probe(cmso, resource, false); // Read-only: never write while rendering
+                if (probedSize != null) {
+                    size = new ImageSize(probedSize[0], probedSize[1]);
+                    ImageSizeProbe.scheduleWriteBack(resource); // Written in the background, so later reads are property-only
+                }
+            }
+            if (size == null) {
+                size = sizeValue == null ? NONE : parse(sizeValue, resource.getName());
+            }
+            CACHE.put(key, size);
+        }
+        return size == NONE ? null : size;
+    }
+
+    /**
+     * Removes any cached value for the given resource.
+     *
+     * @param resource The resource.
+     */
+    public static void invalidate(CmsResource resource) {
+        CACHE.remove(getCacheKey(true, resource));
+        CACHE.remove(getCacheKey(false, resource));
+    }
+
+    /**
+     * Removes all cached values.
+     */
+    public static void clearCache() {
+        CACHE.clear();
+    }
+
+    /**
+     * Parses the given "image.size" value, e.g. "w:400,h:300" or "300".
+     *
+     * @param value The "image.size" value.
+     * @return The parsed size, or null if the given value is null.
+     * @throws MalformedPropertyValueException If the given value is malformed.
+     */
+    public static ImageSize parse(CharSequence value) throws MalformedPropertyValueException {
+        return value == null ? null : parse(value, null);
+    }
+
+    /**
+     * Parses the given "image.size" value, scanning it char by char.
+     *
+     * @param value The "image.size" value.
+     * @param resourceName The name of the resource the value was read from, used in error messages. May be null.
+     * @return The parsed size.
+     * @throws MalformedPropertyValueException If the given value is malformed.
+     */
+    private static ImageSize parse(CharSequence value, String resourceName) throws MalformedPropertyValueException {
+        int start = 0;
+        int end = value.length();
+        while (start < end && Character.isWhitespace(value.charAt(start)))
+            start++;
+        while (end > start && Character.isWhitespace(value.charAt(end - 1)))
+            end--;
+
+        int comma = -1;
+        for (int i = start; i < end; i++) {
+            if (value.charAt(i) == ',') {
+                if (comma != -1) {
+                    throw malformed(resourceName, "'image.size' did not contain 2 elements, or did not use the correct separator sign.");
+                }
+                comma = i;
+            }
+        }
+
+        // No comma separator, assume that the value is a single number that should be the width
+        if (comma == -1) {
+            return new ImageSize(parseNumber(value, start, end, resourceName), UNDEFINED);
+        }
+        return new ImageSize(parseDimension(value, start, comma, 'w', resourceName),
+                parseDimension(value, comma + 1, end, 'h', resourceName));
+    }
+
+    /**
+     * Parses a single dimension, e.g. "w:400", in the given range.
+     *
+     * @param value The "image.size" value.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @param prefix The expected prefix char, 'w' or 'h'.
+     * @param resourceName The name of the resource the value was read from, used in error messages. May be null.
+     * @return The parsed dimension.
+     * @throws MalformedPropertyValueException If the dimension is malformed.
+     */
+    private static int parseDimension(CharSequence value, int start, int end, char prefix, String resourceName)
+            throws MalformedPropertyValueException {
+        while (start < end && Character.isWhitespace(value.charAt(start)))
+            start++;
+        if (end - start < 3 || value.charAt(start) != prefix || value.charAt(start + 1) != ':') {
+            throw malformed(resourceName, "'image.size' was missing either 'w:' or 'h:'.");
+        }
+        return parseNumber(value, start + 2, end, resourceName);
+    }
+
+    /**
+     * Parses a non-negative number in the given range.
+     *
+     * @param value The "image.size" value.
+     * @param start The start index (inclusive).
+     * @param end The end index (exclusive).
+     * @param resourceName The name of the resource the value was read from, used in error messages. May be null.
+     * @return The parsed number.
+     * @throws MalformedPropertyValueException If the range does not hold a valid number.
+     */
+    private static int parseNumber(CharSequence value, int start, int end, String resourceName)
+            throws MalformedPropertyValueException {
+        while (start < end && Character.isWhitespace(value.charAt(start)))
+            start++;
+        while (end > start && Character.isWhitespace(value.charAt(end - 1)))
+            end--;
+        if (start == end) {
+            throw malformed(resourceName, "'image.size' contained a non-numeric value where numeric value was expected.");
+        }
+        long number = 0;
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (c < '0' || c > '9') {
+                throw malformed(resourceName, "'image.size' contained a non-numeric value where numeric value was expected.");
+            }
+            number = number * 10 + (c - '0');
+            if (number > Integer.MAX_VALUE) {
+                throw malformed(resourceName, "'image.size' contained a number that was too large.");
+            }
+        }
+        return (int)number;
+    }
+
+    /**
+     * Creates an exception describing a malformed "image.size" value.
+     *
+     * @param resourceName The name of the resource the value was read from. May be null.
+     * @param detail The details.
+     * @return The exception.
+     */
+    private static MalformedPropertyValueException malformed(String resourceName, String detail) {
+        return new MalformedPropertyValueException("Property value was not of correct format"
+                + (resourceName == null ? "" : " for '" + resourceName + "'")
+                + ": " + detail + " Correct format example: 'w:123,h:123'.");
+    }
+
+    /**
+     * Gets the cache key for the given resource.
+     *
+     * @param online Whether or not the key is for the online project.
+     * @param resource The resource.
+     * @return The cache key for the given resource.
+     */
+    private static String getCacheKey(boolean online, CmsResource resource) {
+        return (online ? "1:" : "0:") + resource.getStructureId() + ":" + resource.getDateLastModified();
+    }
+}
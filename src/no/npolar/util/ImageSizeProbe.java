@@ -0,0 +1,353 @@
+package no.npolar.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsProperty;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.file.CmsResource;
+import org.opencms.file.types.CmsResourceTypeImage;
+import org.opencms.lock.CmsLock;
+import org.opencms.main.OpenCms;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Determines image dimensions by reading only the image header.
+ * <p>
+ * Used as a fallback when the "image.size" property of an image is missing or
+ * malformed. An ImageIO reader is used to read the dimensions from the
+ * JPEG/PNG/GIF header; the pixel data is never decoded.
+ * <p>
+ * Probing while rendering is read-only. Instead, rendering queues a
+ * background write-back (see {@link #scheduleWriteBack(org.opencms.file.CmsResource)}),
+ * which writes the probed dimensions to the "image.size" property, so
+ * subsequent lookups can be property-only. {@link ImagePlaceholder} does the
+ * same for new images. Background writes never steal or remove another lock:
+ * locked images are retried later (up to {@link #MAX_ATTEMPTS} times).
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ImageSizeProbe {
+    /** Pattern describing a well-formed "image.size" value for an image, e.g. "w:400,h:300". */
+    private static final Pattern WELL_FORMED_IMAGE_SIZE = Pattern.compile("\\s*w:\\d+\\s*,\\s*h:\\d+\\s*");
+
+    /** The max. number of attempts at writing back the size of a (locked) image. */
+    public static final int MAX_ATTEMPTS = 10;
+    /** The delay before retrying a write-back, in milliseconds. */
+    public static final long RETRY_DELAY = 30000;
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ImageSizeProbe.class);
+
+    /** Images with a pending write-back, keyed by structure ID. */
+    private static final ConcurrentHashMap<CmsUUID, String> pending = new ConcurrentHashMap<CmsUUID, String>();
+    /** Executes write-backs, one at a time. */
+    private static ScheduledExecutorService executor = null;
+
+    /**
+     * Determines whether or not probing is needed for the given resource,
+     * having the given "image.size" value.
+     * <p>
+     * Only image resources are probed, and only if the given value is missing
+     * or not of the form "w:123,h:123".
+     *
+     * @param resource The resource.
+     * @param sizeValue The resource's "image.size" value, as read from the property. May be null.
+     * @return True if probing is needed, false if not.
+     */
+    public static boolean isProbeNeeded(CmsResource resource, String sizeValue) {
+        return resource.getTypeId() == CmsResourceTypeImage.getStaticTypeId()
+                && (sizeValue == null || !WELL_FORMED_IMAGE_SIZE.matcher(sizeValue).matches());
+    }
+
+    /**
+     * Probes the dimensions of the given image, without writing anything.
+     * <p>
+     * This is the variant to use when rendering: reading must never modify
+     * the image.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The image.
+     * @return The image's width and height, or null if they could not be determined.
+     * @see #probe(org.opencms.file.CmsObject, org.opencms.file.CmsResource, boolean)
+     */
+    public static int[] probe(CmsObject cmso, CmsResource image) {
+        return probe(cmso, image, false);
+    }
+
+    /**
+     * Probes the dimensions of the given image, optionally writing the result
+     * back to the image's "image.size" property.
+     * <p>
+     * The property is never written in the online project. In the offline
+     * project, an unlocked image is locked for the write and unlocked again
+     * afterwards. A locked image is not written.
+     * <p>
+     * Write-back is intended for event handlers and background jobs only, see
+     * {@link #scheduleWriteBack(org.opencms.file.CmsResource)}.
+     *
+     * @param cmso An initialized CmsObject, used to read (and possibly update) the image.
+     * @param image The image.
+     * @param writeBack If true, the result is written to the image's "image.size" property.
+     * @return The image's width and height, or null if they could not be determined.
+     */
+    public static int[] probe(CmsObject cmso, CmsResource image, boolean writeBack) {
+        int[] size = null;
+        try {
+            size = readDimensions(cmso.readFile(image).getContents());
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to probe dimensions of image '" + image.getRootPath() + "'.", e);
+            }
+        }
+        if (size != null && writeBack
+                && !cmso.getRequestContext().getCurrentProject().isOnlineProject()) {
+            writeImageSize(cmso, image, size);
+        }
+        return size;
+    }
+
+    /**
+     * Queues a background write-back of the given image's dimensions to its
+     * "image.size" property.
+     * <p>
+     * Intended for use while rendering, when a probe was needed: the job runs
+     * in the offline project (see {@link Actions#initEventCmsObject()}), and
+     * does nothing if the property has been fixed in the meantime. If the
+     * image was unchanged (i.e. identical to the online version) prior to the
+     * write, it is published afterwards, so the online project also gets the
+     * property. A write-back already pending for the image is not repeated.
+     *
+     * @param image The image.
+     */
+    public static void scheduleWriteBack(CmsResource image) {
+        if (pending.putIfAbsent(image.getStructureId(), image.getRootPath()) == null) {
+            scheduleWriteBack(image.getStructureId(), image.getRootPath(), 1, 0);
+        }
+    }
+
+    /**
+     * Schedules an attempt at writing back the dimensions of the image with
+     * the given ID.
+     *
+     * @param id The image's structure ID.
+     * @param rootPath The image's root path (used in log messages).
+     * @param attempt The attempt number, starting at 1.
+     * @param delay The delay before running the job, in milliseconds.
+     */
+    private static void scheduleWriteBack(final CmsUUID id, final String rootPath, final int attempt, long delay) {
+        getExecutor().schedule(new Runnable() {
+            public void run() {
+                boolean done = true;
+                try {
+                    done = writeBack(id);
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to write back the size of image '" + rootPath + "'.", e);
+                    }
+                }
+                if (!done && attempt < MAX_ATTEMPTS) {
+                    // Someone is working on the image: try again later
+                    scheduleWriteBack(id, rootPath, attempt + 1, RETRY_DELAY);
+                    return;
+                }
+                if (!done && LOG.isWarnEnabled()) {
+                    LOG.warn("Gave up writing back the size of image '" + rootPath + "', as it remained locked.");
+                }
+                pending.remove(id);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Writes back the dimensions of the image with the given ID, if its
+     * "image.size" property is (still) missing or malformed.
+     *
+     * @param id The image's structure ID.
+     * @return True if done (or nothing to do), false if the image is locked and the write-back should be retried.
+     * @throws Exception If anything goes wrong.
+     */
+    private static boolean writeBack(CmsUUID id) throws Exception {
+        CmsObject cmso = Actions.initEventCmsObject();
+        CmsResource image = null;
+        try {
+            image = cmso.readResource(id);
+        } catch (Exception e) {
+            return true; // Deleted in the meantime
+        }
+        String sizeValue = cmso.readPropertyObject(image, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, false).getValue();
+        if (!isProbeNeeded(image, sizeValue)) {
+            return true;
+        }
+        if (!cmso.getLock(image).isUnlocked()) {
+            return false;
+        }
+        int[] size = readDimensions(cmso.readFile(image).getContents());
+        if (size == null) {
+            return true;
+        }
+        // Publish afterwards only if the image is otherwise identical to the online version
+        boolean unchanged = image.getState().equals(CmsResource.STATE_UNCHANGED);
+        if (writeProperty(cmso, image, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, toPropertyValue(size)) && unchanged) {
+            OpenCms.getPublishManager().publishResource(cmso, cmso.getSitePath(image));
+        }
+        return true;
+    }
+
+    /**
+     * Cancels all pending write-backs, and shuts down the background
+     * executor, if running.
+     */
+    public static synchronized void shutDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+    }
+
+    /**
+     * Gets the background executor, creating it if necessary.
+     *
+     * @return The background executor.
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "npolar-image-size-writeback");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Reads the dimensions of the given image data from its header.
+     * <p>
+     * The pixel data is not decoded.
+     *
+     * @param data The image data.
+     * @return The image's width and height, or null if no suitable reader was found.
+     * @throws IOException If reading the header fails.
+     */
+    public static int[] readDimensions(byte[] data) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (iis == null) {
+            return null;
+        }
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                int[] size = { reader.getWidth(0), reader.getHeight(0) };
+                return size;
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+    }
+
+    /**
+     * Writes the given dimensions to the "image.size" property of the given
+     * image, on the form "w:123,h:123".
+     *
+     * @param cmso An initialized CmsObject, used to update the image.
+     * @param image The image.
+     * @param size The image's width and height.
+     */
+    private static void writeImageSize(CmsObject cmso, CmsResource image, int[] size) {
+        writeProperty(cmso, image, CmsPropertyDefinition.PROPERTY_IMAGE_SIZE, toPropertyValue(size));
+    }
+
+    /**
+     * Writes the given value to the given (individual) property of the given
+     * resource.
+     * <p>
+     * Only unlocked resources are written: the resource is locked for the
+     * write and unlocked again afterwards. A locked resource is left alone -
+     * its lock is never stolen or removed. Failures are logged.
+     *
+     * @param cmso An initialized CmsObject, used to update the resource.
+     * @param resource The resource.
+     * @param propertyName The property name.
+     * @param value The property value.
+     * @return True if the property was written, false if not (also if the resource was locked).
+     */
+    static boolean writeProperty(CmsObject cmso, CmsResource resource, String propertyName, String value) {
+        List<CmsProperty> properties = new ArrayList<CmsProperty>(1);
+        properties.add(new CmsProperty(propertyName, value, null));
+        return writeProperties(cmso, resource, properties);
+    }
+
+    /**
+     * Writes the given (individual) properties of the given resource, in a
+     * single lock window.
+     * <p>
+     * Only unlocked resources are written, see
+     * {@link #writeProperty(org.opencms.file.CmsObject, org.opencms.file.CmsResource, java.lang.String, java.lang.String)}.
+     *
+     * @param cmso An initialized CmsObject, used to update the resource.
+     * @param resource The resource.
+     * @param properties The properties.
+     * @return True if the properties were written, false if not (also if the resource was locked).
+     */
+    static boolean writeProperties(CmsObject cmso, CmsResource resource, List<CmsProperty> properties) {
+        String path = cmso.getSitePath(resource);
+        try {
+            CmsLock lock = cmso.getLock(resource);
+            if (!lock.isUnlocked()) {
+                if (LOG.isDebugEnabled()) {
+                    LOG.debug("Not writing properties on '" + resource.getRootPath() + "', as it is locked.");
+                }
+                return false;
+            }
+            cmso.lockResource(path);
+            try {
+                cmso.writePropertyObjects(path, properties);
+            } finally {
+                cmso.unlockResource(path);
+            }
+            return true;
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to write properties on '" + resource.getRootPath() + "'.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Gets the "image.size" value for the given dimensions, on the form
+     * "w:123,h:123".
+     *
+     * @param size The image's width and height.
+     * @return The "image.size" value for the given dimensions.
+     */
+    static String toPropertyValue(int[] size) {
+        return "w:" + size[0] + ",h:" + size[1];
+    }
+}
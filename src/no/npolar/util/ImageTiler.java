@@ -0,0 +1,541 @@
+package no.npolar.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.main.CmsException;
+
+/**
+ * Creates zoom pyramids of fixed-size tiles for very large images, using the
+ * Deep Zoom layout.
+ * <p>
+ * Level 0 is a single pixel, and each subsequent level doubles the size,
+ * up to the highest level, which is the full size image. Each level is cut
+ * into square tiles, addressed as <code>[level]/[column]_[row]</code>.
+ * Alongside the tiles, a manifest (a .dzi XML file) describes the image size,
+ * tile size and tile format, so viewers (e.g. OpenSeadragon) can fetch only
+ * the tiles that are visible at the current zoom level.
+ * <p>
+ * The source image is decoded only once. Each level is derived from the level
+ * above it by halving, so the total work is about 4/3 of the source size.
+ * <p>
+ * Tiles and manifest are kept in the {@link ScaledImageStore}. The manifest is
+ * stored last, so its presence means the pyramid was complete when created.
+ * A pyramid may take no more than 1/{@link #MAX_STORE_SHARE} of the store's
+ * budget; larger images are not tiled. If tiles are evicted from the store
+ * later on, the pyramid is re-created - at most once per generation, however
+ * many requests hit missing tiles. Tiles are
+ * served by {@link #serve(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String)},
+ * typically from a JSP used as the tile delivery endpoint.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ImageTiler {
+    /** The default tile size, in pixels. */
+    public static final int DEFAULT_TILE_SIZE = 256;
+    /** The default JPEG quality for tiles (0-100). */
+    public static final int DEFAULT_QUALITY = 85;
+    /** The path used to request the manifest. */
+    public static final String MANIFEST_PATH = "manifest";
+    /** The Deep Zoom XML namespace. */
+    public static final String DZI_NAMESPACE = "http://schemas.microsoft.com/deepzoom/2008";
+    /** A pyramid may take up no more than 1/MAX_STORE_SHARE of the store's byte budget. */
+    public static final int MAX_STORE_SHARE = 4;
+    /** The max. number of pyramid generations (and untileable images) to remember. */
+    private static final int MAX_REMEMBERED = 1000;
+
+    /** Pattern describing a tile path, e.g. "12/3_5". */
+    private static final Pattern TILE_PATH = Pattern.compile("(\\d+)/(\\d+)_(\\d+)(\\.\\w+)?");
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ImageTiler.class);
+
+    /** The shared instance. */
+    private static ImageTiler instance = null;
+
+    /** Locks used to make sure each pyramid is created only once at a time, keyed by manifest key. */
+    private final ConcurrentHashMap<String, Object> locks = new ConcurrentHashMap<String, Object>();
+    /** The number of times each pyramid has been created, keyed by manifest key. */
+    private final LruCache<String, Integer> generations = new LruCache<String, Integer>(MAX_REMEMBERED);
+    /** Manifest keys of images whose pyramid would be too large for the store. */
+    private final LruCache<String, Boolean> untileable = new LruCache<String, Boolean>(MAX_REMEMBERED);
+
+    /** The store to keep tiles in. */
+    private final ScaledImageStore store;
+    /** The tile size. */
+    private final int tileSize;
+    /** The JPEG quality for tiles. */
+    private final int quality;
+
+    /**
+     * Creates a new tiler, keeping tiles in the given store.
+     *
+     * @param store The store to keep tiles in.
+     * @param tileSize The tile size, in pixels.
+     * @param quality The JPEG quality for tiles (0-100).
+     */
+    public ImageTiler(ScaledImageStore store, int tileSize, int quality) {
+        if (tileSize < 1) {
+            throw new IllegalArgumentException("Tile size must be positive (was " + tileSize + ").");
+        }
+        this.store = store;
+        this.tileSize = tileSize;
+        this.quality = quality;
+    }
+
+    /**
+     * Gets the shared tiler, which uses the shared store and default settings.
+     *
+     * @return The shared tiler.
+     */
+    public static synchronized ImageTiler getInstance() {
+        if (instance == null) {
+            instance = new ImageTiler(ScaledImageStore.getInstance(), DEFAULT_TILE_SIZE, DEFAULT_QUALITY);
+        }
+        return instance;
+    }
+
+    /**
+     * Gets the highest level of the pyramid for an image of the given size.
+     *
+     * @param width The image width.
+     * @param height The image height.
+     * @return The highest level, i.e. the level of the full size image.
+     */
+    public static int getMaxLevel(int width, int height) {
+        int max = Math.max(width, height);
+        int level = 0;
+        while ((1 << level) < max) {
+            level++;
+        }
+        return level;
+    }
+
+    /**
+     * Gets the manifest for the given image, creating the pyramid if
+     * necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The image.
+     * @return The manifest, or null if the pyramid could not be stored (e.g. if it is too large for the store).
+     * @throws CmsException If the image cannot be read.
+     * @throws IOException If decoding the image or writing to disk fails.
+     */
+    public File getManifest(CmsObject cmso, CmsResource image) throws CmsException, IOException {
+        String manifestKey = createKey(cmso, image, MANIFEST_PATH);
+        File manifest = store.get(manifestKey);
+        if (manifest == null) {
+            manifest = createPyramidOnce(cmso, image, manifestKey, getGeneration(manifestKey), null);
+        }
+        return manifest;
+    }
+
+    /**
+     * Gets a tile of the given image, creating the pyramid if necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The image.
+     * @param level The level.
+     * @param column The tile column.
+     * @param row The tile row.
+     * @return The tile, or null if no such tile exists.
+     * @throws CmsException If the image cannot be read.
+     * @throws IOException If decoding the image or writing to disk fails.
+     */
+    public File getTile(CmsObject cmso, CmsResource image, int level, int column, int row) throws CmsException, IOException {
+        String tileKey = createKey(cmso, image, level + "/" + column + "_" + row);
+        File tile = store.get(tileKey);
+        if (tile == null) {
+            String manifestKey = createKey(cmso, image, MANIFEST_PATH);
+            int generation = getGeneration(manifestKey);
+            if (getManifest(cmso, image) == null) {
+                return null;
+            }
+            tile = store.get(tileKey);
+            if (tile == null && isTile(cmso, image, level, column, row)) {
+                // The tile has been evicted from the store: re-create the pyramid (unless another request already did)
+                createPyramidOnce(cmso, image, manifestKey, generation, tileKey);
+                tile = store.get(tileKey);
+            }
+        }
+        return tile;
+    }
+
+    /**
+     * Serves the manifest or a tile of the given image, creating the pyramid
+     * if necessary.
+     *
+     * @param cms An initialized action element.
+     * @param imageUri The URI of the image.
+     * @param path Either {@link #MANIFEST_PATH} or a tile path, e.g. "12/3_5" (an extension is allowed, e.g. "12/3_5.jpg").
+     * @return True if a response was sent, false if not (the caller should then respond with "404 Not Found").
+     */
+    public boolean serve(CmsJspActionElement cms, String imageUri, String path) {
+        CmsObject cmso = cms.getCmsObject();
+        try {
+            CmsResource image = cmso.readResource(imageUri);
+            File f = null;
+            String contentType = null;
+            if (MANIFEST_PATH.equals(path)) {
+                f = getManifest(cmso, image);
+                contentType = "application/xml";
+            } else {
+                Matcher m = TILE_PATH.matcher(path);
+                if (m.matches()) {
+                    f = getTile(cmso, image,
+                            Integer.parseInt(m.group(1)),
+                            Integer.parseInt(m.group(2)),
+                            Integer.parseInt(m.group(3)));
+                    contentType = f != null && f.getName().endsWith(".png") ? "image/png" : "image/jpeg";
+                }
+            }
+            if (f == null) {
+                return false;
+            }
+            String fingerprintParam = cms.getRequest().getParameter(CmsAgent.PARAM_NAME_FINGERPRINT);
+            store.sendFile(f,
+                    contentType,
+                    image.getDateLastModified(),
+                    fingerprintParam != null,
+                    cms.getRequest(),
+                    cms.getResponse());
+            return true;
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to serve '" + path + "' of tiled image '" + imageUri + "'.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Creates the pyramid for the given image, unless it is (being) created
+     * by another thread, or has been created since the given generation was
+     * observed.
+     * <p>
+     * Only one thread at a time creates a given pyramid. Threads that wait
+     * for it do not create it again.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The image.
+     * @param manifestKey The manifest key.
+     * @param observedGeneration The pyramid generation observed by the caller, before deciding the pyramid should be created.
+     * @param tileKey The key of the evicted tile that prompted the (re-)creation, or null if the manifest is missing.
+     * @return The manifest, or null if the pyramid could not be stored.
+     * @throws CmsException If the image cannot be read.
+     * @throws IOException If decoding the image or writing to disk fails.
+     */
+    private File createPyramidOnce(CmsObject cmso, CmsResource image, String manifestKey, int observedGeneration, String tileKey)
+            throws CmsException, IOException {
+        if (untileable.get(manifestKey) != null) {
+            return null;
+        }
+        Object lock = new Object();
+        Object existing = locks.putIfAbsent(manifestKey, lock);
+        if (existing != null) {
+            lock = existing;
+        }
+        synchronized (lock) {
+            try {
+                File manifest = store.get(manifestKey);
+                // Another thread may have (re-)created it while we waited
+                if (getGeneration(manifestKey) != observedGeneration
+                        || (manifest != null && (tileKey == null || store.get(tileKey) != null))) {
+                    return manifest;
+                }
+                if (manifest != null) {
+                    store.remove(manifestKey);
+                }
+                manifest = createPyramid(cmso, image, manifestKey);
+                if (manifest != null) {
+                    generations.put(manifestKey, Integer.valueOf(observedGeneration + 1));
+                }
+                return manifest;
+            } finally {
+                locks.remove(manifestKey, lock);
+            }
+        }
+    }
+
+    /**
+     * Gets the number of times the pyramid with the given manifest key has
+     * been created (as far as we remember).
+     *
+     * @param manifestKey The manifest key.
+     * @return The number of times the pyramid has been created.
+     */
+    private int getGeneration(String manifestKey) {
+        Integer generation = generations.get(manifestKey);
+        return generation == null ? 0 : generation.intValue();
+    }
+
+    /**
+     * Creates the pyramid for the given image, storing all tiles and finally
+     * the manifest.
+     * <p>
+     * If the tiles exceed the pyramid's share of the store's budget, the
+     * stored tiles are removed, and the image is remembered as untileable.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The image.
+     * @param manifestKey The manifest key.
+     * @return The manifest, or null if the pyramid could not be stored.
+     * @throws CmsException If the image cannot be read.
+     * @throws IOException If decoding the image or writing to disk fails.
+     */
+    private File createPyramid(CmsObject cmso, CmsResource image, String manifestKey) throws CmsException, IOException {
+        long start = System.currentTimeMillis();
+        BufferedImage level = readPacked(cmso.readFile(image).getContents());
+        if (level == null) {
+            throw new IOException("No image decoder available for '" + image.getRootPath() + "'.");
+        }
+        boolean alpha = level.getType() == BufferedImage.TYPE_INT_ARGB;
+        String format = alpha ? "png" : "jpg";
+        int width = level.getWidth();
+        int height = level.getHeight();
+
+        int tiles = 0;
+        long bytes = 0;
+        long maxBytes = store.getMaxBytes() / MAX_STORE_SHARE;
+        List<String> tileKeys = new ArrayList<String>();
+        for (int l = getMaxLevel(width, height); l >= 0; l--) {
+            int levelWidth = level.getWidth();
+            int levelHeight = level.getHeight();
+            for (int row = 0; row * tileSize < levelHeight; row++) {
+                for (int col = 0; col * tileSize < levelWidth; col++) {
+                    BufferedImage tile = level.getSubimage(col * tileSize,
+                            row * tileSize,
+                            Math.min(tileSize, levelWidth - col * tileSize),
+                            Math.min(tileSize, levelHeight - row * tileSize));
+                    String tileKey = createKey(cmso, image, l + "/" + col + "_" + row);
+                    byte[] data = encode(tile, format);
+                    bytes += data.length;
+                    if (bytes > maxBytes || store.put(tileKey, format, data) == null) {
+                        // Too large for the store: it would never settle
+                        Iterator<String> iKeys = tileKeys.iterator();
+                        while (iKeys.hasNext()) {
+                            store.remove(iKeys.next());
+                        }
+                        untileable.put(manifestKey, Boolean.TRUE);
+                        if (LOG.isWarnEnabled()) {
+                            LOG.warn("Not tiling '" + image.getRootPath() + "', as its pyramid would exceed " + maxBytes + " bytes.");
+                        }
+                        return null;
+                    }
+                    tileKeys.add(tileKey);
+                    tiles++;
+                }
+            }
+            if (l > 0) {
+                level = halve(level, alpha);
+            }
+        }
+
+        File manifest = store.put(manifestKey, "dzi", getManifestXml(width, height, format).getBytes("UTF-8"));
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Created " + tiles + " tiles for '" + image.getRootPath() + "' in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+        return manifest;
+    }
+
+    /**
+     * Decodes the given image data into packed int pixels, i.e. an image of
+     * type {@link BufferedImage#TYPE_INT_ARGB} (if the image has an alpha
+     * channel) or {@link BufferedImage#TYPE_INT_RGB}.
+     * <p>
+     * Whenever the decoder supports it (e.g. for common JPEGs and RGB(A) PNGs),
+     * the image is decoded directly into the packed type, so only one
+     * full-size raster is ever held in memory. Otherwise, the decoded image is
+     * converted.
+     *
+     * @param data The image data.
+     * @return The decoded image, or null if no suitable decoder was found.
+     * @throws IOException If decoding fails.
+     */
+    private static BufferedImage readPacked(byte[] data) throws IOException {
+        ImageInputStream iis = ImageIO.createImageInputStream(new ByteArrayInputStream(data));
+        if (iis == null) {
+            return null;
+        }
+        BufferedImage decoded;
+        try {
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(iis);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(iis, true, true);
+                ImageTypeSpecifier packed = null;
+                Iterator<ImageTypeSpecifier> types = reader.getImageTypes(0);
+                ImageTypeSpecifier type = types.hasNext() ? types.next() : null;
+                // The first (preferred) type tells whether or not the image has an alpha channel
+                if (type != null) {
+                    int packedType = type.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+                    while (packed == null && type != null) {
+                        if (type.getBufferedImageType() == packedType) {
+                            packed = type;
+                        }
+                        type = types.hasNext() ? types.next() : null;
+                    }
+                }
+                ImageReadParam param = reader.getDefaultReadParam();
+                if (packed != null) {
+                    param.setDestinationType(packed);
+                }
+                decoded = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        } finally {
+            iis.close();
+        }
+
+        int type = decoded.getColorModel().hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+        if (decoded.getType() == type) {
+            return decoded;
+        }
+        BufferedImage converted = new BufferedImage(decoded.getWidth(), decoded.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.drawImage(decoded, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+
+    /**
+     * Gets the manifest XML for an image of the given size.
+     *
+     * @param width The image width.
+     * @param height The image height.
+     * @param format The tile format, e.g. "jpg".
+     * @return The manifest XML.
+     */
+    protected String getManifestXml(int width, int height, String format) {
+        return "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "\n<Image xmlns=\"" + DZI_NAMESPACE + "\" TileSize=\"" + tileSize + "\" Overlap=\"0\" Format=\"" + format + "\">"
+                + "\n  <Size Width=\"" + width + "\" Height=\"" + height + "\"/>"
+                + "\n</Image>";
+    }
+
+    /**
+     * Determines whether or not the given tile exists in the given image's
+     * pyramid.
+     */
+    private boolean isTile(CmsObject cmso, CmsResource image, int level, int column, int row) {
+        ImageSize size = null;
+        try {
+            size = ImageSize.read(cmso, image);
+        } catch (Exception e) {
+            return false;
+        }
+        if (size == null || !size.hasHeight()) {
+            return false;
+        }
+        int maxLevel = getMaxLevel(size.getWidth(), size.getHeight());
+        if (level < 0 || level > maxLevel || column < 0 || row < 0) {
+            return false;
+        }
+        int scale = 1 << (maxLevel - level);
+        int levelWidth = (size.getWidth() + scale - 1) / scale;
+        int levelHeight = (size.getHeight() + scale - 1) / scale;
+        return column * tileSize < levelWidth && row * tileSize < levelHeight;
+    }
+
+    /**
+     * Creates the store key for the given path (manifest or tile) of the given
+     * image's pyramid.
+     */
+    private String createKey(CmsObject cmso, CmsResource image, String path) throws CmsException {
+        return ScaledImageStore.createKey(cmso, image, "tiles:" + tileSize + ",q:" + quality + "," + path);
+    }
+
+    /**
+     * Halves the given image, averaging each 2x2 block of pixels. Odd sizes
+     * are rounded up, with the edge pixels averaged over the available pixels.
+     *
+     * @param image The image to halve, of type {@link BufferedImage#TYPE_INT_RGB} or {@link BufferedImage#TYPE_INT_ARGB}.
+     * @param alpha Whether or not the image has an alpha channel.
+     * @return The halved image, of the same type.
+     */
+    private static BufferedImage halve(BufferedImage image, boolean alpha) {
+        int w = image.getWidth();
+        int h = image.getHeight();
+        int hw = (w + 1) / 2;
+        int hh = (h + 1) / 2;
+        int[] src = ((DataBufferInt)image.getRaster().getDataBuffer()).getData();
+        BufferedImage half = new BufferedImage(hw, hh, image.getType());
+        int[] dst = ((DataBufferInt)half.getRaster().getDataBuffer()).getData();
+        for (int y = 0; y < hh; y++) {
+            int y0 = y * 2;
+            int y1 = Math.min(y0 + 1, h - 1);
+            for (int x = 0; x < hw; x++) {
+                int x0 = x * 2;
+                int x1 = Math.min(x0 + 1, w - 1);
+                int p00 = src[y0 * w + x0], p01 = src[y0 * w + x1], p10 = src[y1 * w + x0], p11 = src[y1 * w + x1];
+                int a = alpha ? (((p00 >>> 24) + (p01 >>> 24) + (p10 >>> 24) + (p11 >>> 24) + 2) >> 2) : 0xFF;
+                int r = (((p00 >> 16) & 0xFF) + ((p01 >> 16) & 0xFF) + ((p10 >> 16) & 0xFF) + ((p11 >> 16) & 0xFF) + 2) >> 2;
+                int g = (((p00 >> 8) & 0xFF) + ((p01 >> 8) & 0xFF) + ((p10 >> 8) & 0xFF) + ((p11 >> 8) & 0xFF) + 2) >> 2;
+                int b = ((p00 & 0xFF) + (p01 & 0xFF) + (p10 & 0xFF) + (p11 & 0xFF) + 2) >> 2;
+                dst[y * hw + x] = (a << 24) | (r << 16) | (g << 8) | b;
+            }
+        }
+        return half;
+    }
+
+    /**
+     * Encodes the given tile in the given format.
+     *
+     * @param tile The tile.
+     * @param format The format, either "jpg" or "png".
+     * @return The encoded tile.
+     * @throws IOException If encoding fails.
+     */
+    private byte[] encode(BufferedImage tile, String format) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        if ("png".equals(format)) {
+            ImageIO.write(tile, format, out);
+            return out.toByteArray();
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+            writer.write(null, new IIOImage(tile, null, null), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+}
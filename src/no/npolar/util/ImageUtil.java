@@ -4,13 +4,13 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
 import no.npolar.util.exception.ImageAccessException;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 import org.opencms.file.CmsObject;
 import org.opencms.file.CmsPropertyDefinition;
-import org.opencms.file.CmsResourceFilter;
-import org.opencms.file.types.CmsResourceTypeImage;
+import org.opencms.file.CmsResource;
 import org.opencms.jsp.CmsJspActionElement;
 import org.opencms.jsp.CmsJspXmlContentBean;
 import org.opencms.jsp.I_CmsXmlContentContainer;
@@ -100,6 +100,7 @@ public class ImageUtil {
     private String imageFloat = null;
     private CmsImageScaler imageHandle = null;
     private I_CmsXmlContentContainer imageContainer = null;
+    private boolean lazyLoading = false;
     
     
     public ImageUtil() {
@@ -147,6 +148,17 @@ public class ImageUtil {
         if (!CmsAgent.elementExists(imageFloat)) { imageFloat = ""; }
     }
     
+    /**
+     * Sets whether or not images produced by this instance should be 
+     * lazy-loaded.
+     * 
+     * @param lazyLoading True to produce lazy-loaded images, false not to (the default).
+     * @see #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean) 
+     */
+    public void setLazyLoading(boolean lazyLoading) {
+        this.lazyLoading = lazyLoading;
+    }
+    
     /**
      * Shorthand method: Quality = 100%, maxAbsoluteWidth = 100%, and 
      * maxViewportWidth = 100%.
@@ -208,6 +220,7 @@ public class ImageUtil {
                                 , this.imageSize
                                 , quality
                                 , linearBreakpoint
+                                , this.lazyLoading
                                 );
         if (!this.imageCaption.isEmpty() || !this.imageSource.isEmpty()) {
             s += "<figcaption>";
@@ -283,17 +296,74 @@ public class ImageUtil {
         // If the (original) image width exceeds the given max width, create a 
         // URI to a version scaled down to the given max width
         if (imageWidth > maxWidth) {
-            CmsImageScaler scaler = new CmsImageScaler(cmso, cmso.readResource(imageUri));
+            CmsImageScaler scaler = new CmsImageScaler();
             scaler.setHeight(getRescaledHeight(cmso, imageUri, maxWidth));
             scaler.setWidth(maxWidth);
             scaler.setQuality(100);
             scaler.setType(SCALE_TYPE_NOCROP);
-            imageUri = (String)CmsAgent.getTagAttributesAsMap(cms.img(imageUri, scaler.getReScaler(scaler), null)).get("src");
+            imageUri = getScaledUri(cms, imageUri, scaler);
         }
         
         return imageUri;
     }
     
+    /**
+     * Gets the link to a scaled version of the given image.
+     * 
+     * @param cms An initialized action element.
+     * @param imageUri The URI to the image.
+     * @param scaler The scaler, holding the target scale parameters.
+     * @return The link to a scaled version of the given image.
+     * @throws CmsException If the image cannot be read.
+     * @see #getScaledUri(org.opencms.jsp.CmsJspActionElement, org.opencms.file.CmsResource, org.opencms.loader.CmsImageScaler) 
+     */
+    public static String getScaledUri(CmsJspActionElement cms, String imageUri, CmsImageScaler scaler) throws CmsException {
+        return getScaledUri(cms, cms.getCmsObject().readResource(imageUri), scaler);
+    }
+    
+    /**
+     * Gets the link to a scaled version of the given image.
+     * <p>
+     * The link is identical to the <code>src</code> of the tag created by 
+     * {@link CmsJspActionElement#img(java.lang.String, org.opencms.loader.CmsImageScaler, java.util.Map)}, 
+     * but is computed directly, without creating (and parsing) a tag.
+     * 
+     * @param cms An initialized action element.
+     * @param image The image.
+     * @param scaler The scaler, holding the target scale parameters.
+     * @return The link to a scaled version of the given image.
+     */
+    public static String getScaledUri(CmsJspActionElement cms, CmsResource image, CmsImageScaler scaler) {
+        CmsObject cmso = cms.getCmsObject();
+        String imageUri = cmso.getSitePath(image);
+        
+        if (scaler != null) {
+            // Width-only and height-only scalers are not valid by themselves; 
+            // the re-scaler computes the missing dimension from the original.
+            // Describe the original image, preferably using the cached size
+            CmsImageScaler original = null;
+            try {
+                ImageSize imageSize = ImageSize.read(cmso, image);
+                if (imageSize != null && imageSize.hasHeight()) {
+                    original = new CmsImageScaler();
+                    original.setWidth(imageSize.getWidth());
+                    original.setHeight(imageSize.getHeight());
+                }
+            } catch (Exception e) {
+                // Ignore, fall back to letting the scaler read the original's size
+            }
+            if (original == null) {
+                original = new CmsImageScaler(cmso, image);
+            }
+            
+            CmsImageScaler reScaler = original.getReScaler(scaler);
+            if (reScaler.isValid()) {
+                imageUri += reScaler.toRequestParam(); // "?__scale=..."
+            }
+        }
+        return cms.link(imageUri);
+    }
+    
     /**
      * Gets the width of the given image.
      * 
@@ -304,8 +374,9 @@ public class ImageUtil {
     public static int getWidth(CmsObject cmso, String imageUri) {
         int imageWidth = 0;
         try {
-            CmsImageScaler imageHandle = new CmsImageScaler(cmso, cmso.readResource(imageUri));
-            imageWidth = imageHandle.getWidth();
+            ImageSize imageSize = ImageSize.read(cmso, cmso.readResource(imageUri));
+            if (imageSize != null)
+                imageWidth = imageSize.getWidth();
         } catch (Exception e) {
             // Log this?
         }
@@ -342,6 +413,7 @@ public class ImageUtil {
                                 , this.imageSize
                                 , quality
                                 , linearBreakpoint
+                                , this.lazyLoading
                                 );
         s += "</a>";
         
@@ -382,12 +454,28 @@ public class ImageUtil {
      * @throws ImageAccessException 
      */
     public static int getRescaledHeight(CmsObject cmso, String imagePath, int rescaledWidth, String cropRatio) throws ImageAccessException {
-        CmsImageScaler image = null;
+        ImageSize image = null;
         try {
-            image = new CmsImageScaler(cmso, cmso.readResource(imagePath));
+            image = ImageSize.read(cmso, cmso.readResource(imagePath));
         } catch (Exception e) {
             throw new ImageAccessException("Error reading details from image '" + imagePath + "': " + e.getMessage());
         }
+        if (image == null || !image.hasHeight()) {
+            throw new ImageAccessException("Error reading details from image '" + imagePath + "': Width and height are unknown.");
+        }
+        return getRescaledHeight(image, rescaledWidth, cropRatio);
+    }
+    
+    /**
+     * Calculates the height of the given image when scaled to the given width, 
+     * optionally using the given crop ratio.
+     * 
+     * @param image The (original) image size.
+     * @param rescaledWidth The new width.
+     * @param cropRatio The crop ratio, e.g. "4:3", or null (indicating "don't crop").
+     * @return The new height.
+     */
+    protected static int getRescaledHeight(ImageSize image, int rescaledWidth, String cropRatio) {
         float newHeight = 0;
         float ratio = 0;
         if (cropRatio != null) {
@@ -474,10 +562,232 @@ public class ImageUtil {
             , String linearBreakpoint
             )
              throws ImageAccessException
+    {
+        return getImage(cms, imageUri, alt, cropRatio, maxAbsoluteWidth, maxViewportRelativeWidth, size, quality, linearBreakpoint, false);
+    }
+    
+    /**
+     * Produces a ready-to-use img element, complete with srcset, sizes, src and 
+     * alt attributes, based on the given arguments - optionally lazy-loaded.
+     * <p>
+     * A lazy-loaded image has intrinsic width and height attributes (to 
+     * prevent layout shifts), <code>loading="lazy"</code> and 
+     * <code>decoding="async"</code>. If a placeholder exists for the image, 
+     * it is set as the background image, and shown until the image is loaded. 
+     * See {@link ImagePlaceholder}.
+     * 
+     * @param lazy If true, the image is lazy-loaded.
+     * @see #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String) 
+     * @return A ready-to-use img element, complete with srcset, sizes, src and alt attributes.
+     * @throws ImageAccessException 
+     */
+    public static synchronized String getImage (
+            CmsJspActionElement cms
+            , String imageUri
+            , String alt
+            , String cropRatio
+            , int maxAbsoluteWidth
+            , int maxViewportRelativeWidth
+            , int size
+            , int quality
+            , String linearBreakpoint
+            , boolean lazy
+            )
+             throws ImageAccessException
     {
         boolean isParameterizedImageUri = imageUri.indexOf("?") > 0;
         String imageResourcePath = isParameterizedImageUri ? imageUri.substring(0, imageUri.indexOf("?")) : imageUri;
-        CmsObject cmso = cms.getCmsObject();
+        ImageInfo info = ImageInfo.read(cms.getCmsObject(), imageResourcePath, alt == null, lazy);
+        return buildImage(cms, imageUri, info, alt, cropRatio, maxAbsoluteWidth, maxViewportRelativeWidth, size, quality, linearBreakpoint, lazy);
+    }
+    
+    /**
+     * Produces ready-to-use img elements for all the given images.
+     * <p>
+     * This is the batch version of 
+     * {@link #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean)}, 
+     * intended for listings. The details of all images (resource, size, 
+     * description and fingerprint) are read up front, once per distinct image, 
+     * and in parallel for larger batches. See {@link ImageInfo}.
+     * <p>
+     * The alternative text of each image is read from its "Description" 
+     * property. Images that cannot be read (e.g. missing images) produce an 
+     * empty string.
+     * 
+     * @param cms Needed to access the images and the VFS. Mandatory.
+     * @param imageUris The paths to the images in the VFS. Mandatory.
+     * @param cropRatio The crop ratio, see {@link #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String)}.
+     * @param maxAbsoluteWidth The maximum absolute image width (in pixels).
+     * @param maxViewportRelativeWidth The maximum image width (in percent), relative to the viewport.
+     * @param size The image size. Must be one of the SIZE_X static members of this class.
+     * @param quality The rescale quality, an integer between 0 (worst) and 100 (best).
+     * @param linearBreakpoint The linear/float breakpoint, i.e.: "50em", or "800px".
+     * @param lazy If true, the images are lazy-loaded.
+     * @return A list of ready-to-use img elements, in the same order as the given image paths.
+     */
+    public static List<String> getImages(
+            CmsJspActionElement cms
+            , List<String> imageUris
+            , String cropRatio
+            , int maxAbsoluteWidth
+            , int maxViewportRelativeWidth
+            , int size
+            , int quality
+            , String linearBreakpoint
+            , boolean lazy
+            ) 
+    {
+        List<String> imageResourcePaths = new ArrayList<String>(imageUris.size());
+        Iterator<String> iUris = imageUris.iterator();
+        while (iUris.hasNext()) {
+            String imageUri = iUris.next();
+            imageResourcePaths.add(imageUri.indexOf("?") > 0 ? imageUri.substring(0, imageUri.indexOf("?")) : imageUri);
+        }
+        
+        Map<String, ImageInfo> infos = ImageInfo.read(cms.getCmsObject(), imageResourcePaths, true, lazy);
+        
+        List<String> images = new ArrayList<String>(imageUris.size());
+        for (int i = 0; i < imageUris.size(); i++) {
+            String img = "";
+            ImageInfo info = infos.get(imageResourcePaths.get(i));
+            if (info != null) {
+                try {
+                    img = buildImage(cms, imageUris.get(i), info, null, cropRatio, maxAbsoluteWidth, maxViewportRelativeWidth, size, quality, linearBreakpoint, lazy);
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Error creating image markup for '" + imageUris.get(i) + "': " + e.getMessage());
+                    }
+                }
+            }
+            images.add(img);
+        }
+        return images;
+    }
+    
+    /**
+     * The srcset, sizes and (fallback) src values of a responsive image, as 
+     * used in the img element produced by {@link #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean)}.
+     */
+    public static class ImageSources {
+        private String srcset = null;
+        private String sizes = null;
+        private String src = null;
+        private int width = -1;
+        private int height = -1;
+        
+        /** @return The srcset value (empty if none). */
+        public String getSrcset() { return srcset; }
+        /** @return The sizes value (empty if none). */
+        public String getSizes() { return sizes; }
+        /** @return The (fallback) src value. */
+        public String getSrc() { return src; }
+        /** @return The width of the (fallback) src image. */
+        public int getWidth() { return width; }
+        /** @return The height of the (fallback) src image. */
+        public int getHeight() { return height; }
+    }
+    
+    /**
+     * Gets the srcset, sizes and (fallback) src values for the given image, 
+     * exactly as they would be in the img element produced by 
+     * {@link #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean)} 
+     * given the same arguments.
+     * <p>
+     * Typically used to preload the most important (e.g. hero) image on a 
+     * page, see {@link CmsAgent#getPreloadHints(java.lang.String)}.
+     * 
+     * @see #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String) 
+     * @return The srcset, sizes and src values for the given image.
+     * @throws ImageAccessException If the image does not exist, or if its details cannot be read.
+     */
+    public static ImageSources getImageSources (
+            CmsJspActionElement cms
+            , String imageUri
+            , String cropRatio
+            , int maxAbsoluteWidth
+            , int maxViewportRelativeWidth
+            , int size
+            , int quality
+            , String linearBreakpoint
+            )
+             throws ImageAccessException
+    {
+        String imageResourcePath = imageUri.indexOf("?") > 0 ? imageUri.substring(0, imageUri.indexOf("?")) : imageUri;
+        ImageInfo info = ImageInfo.read(cms.getCmsObject(), imageResourcePath, false, false);
+        return buildSources(cms, imageUri, info, cropRatio, maxAbsoluteWidth, maxViewportRelativeWidth, size, quality, linearBreakpoint);
+    }
+    
+    /**
+     * Produces a ready-to-use img element, using the given (pre-read) image 
+     * details.
+     * 
+     * @param info The image details.
+     * @see #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean) 
+     */
+    private static String buildImage (
+            CmsJspActionElement cms
+            , String imageUri
+            , ImageInfo info
+            , String alt
+            , String cropRatio
+            , int maxAbsoluteWidth
+            , int maxViewportRelativeWidth
+            , int size
+            , int quality
+            , String linearBreakpoint
+            , boolean lazy
+            )
+    {
+        if (alt == null) {
+            alt = info.getDescription() == null ? "" : info.getDescription();
+        } else if (alt.equalsIgnoreCase("none") || alt.equalsIgnoreCase("-")) {
+            alt = "";
+        }
+        
+        ImageSources sources = buildSources(cms, imageUri, info, cropRatio, maxAbsoluteWidth, maxViewportRelativeWidth, size, quality, linearBreakpoint);
+        
+        // Construct the img tag
+        String img = "<img";
+        if (!sources.srcset.isEmpty()) {
+            img += " srcset=\"" + sources.srcset + "\"";
+            img += " sizes=\"" + sources.sizes + "\"";
+        }
+        img += " src=\"" + sources.src + "\"";
+        img += " alt=\"" + alt.replace("\"", "\\\"") + "\"";
+        if (lazy) {
+            img += " width=\"" + sources.width + "\"";
+            img += " height=\"" + sources.height + "\"";
+            img += " loading=\"lazy\" decoding=\"async\"";
+            if (info.getPlaceholder() != null) {
+                img += " style=\"background-image:url(" + info.getPlaceholder() + ");background-size:cover;\"";
+            }
+        }
+        img += " />";
+        
+        return img;
+    }
+    
+    /**
+     * Creates the srcset, sizes and (fallback) src values for the given 
+     * (pre-read) image details.
+     * 
+     * @param info The image details.
+     * @return The srcset, sizes and src values.
+     * @see #getImage(org.opencms.jsp.CmsJspActionElement, java.lang.String, java.lang.String, java.lang.String, int, int, int, int, java.lang.String, boolean) 
+     */
+    private static ImageSources buildSources (
+            CmsJspActionElement cms
+            , String imageUri
+            , ImageInfo info
+            , String cropRatio
+            , int maxAbsoluteWidth
+            , int maxViewportRelativeWidth
+            , int size
+            , int quality
+            , String linearBreakpoint
+            )
+    {
+        boolean isParameterizedImageUri = imageUri.indexOf("?") > 0;
         // 1. Create a set of scaled sizes (namely S, M & L - L being the fallback)
         
         // For each version, construct its srcset entry by adding the URI
@@ -485,66 +795,44 @@ public class ImageUtil {
         List<String> srcset = new ArrayList<String>();
         // Generate the versions here ...
         int scaleType = cropRatio == null ? SCALE_TYPE_NOCROP : SCALE_TYPE_CROP;
-        if (!cmso.existsResource(imageResourcePath , CmsResourceFilter.requireType(CmsResourceTypeImage.getStaticTypeId()))) {
-            throw new ImageAccessException("Attempting to scale image '" + imageResourcePath + "', which does not exist.");
-        }
         
         // Add a fingerprint to image URIs, which may be used to improve 
         // performance by leveraging caching headers:
         // https://developers.google.com/speed/docs/insights/LeverageBrowserCaching
-        String fp = "";
-        try {
-            // Get the "date last modified" to use as fingerprint - creating image URIs like /my-image.jpg?fp=14561616159
-            fp = PARAM_NAME_FINGERPRINT + "=" + String.valueOf(cms.getCmsObject().readResource(imageResourcePath).getDateLastModified());
-        } catch (Exception e) {
-            throw new ImageAccessException("Error reading 'date last modified' for image '" + imageResourcePath + "': " + e.getMessage());
-        }
+        // Use the "date last modified" as fingerprint - creating image URIs like /my-image.jpg?fp=14561616159
+        String fp = PARAM_NAME_FINGERPRINT + "=" + String.valueOf(info.getFingerprint());
         
-        if (alt == null) {
-            try {
-                alt = cmso.readPropertyObject(imageResourcePath, CmsPropertyDefinition.PROPERTY_DESCRIPTION, false).getValue("");
-            } catch (Exception e) {
-                throw new ImageAccessException("Error reading property 'Description' for image '" + imageResourcePath + "': " + e.getMessage());
-            }
-        } else if (alt.equalsIgnoreCase("none") || alt.equalsIgnoreCase("-")) {
-            alt = "";
-        }
+        ImageSize imageSize = info.getSize();
         
-        try {
-            CmsImageScaler imageInfo = new CmsImageScaler(cmso, cmso.readResource(imageResourcePath));
-			
-            // If the given abs. width is larger than the original image's width, adjust the abs. width accordingly (equal to the original image's width)
-            if (maxAbsoluteWidth > imageInfo.getWidth())
-                    maxAbsoluteWidth = imageInfo.getWidth();
-				
-            int numImagesGenerated = 0; // Just a precaution ...
-            for (int scaleWidth = 400; scaleWidth <= maxAbsoluteWidth && numImagesGenerated < 5; numImagesGenerated++) {
-                // Create the URI for this srcset image
-                String srcsetElement = imageUri + (isParameterizedImageUri ? "&amp;" : "?")
-                                                + "__scale="
-                                                + "w:" + scaleWidth
-                                                + ",h:" + (getRescaledHeight(cmso, imageUri, scaleWidth, cropRatio))
-                                                + ",t:" + scaleType
-                                                + ",q:" + quality
-                                                + "&amp;" + fp;
-                // Optimize the image URI for online?
-                //if (cms.getRequestContext().getCurrentProject().isOnlineProject())
-                    srcsetElement = cms.link(srcsetElement);
-                // Add the image uri to the srcset, along with the width descriptor
-                srcset.add(srcsetElement + " " + scaleWidth + "w");
-                
-                // Break if necessary
-                if (scaleWidth >= maxAbsoluteWidth)
-                    break; // important! (prevents infinite loop)
-                
-                // Increase the scale width
-                scaleWidth += 400;
-                // Constrain the scale width if we exceeded the max
-                if (scaleWidth > maxAbsoluteWidth)
-                    scaleWidth = maxAbsoluteWidth;
-            }
-        } catch (Exception e) {
-            throw new ImageAccessException("Error creating scaled version of image '" + imageResourcePath + "': " + e.getMessage());
+        // If the given abs. width is larger than the original image's width, adjust the abs. width accordingly (equal to the original image's width)
+        if (maxAbsoluteWidth > imageSize.getWidth())
+                maxAbsoluteWidth = imageSize.getWidth();
+
+        int numImagesGenerated = 0; // Just a precaution ...
+        for (int scaleWidth = 400; scaleWidth <= maxAbsoluteWidth && numImagesGenerated < 5; numImagesGenerated++) {
+            // Create the URI for this srcset image
+            String srcsetElement = imageUri + (isParameterizedImageUri ? "&amp;" : "?")
+                                            + "__scale="
+                                            + "w:" + scaleWidth
+                                            + ",h:" + (getRescaledHeight(imageSize, scaleWidth, cropRatio))
+                                            + ",t:" + scaleType
+                                            + ",q:" + quality
+                                            + "&amp;" + fp;
+            // Optimize the image URI for online?
+            //if (cms.getRequestContext().getCurrentProject().isOnlineProject())
+                srcsetElement = cms.link(srcsetElement);
+            // Add the image uri to the srcset, along with the width descriptor
+            srcset.add(srcsetElement + " " + scaleWidth + "w");
+
+            // Break if necessary
+            if (scaleWidth >= maxAbsoluteWidth)
+                break; // important! (prevents infinite loop)
+
+            // Increase the scale width
+            scaleWidth += 400;
+            // Constrain the scale width if we exceeded the max
+            if (scaleWidth > maxAbsoluteWidth)
+                scaleWidth = maxAbsoluteWidth;
         }
         // All image URIs are now in the srcset list, like so:
         // [0]: "/my/image.jpg?w:400,h:300,t:4,q:90&fp=fdsf1sdf1ds9515fsd19f1sd9f1s
@@ -553,11 +841,11 @@ public class ImageUtil {
         
         String srcsetString = srcsetToString(srcset);
         
-        String srcSize = "";
+        int fallbackHeight = getRescaledHeight(imageSize, maxAbsoluteWidth, cropRatio);
         String srcFallback = imageUri + (isParameterizedImageUri ? "&amp;" : "?")
                                 + "__scale="
                                 + "w:" + maxAbsoluteWidth
-                                + ",h:" + (getRescaledHeight(cmso, imageUri, maxAbsoluteWidth, cropRatio))
+                                + ",h:" + fallbackHeight
                                 + ",t:" + scaleType
                                 + ",q:" + quality
                                 + "&amp;" + fp;
@@ -580,18 +868,13 @@ public class ImageUtil {
             sizes += (maxViewportRelativeWidth < 0 ? maxViewportRelativeWidth : DEFAULT_MAX_VP_WIDTH) + "vw";
         }
         
-        
-        // Construct the img tag
-        String img = "<img";
-        if (!srcsetString.isEmpty()) {
-            img += " srcset=\"" + srcsetString + "\"";
-            img += " sizes=\"" + sizes + "\"";
-        }
-        img += " src=\"" + srcFallback + "\"";
-        img += " alt=\"" + alt.replace("\"", "\\\"") + "\"";
-        img += " />";
-        
-        return img;
+        ImageSources sources = new ImageSources();
+        sources.srcset = srcsetString;
+        sources.sizes = sizes;
+        sources.src = srcFallback;
+        sources.width = maxAbsoluteWidth;
+        sources.height = fallbackHeight;
+        return sources;
     }
     
     /**
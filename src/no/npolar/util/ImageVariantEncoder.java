@@ -0,0 +1,386 @@
+package no.npolar.util;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.IndexColorModel;
+import java.awt.image.WritableRaster;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.metadata.IIOMetadataNode;
+import javax.imageio.stream.ImageOutputStream;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.w3c.dom.NodeList;
+
+/**
+ * Byte-optimizing encoder for scaled image variants (e.g. thumbnails).
+ * <p>
+ * JPEGs encoded by {@link #encode(java.awt.image.BufferedImage, java.lang.String, int)}
+ * are written progressive, without any metadata (EXIF, embedded color
+ * profiles, comments). Chroma is subsampled 4:2:0 below quality
+ * {@link #FULL_CHROMA_QUALITY}, and kept at full resolution (4:4:4) at or
+ * above it. {@link CmsImageProcessor} encodes all plain downscales of JPEGs
+ * this way.
+ * <p>
+ * PNGs are written without ancillary chunks, and as palette images whenever
+ * that is lossless, i.e. when the image is 8-bit sRGB and has no more than
+ * 256 distinct colors (including alpha).
+ * <p>
+ * Already encoded data (e.g. cropped or filtered thumbnails, created by the
+ * default OpenCms scaling) is optimized without any further loss: JPEGs are
+ * not decoded, only stripped of metadata segments (so they are not made
+ * progressive), while PNGs are re-encoded (which is lossless). The smaller of the original and the optimized version
+ * is kept, and the number of bytes saved is logged and added to the running
+ * totals.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ImageVariantEncoder {
+    /** The JPEG quality to use when none is given (0-100). */
+    public static final int DEFAULT_JPEG_QUALITY = 90;
+    /** JPEGs at or above this quality (0-100) are written without chroma subsampling. */
+    public static final int FULL_CHROMA_QUALITY = 90;
+    /** The max. number of colors in a palette image. */
+    public static final int MAX_PALETTE_COLORS = 256;
+
+    /** The native JPEG metadata format name. */
+    private static final String JPEG_METADATA_FORMAT = "javax_imageio_jpeg_image_1.0";
+    /** JPEG marker: start of scan. */
+    private static final int JPEG_SOS = 0xDA;
+    /** JPEG marker: comment. */
+    private static final int JPEG_COM = 0xFE;
+    /** JPEG marker: APP0 (JFIF). */
+    private static final int JPEG_APP0 = 0xE0;
+    /** JPEG marker: APP2 (ICC profile). */
+    private static final int JPEG_APP2 = 0xE2;
+    /** JPEG marker: APP14 (Adobe, color transform). */
+    private static final int JPEG_APP14 = 0xEE;
+    /** JPEG marker: APP15. */
+    private static final int JPEG_APP15 = 0xEF;
+    /** Identifies an ICC profile in an APP2 segment. */
+    private static final byte[] ICC_PROFILE_ID = { 'I', 'C', 'C', '_', 'P', 'R', 'O', 'F', 'I', 'L', 'E', 0 };
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ImageVariantEncoder.class);
+
+    /** The total number of bytes saved. */
+    private static final AtomicLong bytesSaved = new AtomicLong(0);
+    /** The total number of variants that were made smaller. */
+    private static final AtomicLong variantsOptimized = new AtomicLong(0);
+
+    /**
+     * Gets the format name to use for the given image path.
+     *
+     * @param path The image path.
+     * @return The format name ("jpeg" or "png"), or null if the image type is not supported.
+     */
+    public static String getFormatName(String path) {
+        String p = path.toLowerCase(Locale.ENGLISH);
+        if (p.endsWith(".jpg") || p.endsWith(".jpeg")) {
+            return "jpeg";
+        } else if (p.endsWith(".png")) {
+            return "png";
+        }
+        return null;
+    }
+
+    /**
+     * Encodes the given image in the given format.
+     *
+     * @param image The image to encode.
+     * @param format The format, either "jpeg" or "png".
+     * @param quality The JPEG quality (0-100). If 0 or less, {@link #DEFAULT_JPEG_QUALITY} is used. Ignored for PNGs.
+     * @return The encoded image.
+     * @throws IOException If encoding fails.
+     */
+    public static byte[] encode(BufferedImage image, String format, int quality) throws IOException {
+        if ("jpeg".equals(format)) {
+            return encodeJpeg(image, quality > 0 ? quality : DEFAULT_JPEG_QUALITY);
+        } else if ("png".equals(format)) {
+            return encodePng(image);
+        }
+        throw new IllegalArgumentException("Unsupported format '" + format + "'.");
+    }
+
+    /**
+     * Optimizes the given (already encoded) image data without any further
+     * loss, and returns the smaller of the original and the optimized
+     * version.
+     * <p>
+     * JPEG pixel data is never decoded (re-encoding would compress it lossily
+     * a second time). Instead, comments and metadata segments are removed;
+     * the JFIF header, ICC profile and Adobe color transform segments are
+     * kept, as they affect how the image is displayed. PNGs are decoded and
+     * re-encoded, see {@link #encode(java.awt.image.BufferedImage, java.lang.String, int)}.
+     * <p>
+     * Never fails: if anything goes wrong, the original data is returned.
+     *
+     * @param data The encoded image data.
+     * @param path The image path, used to determine the format (and for logging).
+     * @return The smaller of the original and the optimized version.
+     */
+    public static byte[] optimize(byte[] data, String path) {
+        String format = getFormatName(path);
+        if (data == null || format == null) {
+            return data;
+        }
+        try {
+            byte[] optimized;
+            if ("jpeg".equals(format)) {
+                optimized = stripJpegMetadata(data);
+            } else {
+                BufferedImage image = ImageIO.read(new ByteArrayInputStream(data));
+                if (image == null) {
+                    return data;
+                }
+                optimized = encodePng(image);
+            }
+            if (optimized.length >= data.length) {
+                return data;
+            }
+            long saved = data.length - optimized.length;
+            bytesSaved.addAndGet(saved);
+            variantsOptimized.incrementAndGet();
+            if (LOG.isInfoEnabled()) {
+                LOG.info("Optimized variant of '" + path + "': " + data.length + " -> " + optimized.length
+                        + " bytes (saved " + saved + ").");
+            }
+            return optimized;
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to optimize variant of '" + path + "', keeping it as is.", e);
+            }
+            return data;
+        }
+    }
+
+    /**
+     * Gets the total number of bytes saved by {@link #optimize(byte[], java.lang.String)}.
+     *
+     * @return The total number of bytes saved.
+     */
+    public static long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    /**
+     * Gets the total number of variants made smaller by {@link #optimize(byte[], java.lang.String)}.
+     *
+     * @return The total number of variants made smaller.
+     */
+    public static long getVariantsOptimized() {
+        return variantsOptimized.get();
+    }
+
+    /**
+     * Encodes the given image as a progressive JPEG, without metadata.
+     */
+    private static byte[] encodeJpeg(BufferedImage image, int quality) throws IOException {
+        if (image.getColorModel().hasAlpha()) {
+            image = flatten(image);
+        }
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageOutputStream ios = ImageIO.createImageOutputStream(out);
+        try {
+            writer.setOutput(ios);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(quality / 100f);
+
+            // Fresh (default) metadata, so nothing from the source is carried over
+            IIOMetadata metadata = writer.getDefaultImageMetadata(new ImageTypeSpecifier(image), param);
+            if (quality >= FULL_CHROMA_QUALITY) {
+                setFullChroma(metadata);
+            }
+            writer.write(null, new IIOImage(image, null, metadata), param);
+        } finally {
+            ios.close();
+            writer.dispose();
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Removes comments and metadata segments (EXIF, XMP, etc.) from the given
+     * JPEG data, without touching the compressed image data.
+     * <p>
+     * Segments that affect how the image is displayed are kept: APP0 (JFIF),
+     * APP2 holding an ICC profile, and APP14 (Adobe).
+     *
+     * @param data The JPEG data.
+     * @return The stripped JPEG data, or the given data if it is not a well-formed JPEG.
+     */
+    protected static byte[] stripJpegMetadata(byte[] data) {
+        if (data.length < 4 || (data[0] & 0xFF) != 0xFF || (data[1] & 0xFF) != 0xD8) {
+            return data;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length);
+        out.write(data, 0, 2); // SOI
+        int i = 2;
+        while (i + 4 <= data.length) {
+            if ((data[i] & 0xFF) != 0xFF) {
+                return data; // Malformed
+            }
+            int marker = data[i + 1] & 0xFF;
+            if (marker == 0xFF) {
+                i++; // Fill byte
+                continue;
+            }
+            if (marker == JPEG_SOS) {
+                // Compressed data follows: keep everything from here on as-is
+                out.write(data, i, data.length - i);
+                return out.toByteArray();
+            }
+            int length = ((data[i + 2] & 0xFF) << 8) | (data[i + 3] & 0xFF);
+            if (length < 2 || i + 2 + length > data.length) {
+                return data; // Malformed
+            }
+            boolean metadata = marker == JPEG_COM
+                    || (marker > JPEG_APP0 && marker <= JPEG_APP15 && marker != JPEG_APP14
+                            && !(marker == JPEG_APP2 && startsWith(data, i + 4, length - 2, ICC_PROFILE_ID)));
+            if (!metadata) {
+                out.write(data, i, 2 + length);
+            }
+            i += 2 + length;
+        }
+        return data; // No image data found
+    }
+
+    /**
+     * Determines whether or not the given part of the given data starts with
+     * the given prefix.
+     */
+    private static boolean startsWith(byte[] data, int offset, int length, byte[] prefix) {
+        if (length < prefix.length) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length; i++) {
+            if (data[offset + i] != prefix[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Modifies the given JPEG metadata to disable chroma subsampling (4:4:4).
+     */
+    private static void setFullChroma(IIOMetadata metadata) throws IOException {
+        IIOMetadataNode root = (IIOMetadataNode)metadata.getAsTree(JPEG_METADATA_FORMAT);
+        NodeList components = root.getElementsByTagName("componentSpec");
+        for (int i = 0; i < components.getLength(); i++) {
+            IIOMetadataNode component = (IIOMetadataNode)components.item(i);
+            component.setAttribute("HsamplingFactor", "1");
+            component.setAttribute("VsamplingFactor", "1");
+        }
+        metadata.setFromTree(JPEG_METADATA_FORMAT, root);
+    }
+
+    /**
+     * Encodes the given image as a PNG, using a palette if that is lossless.
+     */
+    private static byte[] encodePng(BufferedImage image) throws IOException {
+        BufferedImage palette = toPalette(image);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        ImageIO.write(palette != null ? palette : image, "png", out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Converts the given image to a palette image, if it has no more than
+     * {@link #MAX_PALETTE_COLORS} distinct colors.
+     * <p>
+     * Only non-premultiplied, 8-bit sRGB images are converted, as reading the
+     * pixels as sRGB is exact only for those (gray levels would be shifted,
+     * and 16-bit samples truncated).
+     *
+     * @param image The image to convert.
+     * @return The palette image, or null if the image has too many colors (or cannot be converted losslessly).
+     */
+    private static BufferedImage toPalette(BufferedImage image) {
+        ColorModel cm = image.getColorModel();
+        if (cm instanceof IndexColorModel) {
+            return image; // Already a palette image
+        }
+        if (!cm.getColorSpace().isCS_sRGB() || cm.isAlphaPremultiplied()) {
+            return null;
+        }
+        int[] componentSizes = cm.getComponentSize();
+        for (int i = 0; i < componentSizes.length; i++) {
+            if (componentSizes[i] > 8) {
+                return null;
+            }
+        }
+        int width = image.getWidth();
+        int height = image.getHeight();
+        int[] pixels = image.getRGB(0, 0, width, height, null, 0, width);
+        boolean alpha = image.getColorModel().hasAlpha();
+
+        Map<Integer, Integer> indexes = new HashMap<Integer, Integer>();
+        int[] colors = new int[MAX_PALETTE_COLORS];
+        for (int i = 0; i < pixels.length; i++) {
+            int argb = alpha ? pixels[i] : (pixels[i] | 0xFF000000);
+            if (!indexes.containsKey(argb)) {
+                if (indexes.size() == MAX_PALETTE_COLORS) {
+                    return null;
+                }
+                colors[indexes.size()] = argb;
+                indexes.put(argb, indexes.size());
+            }
+        }
+
+        int size = indexes.size();
+        int bits = size <= 2 ? 1 : (size <= 4 ? 2 : (size <= 16 ? 4 : 8));
+        byte[] r = new byte[size], g = new byte[size], b = new byte[size], a = new byte[size];
+        for (int i = 0; i < size; i++) {
+            a[i] = (byte)(colors[i] >>> 24);
+            r[i] = (byte)(colors[i] >> 16);
+            g[i] = (byte)(colors[i] >> 8);
+            b[i] = (byte)colors[i];
+        }
+        IndexColorModel icm = alpha ? new IndexColorModel(bits, size, r, g, b, a) : new IndexColorModel(bits, size, r, g, b);
+        BufferedImage palette = new BufferedImage(width, height,
+                bits == 8 ? BufferedImage.TYPE_BYTE_INDEXED : BufferedImage.TYPE_BYTE_BINARY, icm);
+        WritableRaster raster = palette.getRaster();
+        int[] row = new int[width];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int argb = alpha ? pixels[y * width + x] : (pixels[y * width + x] | 0xFF000000);
+                row[x] = indexes.get(argb).intValue();
+            }
+            raster.setPixels(0, y, width, 1, row);
+        }
+        return palette;
+    }
+
+    /**
+     * Draws the given image onto a white, opaque background.
+     */
+    private static BufferedImage flatten(BufferedImage image) {
+        BufferedImage flat = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = flat.createGraphics();
+        try {
+            g.setColor(Color.WHITE);
+            g.fillRect(0, 0, image.getWidth(), image.getHeight());
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return flat;
+    }
+}
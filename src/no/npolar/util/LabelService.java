@@ -0,0 +1,261 @@
+package no.npolar.util;
+
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsPropertyDefinition;
+import org.opencms.jsp.CmsJspActionElement;
+
+/**
+ * Cached, localized labels.
+ * <p>
+ * Labels are decoded and parsed once, and kept as {@link Template}s, so
+ * parameters can be injected without any regular expressions. There are two
+ * sources:
+ * <ul>
+ * <li>The OpenCms workplace messages (see {@link CmsJspActionElement#label(java.lang.String)}),
+ * re-decoded as UTF-8 and cached per locale. Cleared by {@link Actions} when
+ * the caches are flushed.</li>
+ * <li>The workplace properties files in {@link #VFS_BUNDLE_FOLDERS}, parsed
+ * into an immutable map per locale. A map is re-parsed when any of its files
+ * change, as detected by their fingerprints (see {@link FingerprintCache}).
+ * Missing keys are simply absent from the map, so no exceptions are
+ * involved.</li>
+ * </ul>
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#labelUnicode(java.lang.String)
+ */
+public class LabelService {
+    /** The VFS folders holding workplace properties files, in order of increasing priority. */
+    public static final String[] VFS_BUNDLE_FOLDERS = {
+        "/system/modules/no.npolar.language/classes/no/npolar/language/",
+        "/system/modules/no.npolar.site.ivorygull/classes/no/npolar/site/ivorygull/",
+        "/system/modules/no.npolar.common.newsbulletin/classes/no/npolar/common/newsbulletin/"
+    };
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(LabelService.class);
+
+    /** Decoded workplace labels, keyed by locale, then by key. */
+    private static final ConcurrentHashMap<String, ConcurrentHashMap<String, Template>> workplaceLabels = new ConcurrentHashMap<String, ConcurrentHashMap<String, Template>>();
+    /** Parsed VFS bundles, keyed by project type + locale. */
+    private static final ConcurrentHashMap<String, VfsBundle> vfsBundles = new ConcurrentHashMap<String, VfsBundle>();
+
+    /**
+     * A label, pre-split into literal parts and parameter placeholders
+     * ("{0}", "{1}" etc.).
+     */
+    public static class Template {
+        /** The literal parts. There is always one more part than there are placeholders. */
+        private final String[] parts;
+        /** The parameter index of each placeholder. */
+        private final int[] params;
+        /** The unresolved label. */
+        private final String label;
+
+        /**
+         * Creates a new template for the given label.
+         *
+         * @param label The label.
+         */
+        public Template(String label) {
+            this.label = label;
+            List<String> partList = new ArrayList<String>(2);
+            List<Integer> paramList = new ArrayList<Integer>(1);
+            int partStart = 0;
+            int i = label.indexOf('{');
+            while (i > -1) {
+                int end = i + 1;
+                while (end < label.length() && Character.isDigit(label.charAt(end))) {
+                    end++;
+                }
+                if (end > i + 1 && end < label.length() && label.charAt(end) == '}' && end - i < 6) {
+                    partList.add(label.substring(partStart, i));
+                    paramList.add(Integer.valueOf(label.substring(i + 1, end)));
+                    partStart = end + 1;
+                    i = label.indexOf('{', partStart);
+                } else {
+                    i = label.indexOf('{', i + 1);
+                }
+            }
+            partList.add(label.substring(partStart));
+            this.parts = partList.toArray(new String[partList.size()]);
+            this.params = new int[paramList.size()];
+            for (int j = 0; j < params.length; j++) {
+                params[j] = paramList.get(j).intValue();
+            }
+        }
+
+        /**
+         * Gets the label, with the given parameters injected. Placeholders
+         * with no matching parameter are left as-is.
+         *
+         * @param values The parameter values.
+         * @return The label, with the given parameters injected.
+         */
+        public String format(String ... values) {
+            if (params.length == 0 || values == null || values.length == 0) {
+                return label;
+            }
+            StringBuilder sb = new StringBuilder(label.length() + 32);
+            for (int i = 0; i < params.length; i++) {
+                sb.append(parts[i]);
+                if (params[i] < values.length) {
+                    sb.append(values[params[i]]);
+                } else {
+                    sb.append('{').append(params[i]).append('}');
+                }
+            }
+            return sb.append(parts[params.length]).toString();
+        }
+
+        /**
+         * Gets the unresolved label.
+         *
+         * @return The unresolved label.
+         */
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    /**
+     * A parsed set of VFS workplace properties files for one locale.
+     */
+    private static class VfsBundle {
+        /** The fingerprints of the files at the time they were parsed. */
+        private final long[] fingerprints;
+        /** The labels. */
+        private final Map<String, Template> labels;
+
+        /**
+         * Creates a new bundle.
+         *
+         * @param fingerprints The fingerprints of the files.
+         * @param labels The labels.
+         */
+        VfsBundle(long[] fingerprints, Map<String, Template> labels) {
+            this.fingerprints = fingerprints;
+            this.labels = labels;
+        }
+    }
+
+    /**
+     * Gets the given workplace label, in the current request's locale,
+     * decoded as UTF-8.
+     *
+     * @param cms An initialized action element.
+     * @param key The label key.
+     * @return The label, as a template.
+     */
+    public static Template getWorkplaceLabel(CmsJspActionElement cms, String key) {
+        String locale = String.valueOf(cms.getRequestContext().getLocale());
+        ConcurrentHashMap<String, Template> labels = workplaceLabels.get(locale);
+        if (labels == null) {
+            labels = new ConcurrentHashMap<String, Template>();
+            ConcurrentHashMap<String, Template> existing = workplaceLabels.putIfAbsent(locale, labels);
+            if (existing != null) {
+                labels = existing;
+            }
+        }
+        Template label = labels.get(key);
+        if (label == null) {
+            // Missing keys are cached too (as the "??? key ???" label returned by OpenCms)
+            String raw = cms.label(key);
+            try {
+                label = new Template(new String(raw.getBytes("ISO-8859-1"), "UTF-8"));
+            } catch (UnsupportedEncodingException e) {
+                label = new Template("[Default label: ".concat(raw).concat("]"));
+            }
+            labels.put(key, label);
+        }
+        return label;
+    }
+
+    /**
+     * Gets the given label from the workplace properties files in
+     * {@link #VFS_BUNDLE_FOLDERS}.
+     *
+     * @param cmso An initialized CmsObject, used to read the files (if necessary).
+     * @param key The label key.
+     * @param locale The locale, e.g. "ru".
+     * @return The label, as a template, or null if there is no such label.
+     */
+    public static Template getVfsLabel(CmsObject cmso, String key, String locale) {
+        return getVfsBundle(cmso, locale.toLowerCase()).labels.get(key);
+    }
+
+    /**
+     * Removes all cached labels.
+     */
+    public static void clear() {
+        workplaceLabels.clear();
+        vfsBundles.clear();
+    }
+
+    /**
+     * Gets the parsed VFS bundle for the given locale, (re-)parsing it if
+     * necessary.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param locale The locale, in lower case.
+     * @return The parsed VFS bundle for the given locale.
+     */
+    private static VfsBundle getVfsBundle(CmsObject cmso, String locale) {
+        String fileName = "workplace_" + locale + ".properties";
+        long[] fingerprints = new long[VFS_BUNDLE_FOLDERS.length];
+        for (int i = 0; i < fingerprints.length; i++) {
+            fingerprints[i] = FingerprintCache.get(cmso, VFS_BUNDLE_FOLDERS[i].concat(fileName));
+        }
+        String key = (cmso.getRequestContext().getCurrentProject().isOnlineProject() ? "1:" : "0:") + locale;
+        VfsBundle bundle = vfsBundles.get(key);
+        if (bundle == null || !Arrays.equals(bundle.fingerprints, fingerprints)) {
+            Map<String, Template> labels = new HashMap<String, Template>();
+            for (int i = 0; i < fingerprints.length; i++) {
+                if (fingerprints[i] > -1) {
+                    parse(cmso, VFS_BUNDLE_FOLDERS[i].concat(fileName), labels);
+                }
+            }
+            bundle = new VfsBundle(fingerprints, Collections.unmodifiableMap(labels));
+            vfsBundles.put(key, bundle);
+        }
+        return bundle;
+    }
+
+    /**
+     * Parses the given properties file, adding its labels to the given map.
+     *
+     * @param cmso An initialized CmsObject, used to read the file.
+     * @param path The path to the properties file.
+     * @param labels The map to add the labels to.
+     */
+    private static void parse(CmsObject cmso, String path, Map<String, Template> labels) {
+        try {
+            String encoding = cmso.readPropertyObject(path, CmsPropertyDefinition.PROPERTY_CONTENT_ENCODING, true).getValue("UTF-8");
+            Properties props = new Properties();
+            props.load(new StringReader(new String(cmso.readFile(path).getContents(), encoding)));
+            Iterator<String> i = props.stringPropertyNames().iterator();
+            while (i.hasNext()) {
+                String key = i.next();
+                labels.put(key, new Template(props.getProperty(key)));
+            }
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to parse labels from '" + path + "'.", e);
+            }
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package no.npolar.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A simple, thread-safe, size-bounded cache that evicts the least recently
+ * used entry when full.
+ *
+ * @param <K> The key type.
+ * @param <V> The value type.
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class LruCache<K, V> {
+    /** The max. number of entries. */
+    private final int maxEntries;
+    /** The entries, in access order (least recently used first). */
+    private final LinkedHashMap<K, V> entries;
+
+    /**
+     * Creates a new cache, holding no more than the given number of entries.
+     *
+     * @param maxEntries The max. number of entries.
+     */
+    public LruCache(int maxEntries) {
+        if (maxEntries < 1) {
+            throw new IllegalArgumentException("Max. number of cache entries must be at least 1.");
+        }
+        this.maxEntries = maxEntries;
+        this.entries = new LinkedHashMap<K, V>(Math.min(maxEntries, 256), 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+                return size() > LruCache.this.maxEntries;
+            }
+        };
+    }
+
+    /**
+     * Gets the value mapped to the given key.
+     *
+     * @param key The key.
+     * @return The value mapped to the given key, or null if none.
+     */
+    public synchronized V get(K key) {
+        return entries.get(key);
+    }
+
+    /**
+     * Maps the given value to the given key.
+     *
+     * @param key The key.
+     * @param value The value.
+     * @return The value previously mapped to the given key, or null if none.
+     */
+    public synchronized V put(K key, V value) {
+        return entries.put(key, value);
+    }
+
+    /**
+     * Removes the value mapped to the given key.
+     *
+     * @param key The key.
+     * @return The removed value, or null if none.
+     */
+    public synchronized V remove(K key) {
+        return entries.remove(key);
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        entries.clear();
+    }
+
+    /**
+     * Gets the current number of entries.
+     *
+     * @return The current number of entries.
+     */
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Gets the max. number of entries.
+     *
+     * @return The max. number of entries.
+     */
+    public int getMaxEntries() {
+        return maxEntries;
+    }
+}
@@ -0,0 +1,332 @@
+package no.npolar.util;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Multi-threaded image resampler, using a separable Lanczos (a=3) filter.
+ * <p>
+ * Resampling is done in two passes - first horizontally, then vertically -
+ * directly on the packed <code>int[]</code> pixel data. Each pass splits its
+ * output rows into stripes that are processed in parallel, using a shared
+ * fork-join pool.
+ * <p>
+ * Images with transparency are resampled with premultiplied alpha, to avoid
+ * dark fringes around transparent areas.
+ * <p>
+ * A sequential resampler (see {@link #ParallelImageResampler(boolean)}) uses
+ * the same filter, but processes all rows in the calling thread.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsImageProcessor#setParallelResampling(boolean)
+ */
+public class ParallelImageResampler {
+    /** The Lanczos filter radius (the "a" parameter). */
+    public static final int LANCZOS_RADIUS = 3;
+    /** Stripes with fewer rows than this are not split further. */
+    public static final int MIN_STRIPE_ROWS = 32;
+
+    /** The shared fork-join pool. */
+    private static final ForkJoinPool POOL = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+
+    /** Flag indicating whether or not stripes are processed in parallel. */
+    private final boolean parallel;
+
+    /**
+     * Creates a new parallel resampler.
+     */
+    public ParallelImageResampler() {
+        this(true);
+    }
+
+    /**
+     * Creates a new resampler.
+     *
+     * @param parallel If true, stripes are processed in parallel, using the shared fork-join pool. If false, everything is done in the calling thread.
+     */
+    public ParallelImageResampler(boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * Pre-calculated filter weights for one dimension: for each output
+     * position, the first contributing input position and the weights of all
+     * contributing input positions.
+     */
+    private static class Contributions {
+        /** The first contributing input position, per output position. */
+        final int[] first;
+        /** The number of contributing input positions, per output position. */
+        final int[] count;
+        /** The weights, per output position (stride: maxCount). */
+        final float[] weights;
+        /** The max. number of contributing input positions for any output position. */
+        final int maxCount;
+
+        Contributions(int srcSize, int dstSize) {
+            double scale = (double)dstSize / srcSize;
+            double filterScale = Math.max(1.0, 1.0 / scale); // Widen the filter when downscaling
+            double support = LANCZOS_RADIUS * filterScale;
+            maxCount = (int)Math.ceil(support * 2) + 1;
+            first = new int[dstSize];
+            count = new int[dstSize];
+            weights = new float[dstSize * maxCount];
+
+            for (int i = 0; i < dstSize; i++) {
+                double center = (i + 0.5) / scale;
+                int left = Math.max(0, (int)Math.floor(center - support));
+                int right = Math.min(srcSize - 1, (int)Math.ceil(center + support) - 1);
+                int n = Math.min(maxCount, right - left + 1);
+                double sum = 0;
+                for (int j = 0; j < n; j++) {
+                    double w = lanczos((left + j + 0.5 - center) / filterScale);
+                    weights[i * maxCount + j] = (float)w;
+                    sum += w;
+                }
+                // Normalize, so that the weights always sum to 1
+                if (sum != 0) {
+                    for (int j = 0; j < n; j++) {
+                        weights[i * maxCount + j] /= sum;
+                    }
+                }
+                first[i] = left;
+                count[i] = n;
+            }
+        }
+    }
+
+    /**
+     * Resamples the given image to the given size.
+     *
+     * @param source The image to resample.
+     * @param width The target width.
+     * @param height The target height.
+     * @return The resampled image, of type {@link BufferedImage#TYPE_INT_ARGB_PRE} if the source has transparency, {@link BufferedImage#TYPE_INT_RGB} if not.
+     */
+    public BufferedImage resample(BufferedImage source, int width, int height) {
+        if (width < 1 || height < 1) {
+            throw new IllegalArgumentException("Target size must be at least 1x1 (was " + width + "x" + height + ").");
+        }
+        boolean alpha = source.getColorModel().hasAlpha();
+        int type = alpha ? BufferedImage.TYPE_INT_ARGB_PRE : BufferedImage.TYPE_INT_RGB;
+        BufferedImage src = toType(source, type);
+
+        int[] srcPixels = ((DataBufferInt)src.getRaster().getDataBuffer()).getData();
+        int[] dstPixels = resample(srcPixels, src.getWidth(), src.getHeight(), width, height, alpha);
+
+        BufferedImage result = new BufferedImage(width, height, type);
+        int[] resultPixels = ((DataBufferInt)result.getRaster().getDataBuffer()).getData();
+        System.arraycopy(dstPixels, 0, resultPixels, 0, dstPixels.length);
+        return result;
+    }
+
+    /**
+     * Resamples the given packed (A)RGB pixel data to the given size.
+     *
+     * @param src The source pixels, one int per pixel, row by row.
+     * @param srcWidth The source width.
+     * @param srcHeight The source height.
+     * @param dstWidth The target width.
+     * @param dstHeight The target height.
+     * @param alpha If true, the alpha channel is resampled too. If false, the result is fully opaque.
+     * @return The resampled pixels.
+     */
+    public int[] resample(int[] src, int srcWidth, int srcHeight, int dstWidth, int dstHeight, boolean alpha) {
+        // Pass 1: horizontal (srcWidth x srcHeight -> dstWidth x srcHeight)
+        int stripeRows = parallel ? MIN_STRIPE_ROWS : Integer.MAX_VALUE;
+        int[] tmp = new int[dstWidth * srcHeight];
+        HorizontalPass horizontal = new HorizontalPass(src, srcWidth, tmp, dstWidth, new Contributions(srcWidth, dstWidth), alpha, 0, srcHeight, stripeRows);
+        if (parallel) {
+            POOL.invoke(horizontal);
+        } else {
+            horizontal.compute();
+        }
+
+        // Pass 2: vertical (dstWidth x srcHeight -> dstWidth x dstHeight)
+        int[] dst = new int[dstWidth * dstHeight];
+        VerticalPass vertical = new VerticalPass(tmp, dst, dstWidth, new Contributions(srcHeight, dstHeight), alpha, 0, dstHeight, stripeRows);
+        if (parallel) {
+            POOL.invoke(vertical);
+        } else {
+            vertical.compute();
+        }
+        return dst;
+    }
+
+    /**
+     * Horizontal pass over a stripe of rows.
+     */
+    private static class HorizontalPass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] src;
+        private final int srcWidth;
+        private final int[] dst;
+        private final int dstWidth;
+        private final Contributions c;
+        private final boolean alpha;
+        private final int fromRow;
+        private final int toRow;
+        private final int stripeRows;
+
+        HorizontalPass(int[] src, int srcWidth, int[] dst, int dstWidth, Contributions c, boolean alpha, int fromRow, int toRow, int stripeRows) {
+            this.src = src;
+            this.srcWidth = srcWidth;
+            this.dst = dst;
+            this.dstWidth = dstWidth;
+            this.c = c;
+            this.alpha = alpha;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.stripeRows = stripeRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > stripeRows) {
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new HorizontalPass(src, srcWidth, dst, dstWidth, c, alpha, fromRow, mid, stripeRows),
+                        new HorizontalPass(src, srcWidth, dst, dstWidth, c, alpha, mid, toRow, stripeRows));
+                return;
+            }
+            for (int y = fromRow; y < toRow; y++) {
+                int srcRow = y * srcWidth;
+                int dstRow = y * dstWidth;
+                for (int x = 0; x < dstWidth; x++) {
+                    float a = 0, r = 0, g = 0, b = 0;
+                    int wOffset = x * c.maxCount;
+                    int p = srcRow + c.first[x];
+                    for (int j = 0, n = c.count[x]; j < n; j++, p++) {
+                        float w = c.weights[wOffset + j];
+                        int argb = src[p];
+                        a += w * (argb >>> 24);
+                        r += w * ((argb >> 16) & 0xFF);
+                        g += w * ((argb >> 8) & 0xFF);
+                        b += w * (argb & 0xFF);
+                    }
+                    dst[dstRow + x] = pack(a, r, g, b, alpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Vertical pass over a stripe of (output) rows.
+     */
+    private static class VerticalPass extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+        private final int[] src;
+        private final int[] dst;
+        private final int width;
+        private final Contributions c;
+        private final boolean alpha;
+        private final int fromRow;
+        private final int toRow;
+        private final int stripeRows;
+
+        VerticalPass(int[] src, int[] dst, int width, Contributions c, boolean alpha, int fromRow, int toRow, int stripeRows) {
+            this.src = src;
+            this.dst = dst;
+            this.width = width;
+            this.c = c;
+            this.alpha = alpha;
+            this.fromRow = fromRow;
+            this.toRow = toRow;
+            this.stripeRows = stripeRows;
+        }
+
+        @Override
+        protected void compute() {
+            if (toRow - fromRow > stripeRows) {
+                int mid = (fromRow + toRow) >>> 1;
+                invokeAll(new VerticalPass(src, dst, width, c, alpha, fromRow, mid, stripeRows),
+                        new VerticalPass(src, dst, width, c, alpha, mid, toRow, stripeRows));
+                return;
+            }
+            // Accumulate whole rows at a time, for sequential memory access
+            float[] acc = new float[width * 4];
+            for (int y = fromRow; y < toRow; y++) {
+                Arrays.fill(acc, 0f);
+                int wOffset = y * c.maxCount;
+                for (int j = 0, n = c.count[y]; j < n; j++) {
+                    float w = c.weights[wOffset + j];
+                    int srcRow = (c.first[y] + j) * width;
+                    for (int x = 0, k = 0; x < width; x++, k += 4) {
+                        int argb = src[srcRow + x];
+                        acc[k] += w * (argb >>> 24);
+                        acc[k + 1] += w * ((argb >> 16) & 0xFF);
+                        acc[k + 2] += w * ((argb >> 8) & 0xFF);
+                        acc[k + 3] += w * (argb & 0xFF);
+                    }
+                }
+                int dstRow = y * width;
+                for (int x = 0, k = 0; x < width; x++, k += 4) {
+                    dst[dstRow + x] = pack(acc[k], acc[k + 1], acc[k + 2], acc[k + 3], alpha);
+                }
+            }
+        }
+    }
+
+    /**
+     * Packs the given channel values into an (A)RGB int, rounding and
+     * clamping each channel.
+     * <p>
+     * With premultiplied alpha, no color channel may exceed the alpha
+     * channel.
+     */
+    private static int pack(float a, float r, float g, float b, boolean alpha) {
+        int ia = alpha ? clamp(a) : 0xFF;
+        int ir = clamp(r);
+        int ig = clamp(g);
+        int ib = clamp(b);
+        if (alpha) {
+            ir = Math.min(ir, ia);
+            ig = Math.min(ig, ia);
+            ib = Math.min(ib, ia);
+        }
+        return (ia << 24) | (ir << 16) | (ig << 8) | ib;
+    }
+
+    /**
+     * Rounds the given value and clamps it to 0-255.
+     */
+    private static int clamp(float v) {
+        int i = (int)(v + 0.5f);
+        return i < 0 ? 0 : (i > 255 ? 255 : i);
+    }
+
+    /**
+     * The Lanczos kernel.
+     */
+    private static double lanczos(double x) {
+        if (x == 0) {
+            return 1.0;
+        }
+        if (x <= -LANCZOS_RADIUS || x >= LANCZOS_RADIUS) {
+            return 0.0;
+        }
+        double px = Math.PI * x;
+        return LANCZOS_RADIUS * Math.sin(px) * Math.sin(px / LANCZOS_RADIUS) / (px * px);
+    }
+
+    /**
+     * Gets the given image as an image of the given type, converting it if
+     * necessary.
+     */
+    private static BufferedImage toType(BufferedImage image, int type) {
+        if (image.getType() == type) {
+            return image;
+        }
+        BufferedImage converted = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        Graphics2D g = converted.createGraphics();
+        try {
+            g.drawImage(image, 0, 0, null);
+        } finally {
+            g.dispose();
+        }
+        return converted;
+    }
+}
@@ -15,7 +15,7 @@ public class ResourceList {
     private boolean mergeTeaser             = false;
     private String dateProperty             = null;
     private String bylineProperty           = null;
-    private SimpleDateFormat dateFormat     = null;
+    private String dateFormat               = null;
     private int imageWidth                  = -1;
     private String title                    = null;
     private String text                     = null;
@@ -70,7 +70,9 @@ public class ResourceList {
         this.mergeTeaser = mergeTeaser;
         if (dateFormat != null) {
             try {
-                this.dateFormat = new SimpleDateFormat(dateFormat);
+                // Validate the pattern (formats are cached per thread, see getDateFormat())
+                Formats.getDateFormat(dateFormat, null);
+                this.dateFormat = dateFormat;
             } catch (Exception e) {
                 throw new IllegalArgumentException("Unable to create a date format with pattern '" + dateFormat + "': " + e.getMessage());
             }
@@ -95,7 +97,24 @@ public class ResourceList {
     public List<ResourceListItem> getItems() {
         return items;
     }
+    /**
+     * Gets a date format for formatting this list's timestamps.
+     * <p>
+     * The returned instance belongs to the current thread, and must not be
+     * shared with other threads.
+     * 
+     * @return A date format for formatting this list's timestamps, or null if this list has no timestamps.
+     * @see Formats#getDateFormat(java.lang.String, java.util.Locale)
+     */
     public SimpleDateFormat getDateFormat() {
+        return dateFormat == null ? null : Formats.getDateFormat(dateFormat, null);
+    }
+    /**
+     * Gets the date format pattern used for this list's timestamps.
+     * 
+     * @return The date format pattern used for this list's timestamps, or null if this list has no timestamps.
+     */
+    public String getDatePattern() {
         return dateFormat;
     }
     public String getDateProperty() {
@@ -2,6 +2,7 @@ package no.npolar.util;
 
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.Locale;
 import org.opencms.jsp.CmsJspActionElement;
 
 /**
@@ -40,6 +41,19 @@ public class ResourceListItem {
         return sdf.format(this.timestamp);
     }
     
+    /**
+     * Gets this item's timestamp, formatted using a cached, thread-safe date 
+     * format.
+     * 
+     * @param pattern The date format pattern.
+     * @param locale The locale. Can be null, in which case the default locale is used.
+     * @return This item's timestamp, formatted according to the given pattern and locale.
+     * @see Formats#formatDate(java.util.Date, java.lang.String, java.util.Locale)
+     */
+    public String getTimestamp(String pattern, Locale locale) {
+        return Formats.formatDate(this.timestamp, pattern, locale);
+    }
+    
     public String getImageUri() {
         return this.imageUri;
     }
@@ -53,7 +67,11 @@ public class ResourceListItem {
                 imgPro.setType(3);
                 imgPro.setQuality(100);
                 imgPro.setWidth(width);
-                imageTag += CmsAgent.getTagAttributesAsMap(cms.img(this.imageUri, imgPro.getReScaler(imgPro), null, false)).get("src");
+                try {
+                    imageTag += ImageUtil.getScaledUri(cms, this.imageUri, imgPro);
+                } catch (Exception e) {
+                    imageTag += cms.link(this.imageUri);
+                }
             }
             else { // Not local image, 
                 imageTag += this.imageUri + "\" width=\"" + width;
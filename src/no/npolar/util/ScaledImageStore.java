@@ -0,0 +1,547 @@
+package no.npolar.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsFile;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.jsp.CmsJspActionElement;
+import org.opencms.loader.CmsImageScaler;
+import org.opencms.main.CmsException;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+
+/**
+ * Local disk store for scaled image variants.
+ * <p>
+ * Each variant is stored as a single file, named by a key that is a hash of
+ * the source image's content and the scale parameters. Identical images will
+ * therefore share their scaled variants, regardless of where in the VFS they
+ * are located.
+ * <p>
+ * The store is bounded by a byte budget. When adding a variant would exceed
+ * the budget, the least recently used variants are evicted.
+ * <p>
+ * Hits are served directly from disk, using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+ * with <code>ETag</code> and <code>Last-Modified</code> headers derived from the
+ * {@link CmsAgent#PARAM_NAME_FINGERPRINT fingerprint} parameter.
+ * <p>
+ * The store location and budget can be set using the module parameters
+ * {@link #MODULE_PARAM_DIR} and {@link #MODULE_PARAM_MAX_BYTES}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ScaledImageStore {
+    /** Module parameter name for the store directory (absolute, or relative to WEB-INF). */
+    public static final String MODULE_PARAM_DIR = "imagestore.dir";
+    /** Module parameter name for the store's byte budget. */
+    public static final String MODULE_PARAM_MAX_BYTES = "imagestore.maxbytes";
+    /** The default store directory, relative to WEB-INF. */
+    public static final String DEFAULT_DIR = "npolar-imagestore";
+    /** The default byte budget (512 MB). */
+    public static final long DEFAULT_MAX_BYTES = 512L * 1024 * 1024;
+    /** The max-age used in the Cache-Control header for fingerprinted requests (1 year, in seconds). */
+    public static final int FINGERPRINTED_MAX_AGE = 60 * 60 * 24 * 365;
+
+    /** The max. number of content digests to keep in memory. */
+    private static final int MAX_CONTENT_DIGESTS = 2000;
+    /** Suffix used for files that are being written. */
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ScaledImageStore.class);
+
+    /** The shared instance. */
+    private static ScaledImageStore instance = null;
+
+    /** Content digests of source images, keyed by structure ID + date last modified. */
+    private static final LruCache<String, String> contentDigests = new LruCache<String, String>(MAX_CONTENT_DIGESTS);
+
+    /** The store directory. */
+    private final File dir;
+    /** The byte budget. */
+    private final long maxBytes;
+    /** The current number of bytes in the store. */
+    private long currentBytes = 0;
+    /** The stored variants, in access order (least recently used first). */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+    /**
+     * A stored variant, along with the number of bytes it was accounted for
+     * (the file may have been deleted, in which case its length is unknown).
+     */
+    private static class Entry {
+        /** The file. */
+        private final File file;
+        /** The number of bytes accounted for. */
+        private final long bytes;
+
+        /**
+         * Creates a new entry.
+         *
+         * @param file The file.
+         * @param bytes The number of bytes accounted for.
+         */
+        Entry(File file, long bytes) {
+            this.file = file;
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * Creates a new store in the given directory, bounded by the given byte
+     * budget.
+     * <p>
+     * Any variants already present in the directory are picked up.
+     *
+     * @param dir The store directory. Created if it does not exist.
+     * @param maxBytes The byte budget.
+     */
+    public ScaledImageStore(File dir, long maxBytes) {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new IllegalArgumentException("Unable to create image store directory '" + dir.getAbsolutePath() + "'.");
+        }
+        load();
+    }
+
+    /**
+     * Gets the shared store, creating it using default settings if necessary.
+     *
+     * @return The shared store.
+     * @see #configure(org.opencms.module.CmsModule)
+     */
+    public static synchronized ScaledImageStore getInstance() {
+        if (instance == null) {
+            instance = new ScaledImageStore(
+                    new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(DEFAULT_DIR)),
+                    DEFAULT_MAX_BYTES
+            );
+        }
+        return instance;
+    }
+
+    /**
+     * (Re-)creates the shared store, using any settings found in the given
+     * module's parameters.
+     *
+     * @param module The module to read parameters from.
+     */
+    public static synchronized void configure(CmsModule module) {
+        String dirPath = module.getParameter(MODULE_PARAM_DIR, DEFAULT_DIR);
+        File storeDir = new File(dirPath);
+        if (!storeDir.isAbsolute()) {
+            storeDir = new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(dirPath));
+        }
+        long budget = DEFAULT_MAX_BYTES;
+        try {
+            budget = Long.parseLong(module.getParameter(MODULE_PARAM_MAX_BYTES, String.valueOf(DEFAULT_MAX_BYTES)).trim());
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Invalid value for module parameter '" + MODULE_PARAM_MAX_BYTES + "', using default.", e);
+            }
+        }
+        instance = new ScaledImageStore(storeDir, budget);
+    }
+
+    /**
+     * Creates the key for a scaled variant of the given image content.
+     *
+     * @param content The source image's content.
+     * @param scaleParams The scale parameters, e.g. "w:400,h:300,t:4,q:90".
+     * @return The key for the scaled variant.
+     */
+    public static String createKey(byte[] content, String scaleParams) {
+        return createKey(digest(content), scaleParams);
+    }
+
+    /**
+     * Creates the key for a scaled variant of the given image resource.
+     * <p>
+     * The image's content is read and hashed only once per version (structure
+     * ID + date last modified).
+     *
+     * @param cmso An initialized CmsObject, used to read the image content if necessary.
+     * @param image The source image.
+     * @param scaleParams The scale parameters, e.g. "w:400,h:300,t:4,q:90".
+     * @return The key for the scaled variant.
+     * @throws CmsException If the image content cannot be read.
+     */
+    public static String createKey(CmsObject cmso, CmsResource image, String scaleParams) throws CmsException {
+        return createKey(getContentDigest(cmso, image), scaleParams);
+    }
+
+    /**
+     * Gets the digest of the given image resource's content.
+     * <p>
+     * Digests are kept in memory per version (structure ID + date last
+     * modified), so the content is read only when necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the image content if necessary.
+     * @param image The image. If this is a {@link CmsFile}, its content is used as-is.
+     * @return The digest of the given image's content, as a hex string.
+     * @throws CmsException If the image content cannot be read.
+     */
+    public static String getContentDigest(CmsObject cmso, CmsResource image) throws CmsException {
+        String versionKey = image.getStructureId() + ":" + image.getDateLastModified();
+        String contentDigest = contentDigests.get(versionKey);
+        if (contentDigest == null) {
+            contentDigest = digest(image instanceof CmsFile ? ((CmsFile)image).getContents() : cmso.readFile(image).getContents());
+            contentDigests.put(versionKey, contentDigest);
+        }
+        return contentDigest;
+    }
+
+    /**
+     * Gets the stored variant identified by the given key.
+     *
+     * @param key The key.
+     * @return The stored variant, or null if none.
+     */
+    public synchronized File get(String key) {
+        Entry e = entries.get(key);
+        if (e == null) {
+            return null;
+        }
+        if (!e.file.exists()) {
+            // Deleted behind our back
+            entries.remove(key);
+            currentBytes -= e.bytes;
+            return null;
+        }
+        return e.file;
+    }
+
+    /**
+     * Adds a variant to the store, evicting least recently used variants if
+     * necessary.
+     *
+     * @param key The key.
+     * @param extension The file extension, e.g. "jpg".
+     * @param data The variant's bytes.
+     * @return The stored variant, or null if it is too large for the store.
+     * @throws IOException If writing to disk fails.
+     */
+    public File put(String key, String extension, byte[] data) throws IOException {
+        if (data.length > maxBytes) {
+            return null;
+        }
+        File target = new File(dir, key + "." + extension.toLowerCase());
+        File temp = new File(dir, key + "." + System.nanoTime() + TEMP_SUFFIX);
+
+        // Write outside the lock, then move into place
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+
+        synchronized (this) {
+            Entry existing = entries.remove(key);
+            if (existing != null) {
+                currentBytes -= existing.bytes;
+                existing.file.delete();
+            }
+            evict(data.length);
+            if (!temp.renameTo(target)) {
+                temp.delete();
+                throw new IOException("Unable to move '" + temp.getName() + "' into place as '" + target.getName() + "'.");
+            }
+            entries.put(key, new Entry(target, data.length));
+            currentBytes += data.length;
+        }
+        return target;
+    }
+
+    /**
+     * Removes the variant identified by the given key, if any.
+     *
+     * @param key The key.
+     */
+    public synchronized void remove(String key) {
+        Entry e = entries.remove(key);
+        if (e != null) {
+            currentBytes -= e.bytes;
+            e.file.delete();
+        }
+    }
+
+    /**
+     * Gets the scaled variant of the given image, creating (and storing) it
+     * if necessary.
+     *
+     * @param cmso An initialized CmsObject, used to read the image.
+     * @param image The source image.
+     * @param scaler The scaler, holding the scale parameters.
+     * @return The stored variant, or null if it could not be stored.
+     * @throws CmsException If the image cannot be read.
+     * @throws IOException If writing to disk fails.
+     */
+    public File getOrCreate(CmsObject cmso, CmsResource image, CmsImageScaler scaler) throws CmsException, IOException {
+        String key = createKey(cmso, image, scaler.toString());
+        File f = get(key);
+        if (f == null) {
+            byte[] scaled = scaler.scaleImage(cmso.readFile(image));
+            if (scaled == null) {
+                return null;
+            }
+            f = put(key, getExtension(image.getName()), scaled);
+        }
+        return f;
+    }
+
+    /**
+     * Serves the scaled variant of the given image, defined by the given scale
+     * parameters, creating (and storing) it if necessary.
+     * <p>
+     * Typically invoked from a JSP that is used as the image delivery
+     * endpoint.
+     *
+     * @param cms An initialized action element.
+     * @param imageUri The URI of the source image.
+     * @param scaleParams The scale parameters, e.g. "w:400,h:300,t:4,q:90".
+     * @return True if a response was sent, false if not (the caller should then fall back to the standard delivery).
+     */
+    public boolean serve(CmsJspActionElement cms, String imageUri, String scaleParams) {
+        CmsObject cmso = cms.getCmsObject();
+        try {
+            CmsResource image = cmso.readResource(imageUri);
+            CmsImageScaler reScaler = new CmsImageScaler(cmso, image).getReScaler(new CmsImageScaler(scaleParams));
+            File f = getOrCreate(cmso, image, reScaler);
+            if (f == null) {
+                return false;
+            }
+            long fingerprint = image.getDateLastModified();
+            String fingerprintParam = cms.getRequest().getParameter(CmsAgent.PARAM_NAME_FINGERPRINT);
+            if (fingerprintParam != null) {
+                try {
+                    fingerprint = Long.parseLong(fingerprintParam);
+                } catch (NumberFormatException nfe) {
+                    // Ignore, use the image's date last modified
+                }
+            }
+            sendFile(f,
+                    OpenCms.getResourceManager().getMimeType(image.getName(), null),
+                    fingerprint,
+                    fingerprintParam != null,
+                    cms.getRequest(),
+                    cms.getResponse());
+            return true;
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to serve scaled image '" + imageUri + "' (" + scaleParams + ") from the image store.", e);
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Sends the given file as the response, honoring conditional request
+     * headers.
+     * <p>
+     * The <code>ETag</code> and <code>Last-Modified</code> headers are derived
+     * from the given fingerprint.
+     *
+     * @param f The file to send.
+     * @param contentType The content type.
+     * @param fingerprint The fingerprint, i.e. the source's date last modified.
+     * @param fingerprinted Whether or not the request URI contained a fingerprint. If so, far-future caching headers are sent.
+     * @param request The request.
+     * @param response The response.
+     * @throws IOException If sending fails.
+     */
+    protected void sendFile(File f,
+            String contentType,
+            long fingerprint,
+            boolean fingerprinted,
+            HttpServletRequest request,
+            HttpServletResponse response) throws IOException {
+
+        String eTag = "\"" + Long.toString(fingerprint, 36) + "-" + f.getName().substring(0, 12) + "\"";
+        long lastModified = fingerprint - (fingerprint % 1000); // HTTP dates have second precision
+
+        response.setHeader("ETag", eTag);
+        response.setDateHeader("Last-Modified", lastModified);
+        if (fingerprinted) {
+            response.setHeader("Cache-Control", "public, max-age=" + FINGERPRINTED_MAX_AGE);
+        }
+
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        long ifModifiedSince = -1;
+        try {
+            ifModifiedSince = request.getDateHeader("If-Modified-Since");
+        } catch (IllegalArgumentException iae) {
+            // Unparseable date, ignore
+        }
+        if ((ifNoneMatch != null && ifNoneMatch.contains(eTag))
+                || (ifNoneMatch == null && ifModifiedSince >= lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            return;
+        }
+
+        if (contentType != null) {
+            response.setContentType(contentType);
+        }
+        transfer(f, response);
+    }
+
+    /**
+     * Writes the given file to the response body, setting the content length.
+     *
+     * @param f The file to write.
+     * @param response The response.
+     * @throws IOException If writing fails.
+     */
+    protected static void transfer(File f, HttpServletResponse response) throws IOException {
+        response.setContentLength((int)f.length());
+
+        FileInputStream in = new FileInputStream(f);
+        try {
+            FileChannel source = in.getChannel();
+            WritableByteChannel target = Channels.newChannel(response.getOutputStream());
+            long position = 0;
+            long size = source.size();
+            while (position < size) {
+                position += source.transferTo(position, size - position, target);
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Gets the number of bytes currently in the store.
+     *
+     * @return The number of bytes currently in the store.
+     */
+    public synchronized long getCurrentBytes() {
+        return currentBytes;
+    }
+
+    /**
+     * Gets the byte budget.
+     *
+     * @return The byte budget.
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * Evicts least recently used variants until the given number of bytes can
+     * be added without exceeding the budget.
+     *
+     * @param incomingBytes The number of bytes about to be added.
+     */
+    private void evict(long incomingBytes) {
+        Iterator<Map.Entry<String, Entry>> i = entries.entrySet().iterator();
+        while (currentBytes + incomingBytes > maxBytes && i.hasNext()) {
+            Entry e = i.next().getValue();
+            currentBytes -= e.bytes;
+            e.file.delete();
+            i.remove();
+        }
+    }
+
+    /**
+     * Picks up any variants already present in the store directory, using the
+     * files' last modified dates to approximate the access order.
+     */
+    private synchronized void load() {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            return;
+        }
+        List<File> stored = new ArrayList<File>(Arrays.asList(files));
+        Collections.sort(stored, new Comparator<File>() {
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File f : stored) {
+            String name = f.getName();
+            if (name.endsWith(TEMP_SUFFIX)) {
+                // Leftover from an interrupted write
+                f.delete();
+                continue;
+            }
+            int extIndex = name.indexOf('.');
+            if (f.isFile() && extIndex > 0) {
+                long bytes = f.length();
+                entries.put(name.substring(0, extIndex), new Entry(f, bytes));
+                currentBytes += bytes;
+            }
+        }
+        evict(0);
+    }
+
+    /**
+     * Gets the file extension of the given file name, e.g. "jpg".
+     *
+     * @param fileName The file name.
+     * @return The file extension, or "bin" if none.
+     */
+    protected static String getExtension(String fileName) {
+        int i = fileName.lastIndexOf('.');
+        return i > -1 && i < fileName.length() - 1 ? fileName.substring(i + 1) : "bin";
+    }
+
+    /**
+     * Creates the key for a scaled variant, based on the given content digest
+     * and scale parameters.
+     *
+     * @param contentDigest The content digest.
+     * @param scaleParams The scale parameters.
+     * @return The key.
+     */
+    private static String createKey(String contentDigest, String scaleParams) {
+        try {
+            return digest((contentDigest + "|" + scaleParams).getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e.getMessage());
+        }
+    }
+
+    /**
+     * Creates a SHA-1 digest of the given bytes.
+     *
+     * @param data The bytes.
+     * @return The digest, as a hex string.
+     */
+    protected static String digest(byte[] data) {
+        try {
+            byte[] hash = MessageDigest.getInstance("SHA-1").digest(data);
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(Character.forDigit((b >> 4) & 0xF, 16));
+                sb.append(Character.forDigit(b & 0xF, 16));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-1 not available: " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,246 @@
+package no.npolar.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Lightweight view of the attributes of an HTML/XML start tag.
+ * <p>
+ * The tag is scanned once, and only the start and end index of each
+ * attribute name and value are recorded - no substrings are created until a
+ * name or value is actually requested. Lookups by name compare characters in
+ * place.
+ * <p>
+ * Double-quoted, single-quoted, unquoted and valueless (boolean) attributes
+ * are supported. Valueless attributes have an empty value. Character
+ * references in values are not decoded.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see CmsAgent#getTagAttributesAsMap(java.lang.String)
+ */
+public final class TagAttributes {
+    /** The number of indexes recorded per attribute. */
+    private static final int SLOTS = 4;
+
+    /** The tag. */
+    private final CharSequence tag;
+    /** Per attribute: name start, name end, value start, value end. */
+    private int[] bounds = new int[SLOTS * 4];
+    /** The number of attributes. */
+    private int size = 0;
+    /** The index following the start tag's closing "&gt;", or -1 if the tag is not closed. */
+    private int end = -1;
+
+    /**
+     * Creates a new view of the attributes of the given tag.
+     *
+     * @param tag The tag, starting with "&lt;" (leading whitespace is allowed). Any content following the start tag is ignored.
+     * @throws IllegalArgumentException If the given string does not start with a tag.
+     * @see #parse(java.lang.CharSequence)
+     */
+    private TagAttributes(CharSequence tag) throws IllegalArgumentException {
+        this.tag = tag;
+        int len = tag.length();
+        int i = 0;
+        while (i < len && Character.isWhitespace(tag.charAt(i))) {
+            i++;
+        }
+        if (i >= len || tag.charAt(i) != '<') {
+            throw new IllegalArgumentException("Argument string was not a well-formed tag, required character '<' was missing.");
+        }
+        i++;
+        // Skip the tag name
+        while (i < len && isNameChar(tag.charAt(i))) {
+            i++;
+        }
+        while (i < len) {
+            char c = tag.charAt(i);
+            if (c == '>') {
+                end = i + 1;
+                return;
+            }
+            if (!isNameChar(c)) {
+                i++; // Whitespace, "/" etc.
+                continue;
+            }
+            int nameStart = i;
+            while (i < len && isNameChar(tag.charAt(i))) {
+                i++;
+            }
+            int nameEnd = i;
+            while (i < len && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            if (i >= len || tag.charAt(i) != '=') {
+                add(nameStart, nameEnd, nameEnd, nameEnd); // Valueless
+                continue;
+            }
+            i++;
+            while (i < len && Character.isWhitespace(tag.charAt(i))) {
+                i++;
+            }
+            if (i < len && (tag.charAt(i) == '"' || tag.charAt(i) == '\'')) {
+                char quote = tag.charAt(i);
+                int valueStart = ++i;
+                while (i < len && tag.charAt(i) != quote) {
+                    i++;
+                }
+                add(nameStart, nameEnd, valueStart, i);
+                i++;
+            } else {
+                int valueStart = i;
+                while (i < len && !Character.isWhitespace(tag.charAt(i)) && tag.charAt(i) != '>') {
+                    i++;
+                }
+                add(nameStart, nameEnd, valueStart, i);
+            }
+        }
+    }
+
+    /**
+     * Parses the attributes of the given tag.
+     *
+     * @param tag The tag, starting with "&lt;" (leading whitespace is allowed). Any content following the start tag is ignored.
+     * @return A view of the attributes of the given tag.
+     * @throws IllegalArgumentException If the given string does not start with a tag.
+     */
+    public static TagAttributes parse(CharSequence tag) throws IllegalArgumentException {
+        return new TagAttributes(tag);
+    }
+
+    /**
+     * Gets the number of attributes.
+     *
+     * @return The number of attributes.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets the index following the start tag's closing "&gt;".
+     *
+     * @return The index following the start tag's closing "&gt;", or -1 if the start tag is not closed.
+     */
+    public int getEnd() {
+        return end;
+    }
+
+    /**
+     * Gets the name of the attribute at the given position.
+     *
+     * @param index The attribute's position.
+     * @return The name of the attribute at the given position.
+     */
+    public String getName(int index) {
+        return tag.subSequence(bounds[index * SLOTS], bounds[index * SLOTS + 1]).toString();
+    }
+
+    /**
+     * Gets the value of the attribute at the given position.
+     *
+     * @param index The attribute's position.
+     * @return The value of the attribute at the given position (empty for valueless attributes).
+     */
+    public String getValue(int index) {
+        return tag.subSequence(bounds[index * SLOTS + 2], bounds[index * SLOTS + 3]).toString();
+    }
+
+    /**
+     * Gets the position of the (first) attribute with the given name.
+     *
+     * @param name The attribute name (case-insensitive).
+     * @return The position of the attribute with the given name, or -1 if there is no such attribute.
+     */
+    public int indexOf(String name) {
+        for (int a = 0; a < size; a++) {
+            int start = bounds[a * SLOTS];
+            if (bounds[a * SLOTS + 1] - start != name.length()) {
+                continue;
+            }
+            int i = 0;
+            while (i < name.length()
+                    && Character.toLowerCase(tag.charAt(start + i)) == Character.toLowerCase(name.charAt(i))) {
+                i++;
+            }
+            if (i == name.length()) {
+                return a;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Gets the value of the (first) attribute with the given name.
+     *
+     * @param name The attribute name (case-insensitive).
+     * @return The value of the attribute with the given name, or null if there is no such attribute.
+     */
+    public String get(String name) {
+        int index = indexOf(name);
+        return index < 0 ? null : getValue(index);
+    }
+
+    /**
+     * Gets all attributes as a map, in the order they appear in the tag.
+     *
+     * @return All attributes, keyed by name.
+     */
+    public Map<String, String> toMap() {
+        Map<String, String> map = new LinkedHashMap<String, String>(size * 2);
+        for (int a = 0; a < size; a++) {
+            String name = getName(a);
+            if (!map.containsKey(name)) {
+                map.put(name, getValue(a));
+            }
+        }
+        return map;
+    }
+
+    /**
+     * Gets the text following the given start tag, up to the next tag.
+     * <p>
+     * E.g. for &lt;a href="/link/path.html"&gt;link text&lt;/a&gt;, this is
+     * "link text".
+     *
+     * @param tag The tag, followed by its content.
+     * @return The text following the start tag, up to the next tag.
+     * @throws IllegalArgumentException If the given string does not start with a closed tag.
+     */
+    public static String getText(CharSequence tag) throws IllegalArgumentException {
+        int start = parse(tag).getEnd();
+        if (start < 0) {
+            throw new IllegalArgumentException("Argument string was not a well-formed tag, required character '>' was missing.");
+        }
+        int i = start;
+        while (i < tag.length() && tag.charAt(i) != '<') {
+            i++;
+        }
+        return tag.subSequence(start, i).toString();
+    }
+
+    /**
+     * Records an attribute.
+     */
+    private void add(int nameStart, int nameEnd, int valueStart, int valueEnd) {
+        if ((size + 1) * SLOTS > bounds.length) {
+            int[] grown = new int[bounds.length * 2];
+            System.arraycopy(bounds, 0, grown, 0, bounds.length);
+            bounds = grown;
+        }
+        int i = size * SLOTS;
+        bounds[i] = nameStart;
+        bounds[i + 1] = nameEnd;
+        bounds[i + 2] = valueStart;
+        bounds[i + 3] = valueEnd;
+        size++;
+    }
+
+    /**
+     * Determines whether or not the given character can be part of a tag or
+     * attribute name.
+     */
+    private static boolean isNameChar(char c) {
+        return !Character.isWhitespace(c) && c != '=' && c != '>' && c != '/' && c != '"' && c != '\'' && c != '<';
+    }
+}
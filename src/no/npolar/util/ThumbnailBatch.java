@@ -0,0 +1,158 @@
+package no.npolar.util;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import no.npolar.util.exception.PublishException;
+import org.opencms.db.CmsPublishList;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.main.CmsException;
+import org.opencms.main.OpenCms;
+import org.opencms.report.CmsLogReport;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Collects the VFS writes that follow thumbnail creation, so they can be
+ * done in bulk: one lock window per original image (for all its relations),
+ * and a single publish job for all resources that should be published.
+ * <p>
+ * Usage: pass a batch to
+ * {@link CmsImageProcessor#generateThumbnail(org.opencms.file.CmsObject, java.lang.String, java.lang.String, no.npolar.util.ThumbnailBatch)}
+ * for each thumbnail, then {@link #commit(org.opencms.file.CmsObject)} the
+ * batch once.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ThumbnailBatch {
+    /** The resources to publish, in insertion order. */
+    private final List<CmsResource> publishResources = new ArrayList<CmsResource>();
+    /** The relations to add, grouped by source structure ID. */
+    private final Map<CmsUUID, List<Relation>> relations = new LinkedHashMap<CmsUUID, List<Relation>>();
+
+    /**
+     * A relation to add.
+     */
+    private static class Relation {
+        final CmsResource source;
+        final CmsResource target;
+        final String type;
+
+        Relation(CmsResource source, CmsResource target, String type) {
+            this.source = source;
+            this.target = target;
+            this.type = type;
+        }
+    }
+
+    /**
+     * Adds the given resource to the list of resources to publish.
+     *
+     * @param resource The resource to publish.
+     */
+    public void addPublish(CmsResource resource) {
+        if (!publishResources.contains(resource)) {
+            publishResources.add(resource);
+        }
+    }
+
+    /**
+     * Adds a relation to create.
+     *
+     * @param source The relation source, typically the original image.
+     * @param target The relation target, typically the thumbnail.
+     * @param relationType The relation type name.
+     */
+    public void addRelation(CmsResource source, CmsResource target, String relationType) {
+        List<Relation> sourceRelations = relations.get(source.getStructureId());
+        if (sourceRelations == null) {
+            sourceRelations = new ArrayList<Relation>();
+            relations.put(source.getStructureId(), sourceRelations);
+        }
+        sourceRelations.add(new Relation(source, target, relationType));
+    }
+
+    /**
+     * Gets whether or not this batch is empty.
+     *
+     * @return True if there is nothing to commit, false if not.
+     */
+    public boolean isEmpty() {
+        return publishResources.isEmpty() && relations.isEmpty();
+    }
+
+    /**
+     * Writes all collected relations, then publishes all collected resources
+     * as a single publish job.
+     * <p>
+     * The batch is empty afterwards.
+     *
+     * @param cmso An initialized CmsObject, with permissions to lock, write and publish.
+     * @return The ID of the publish job, or null if there was nothing to publish.
+     * @throws CmsException If writing the relations fails.
+     * @throws PublishException If publishing fails.
+     */
+    public CmsUUID commit(CmsObject cmso) throws CmsException, PublishException {
+        try {
+            Iterator<List<Relation>> iSources = relations.values().iterator();
+            while (iSources.hasNext()) {
+                addRelations(cmso, iSources.next());
+            }
+
+            if (publishResources.isEmpty()) {
+                return null;
+            }
+            try {
+                CmsPublishList publishList = OpenCms.getPublishManager().getPublishList(cmso, publishResources, false);
+                return OpenCms.getPublishManager().publishProject(cmso,
+                        new CmsLogReport(Locale.ENGLISH, ThumbnailBatch.class),
+                        publishList);
+            } catch (Exception e) {
+                throw new PublishException("Could not publish " + publishResources.size() + " resource(s) created along with thumbnails: " + e.getMessage());
+            }
+        } finally {
+            relations.clear();
+            publishResources.clear();
+        }
+    }
+
+    /**
+     * Adds the given relations, which all have the same source, inside a
+     * single lock window on the source.
+     *
+     * @param cmso An initialized CmsObject.
+     * @param sourceRelations The relations.
+     * @throws CmsException If locking or writing fails.
+     */
+    private void addRelations(CmsObject cmso, List<Relation> sourceRelations) throws CmsException {
+        String sourcePath = cmso.getSitePath(sourceRelations.get(0).source);
+        if (cmso.getLock(sourcePath).isNullLock()) {
+            cmso.lockResource(sourcePath);
+        } else {
+            throw new NullPointerException("Unable to set lock on resource '" + sourcePath + "'.");
+        }
+        try {
+            Iterator<Relation> i = sourceRelations.iterator();
+            while (i.hasNext()) {
+                Relation relation = i.next();
+                String targetPath = cmso.getSitePath(relation.target);
+                try {
+                    cmso.addRelationToResource(sourcePath, targetPath, relation.type);
+                } catch (CmsException cmse) {
+                    throw new CmsException(Messages.get().container(Messages.ERR_ADD_RELATION_FAILED_4,
+                            new Object[] { relation.type, sourcePath, targetPath, cmse.getMessage() }));
+                }
+                if (CmsImageProcessor.RELATION_TYPE_SCALED_IMAGE_VERSION_NAME.equals(relation.type)) {
+                    ThumbnailRelationIndex.add(relation.source.getStructureId(), relation.target.getStructureId());
+                }
+            }
+        } finally {
+            if (!cmso.getLock(sourcePath).isUnlocked()) {
+                cmso.unlockResource(sourcePath);
+            }
+        }
+    }
+}
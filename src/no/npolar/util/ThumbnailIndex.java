@@ -0,0 +1,113 @@
+package no.npolar.util;
+
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.main.CmsException;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Index of created thumbnails, keyed by a hash of the source image's content
+ * plus the scale parameters.
+ * <p>
+ * When the same image exists in several galleries, each copy produces
+ * identical thumbnails. Using this index, the thumbnail bytes are scaled
+ * only once: subsequent thumbnails reuse the content of the first one,
+ * without decoding or encoding anything.
+ * <p>
+ * The index itself holds no image data, only the structure ID and date last
+ * modified of each thumbnail. An entry is discarded when its thumbnail no
+ * longer exists or has been modified.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ * @see ScaledImageStore#getContentDigest(org.opencms.file.CmsObject, org.opencms.file.CmsResource)
+ */
+public class ThumbnailIndex {
+    /** The max. number of entries in the index. */
+    private static final int MAX_ENTRIES = 5000;
+    /** The index. */
+    private static final LruCache<String, Entry> INDEX = new LruCache<String, Entry>(MAX_ENTRIES);
+
+    /**
+     * An index entry, identifying a specific version of a thumbnail.
+     */
+    private static class Entry {
+        final CmsUUID structureId;
+        final long dateLastModified;
+
+        Entry(CmsUUID structureId, long dateLastModified) {
+            this.structureId = structureId;
+            this.dateLastModified = dateLastModified;
+        }
+    }
+
+    /**
+     * Creates the index key for a thumbnail of the given image, produced by
+     * the given processor.
+     *
+     * @param cmso An initialized CmsObject, used to read the image content if necessary.
+     * @param image The source image.
+     * @param processor The processor, holding the scale parameters.
+     * @return The index key.
+     * @throws CmsException If the image content cannot be read.
+     */
+    public static String createKey(CmsObject cmso, CmsResource image, CmsImageProcessor processor) throws CmsException {
+        return ScaledImageStore.createKey(cmso, image, getVariantParams(processor));
+    }
+
+    /**
+     * Gets the content of an existing thumbnail with the given key.
+     *
+     * @param cmso An initialized CmsObject, used to read the thumbnail.
+     * @param key The index key.
+     * @return The content of an existing thumbnail with the given key, or null if none.
+     */
+    public static byte[] get(CmsObject cmso, String key) {
+        Entry entry = INDEX.get(key);
+        if (entry == null) {
+            return null;
+        }
+        try {
+            CmsResource thumbnail = cmso.readResource(entry.structureId, CmsResourceFilter.DEFAULT_FILES);
+            if (thumbnail.getDateLastModified() == entry.dateLastModified) {
+                return cmso.readFile(thumbnail).getContents();
+            }
+        } catch (Exception e) {
+            // Deleted, or not readable
+        }
+        INDEX.remove(key);
+        return null;
+    }
+
+    /**
+     * Adds the given thumbnail to the index.
+     *
+     * @param key The index key.
+     * @param thumbnail The thumbnail.
+     */
+    public static void put(String key, CmsResource thumbnail) {
+        if (key != null && thumbnail != null) {
+            INDEX.put(key, new Entry(thumbnail.getStructureId(), thumbnail.getDateLastModified()));
+        }
+    }
+
+    /**
+     * Removes all entries from the index.
+     */
+    public static void clear() {
+        INDEX.clear();
+    }
+
+    /**
+     * Gets the parameters that, together with the source image's content,
+     * fully determine the thumbnail bytes produced by the given processor.
+     *
+     * @param processor The processor.
+     * @return The variant parameters.
+     */
+    private static String getVariantParams(CmsImageProcessor processor) {
+        return processor.toString()
+                + ",par:" + processor.isParallelResampling()
+                + ",opt:" + processor.isOptimizeEncoding();
+    }
+}
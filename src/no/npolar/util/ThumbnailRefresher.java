@@ -0,0 +1,246 @@
+package no.npolar.util;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.file.types.CmsResourceTypeImage;
+import org.opencms.module.CmsModule;
+import org.opencms.util.CmsUUID;
+
+/**
+ * Regenerates stale thumbnails when an image's content is modified.
+ * <p>
+ * Modification events are debounced per image: each event (re-)starts a
+ * short delay, and the image is refreshed only when the delay passes without
+ * further events. A burst of saves thus results in a single refresh.
+ * <p>
+ * A refresh deletes the image's obsolete thumbnails (found via the
+ * {@link CmsImageProcessor#RELATION_TYPE_SCALED_IMAGE_VERSION_NAME} relations)
+ * and creates new ones, with all relation writes and publishing done as one
+ * {@link ThumbnailBatch}. Images whose thumbnails are all newer than the
+ * image content are left alone, so metadata-only modifications (like adding
+ * relations) do not trigger a refresh.
+ * <p>
+ * The background job never steals or removes another lock: if the image or
+ * any of its thumbnails is locked (typically by the editor who just saved the
+ * image), the refresh is retried later (up to {@link #MAX_ATTEMPTS} times).
+ * A new modification event replaces any pending retry.
+ * <p>
+ * The delay can be set using the module parameter {@link #MODULE_PARAM_DELAY}.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ThumbnailRefresher {
+    /** Module parameter name for the debounce delay, in milliseconds. */
+    public static final String MODULE_PARAM_DELAY = "thumbnails.refreshdelay";
+    /** The default debounce delay, in milliseconds. */
+    public static final long DEFAULT_DELAY = 5000;
+    /** The max. number of attempts at refreshing a (locked) image. */
+    public static final int MAX_ATTEMPTS = 20;
+    /** The delay before retrying a refresh, in milliseconds. */
+    public static final long RETRY_DELAY = 60000;
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ThumbnailRefresher.class);
+
+    /** Pending refreshes, keyed by image structure ID. */
+    private static final ConcurrentHashMap<CmsUUID, ScheduledFuture<?>> pending = new ConcurrentHashMap<CmsUUID, ScheduledFuture<?>>();
+
+    /** The debounce delay, in milliseconds. */
+    private static long delay = DEFAULT_DELAY;
+    /** Executes refreshes. */
+    private static ScheduledExecutorService executor = null;
+
+    /**
+     * Sets the debounce delay, using any value found in the given module's
+     * parameters.
+     *
+     * @param module The module.
+     */
+    public static void configure(CmsModule module) {
+        try {
+            delay = Long.parseLong(module.getParameter(MODULE_PARAM_DELAY, String.valueOf(DEFAULT_DELAY)).trim());
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Invalid value for module parameter '" + MODULE_PARAM_DELAY + "', using default.", e);
+            }
+            delay = DEFAULT_DELAY;
+        }
+    }
+
+    /**
+     * Schedules a refresh of the given image's thumbnails, replacing any
+     * refresh already pending for the image.
+     *
+     * @param image The modified image.
+     */
+    public static synchronized void schedule(CmsResource image) {
+        if (image.getTypeId() != CmsResourceTypeImage.getStaticTypeId()) {
+            return;
+        }
+        ScheduledFuture<?> previous = pending.put(image.getStructureId(), schedule(image.getStructureId(), image.getRootPath(), 1, delay));
+        if (previous != null) {
+            previous.cancel(false);
+        }
+    }
+
+    /**
+     * Schedules an attempt at refreshing the thumbnails of the image with the
+     * given ID.
+     * <p>
+     * If the attempt finds the image or its thumbnails locked, the next
+     * attempt is scheduled, unless a newer event has replaced the attempt in
+     * the meantime. Callers must hold the class lock, and register the
+     * returned attempt in {@link #pending}.
+     *
+     * @param id The image's structure ID.
+     * @param rootPath The image's root path (used in log messages).
+     * @param attempt The attempt number, starting at 1.
+     * @param attemptDelay The delay before running the attempt, in milliseconds.
+     * @return The scheduled attempt.
+     */
+    private static ScheduledFuture<?> schedule(final CmsUUID id, final String rootPath, final int attempt, long attemptDelay) {
+        final ScheduledFuture<?>[] self = new ScheduledFuture<?>[1];
+        self[0] = getExecutor().schedule(new Runnable() {
+            public void run() {
+                boolean done = true;
+                try {
+                    done = refresh(id);
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to refresh thumbnails for '" + rootPath + "'.", e);
+                    }
+                }
+                synchronized (ThumbnailRefresher.class) {
+                    if (pending.get(id) != self[0]) {
+                        return; // Replaced by a newer event
+                    }
+                    if (done) {
+                        pending.remove(id);
+                    } else if (attempt < MAX_ATTEMPTS) {
+                        pending.put(id, schedule(id, rootPath, attempt + 1, RETRY_DELAY));
+                    } else {
+                        pending.remove(id);
+                        if (LOG.isWarnEnabled()) {
+                            LOG.warn("Gave up refreshing thumbnails for '" + rootPath + "', as it remained locked.");
+                        }
+                    }
+                }
+            }
+        }, attemptDelay, TimeUnit.MILLISECONDS);
+        return self[0];
+    }
+
+    /**
+     * Refreshes the thumbnails of the image with the given ID, if they are
+     * stale.
+     * <p>
+     * Nothing is done if the image or any of its thumbnails is locked. Only
+     * locks set by this method are released by it.
+     *
+     * @param id The image's structure ID.
+     * @return True if the refresh was done (or not needed), false if it must be retried because of a lock.
+     * @throws Exception If anything goes wrong.
+     */
+    protected static boolean refresh(CmsUUID id) throws Exception {
+        CmsObject cmso = Actions.initEventCmsObject();
+        CmsResource image = null;
+        try {
+            image = cmso.readResource(id, CmsResourceFilter.DEFAULT_FILES);
+        } catch (Exception e) {
+            return true; // Deleted in the meantime
+        }
+        List<CmsResource> thumbnails = Actions.readImageThumbnails(cmso, image);
+        if (thumbnails.isEmpty() || !isStale(image, thumbnails)) {
+            return true;
+        }
+
+        // Someone (typically the editor) is still working on the image or its thumbnails: try again later
+        if (!cmso.getLock(image).isUnlocked()) {
+            return false;
+        }
+        Iterator<CmsResource> i = thumbnails.iterator();
+        while (i.hasNext()) {
+            if (!cmso.getLock(i.next()).isUnlocked()) {
+                return false;
+            }
+        }
+
+        // Delete the obsolete thumbnails (this also removes the relations)
+        i = thumbnails.iterator();
+        while (i.hasNext()) {
+            String thumbnailPath = cmso.getSitePath(i.next());
+            cmso.lockResource(thumbnailPath);
+            cmso.deleteResource(thumbnailPath, CmsResource.DELETE_PRESERVE_SIBLINGS);
+        }
+
+        ThumbnailBatch batch = new ThumbnailBatch();
+        try {
+            Actions.createImageProcessor().generateAllThumbnails(cmso, image, batch);
+        } finally {
+            batch.commit(cmso);
+        }
+        ImagePlaceholder.schedule(cmso, image);
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Refreshed " + thumbnails.size() + " stale thumbnail(s) for '" + image.getRootPath() + "'.");
+        }
+        return true;
+    }
+
+    /**
+     * Determines whether or not any of the given thumbnails is older than
+     * the given image's content.
+     *
+     * @param image The image.
+     * @param thumbnails The image's thumbnails.
+     * @return True if any of the given thumbnails is stale, false if not.
+     */
+    protected static boolean isStale(CmsResource image, List<CmsResource> thumbnails) {
+        Iterator<CmsResource> i = thumbnails.iterator();
+        while (i.hasNext()) {
+            if (i.next().getDateLastModified() < image.getDateContent()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Gets the executor, creating it if necessary.
+     *
+     * @return The executor.
+     */
+    private static synchronized ScheduledExecutorService getExecutor() {
+        if (executor == null) {
+            executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "npolar-thumbnail-refresher");
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+        return executor;
+    }
+
+    /**
+     * Cancels all pending refreshes, and shuts down the executor, if running.
+     */
+    public static synchronized void shutDown() {
+        if (executor != null) {
+            executor.shutdownNow();
+            executor = null;
+        }
+        pending.clear();
+    }
+}
@@ -0,0 +1,238 @@
+package no.npolar.util;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.file.CmsObject;
+import org.opencms.file.CmsResource;
+import org.opencms.file.CmsResourceFilter;
+import org.opencms.file.types.CmsResourceTypeImage;
+import org.opencms.relations.CmsRelation;
+import org.opencms.relations.CmsRelationFilter;
+import org.opencms.relations.CmsRelationType;
+import org.opencms.util.CmsUUID;
+
+/**
+ * In-memory, bidirectional index of the
+ * {@link CmsImageProcessor#RELATION_TYPE_SCALED_IMAGE_VERSION_NAME} relations
+ * between original images and their thumbnails (in the offline project).
+ * <p>
+ * The index is built in the background when the module is initialized, and
+ * kept up to date as thumbnail relations are written and resources are
+ * deleted. Until it is ready, {@link #isReady()} returns false, and callers
+ * should fall back to reading the relations from the VFS.
+ * <p>
+ * Only structure IDs are held: each original maps to an array of thumbnail
+ * IDs, and each thumbnail maps to an array of original IDs (normally one).
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class ThumbnailRelationIndex {
+    /** Empty ID array. */
+    private static final CmsUUID[] NONE = new CmsUUID[0];
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(ThumbnailRelationIndex.class);
+
+    /** Thumbnail IDs, keyed by original ID. */
+    private static final Map<CmsUUID, CmsUUID[]> thumbnails = new HashMap<CmsUUID, CmsUUID[]>();
+    /** Original IDs, keyed by thumbnail ID. */
+    private static final Map<CmsUUID, CmsUUID[]> originals = new HashMap<CmsUUID, CmsUUID[]>();
+    /** Flag indicating whether or not the index is ready for use. */
+    private static volatile boolean ready = false;
+    /** Incremented each time the index is cleared, to detect concurrent clearing during a build. */
+    private static int generation = 0;
+
+    /**
+     * Builds the index in a background thread.
+     */
+    public static void buildAsync() {
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    build(Actions.initEventCmsObject());
+                } catch (Exception e) {
+                    if (LOG.isErrorEnabled()) {
+                        LOG.error("Unable to build the thumbnail relation index.", e);
+                    }
+                }
+            }
+        }, "npolar-thumbnail-relation-index");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        t.start();
+    }
+
+    /**
+     * Builds the index, by reading the thumbnail relations of all images.
+     *
+     * @param cmso An initialized CmsObject, in the offline project and the root site.
+     * @throws Exception If reading the images fails.
+     */
+    public static void build(CmsObject cmso) throws Exception {
+        int buildGeneration;
+        synchronized (ThumbnailRelationIndex.class) {
+            buildGeneration = generation;
+        }
+        long start = System.currentTimeMillis();
+        CmsRelationFilter filter = CmsRelationFilter.TARGETS.filterType(
+                CmsRelationType.valueOf(CmsImageProcessor.RELATION_TYPE_SCALED_IMAGE_VERSION_NAME));
+        List<CmsResource> images = cmso.readResources("/",
+                CmsResourceFilter.requireType(CmsResourceTypeImage.getStaticTypeId()),
+                true);
+
+        Map<CmsUUID, CmsUUID[]> built = new HashMap<CmsUUID, CmsUUID[]>();
+        Iterator<CmsResource> iImages = images.iterator();
+        while (iImages.hasNext()) {
+            CmsResource image = iImages.next();
+            List<CmsRelation> relations = cmso.getRelationsForResource(image, filter);
+            if (relations.isEmpty()) {
+                continue;
+            }
+            CmsUUID[] ids = new CmsUUID[relations.size()];
+            for (int i = 0; i < ids.length; i++) {
+                ids[i] = relations.get(i).getTargetId();
+            }
+            built.put(image.getStructureId(), ids);
+        }
+
+        synchronized (ThumbnailRelationIndex.class) {
+            if (generation != buildGeneration) {
+                return; // Cleared while building, this build may be outdated
+            }
+            Iterator<Map.Entry<CmsUUID, CmsUUID[]>> iBuilt = built.entrySet().iterator();
+            while (iBuilt.hasNext()) {
+                Map.Entry<CmsUUID, CmsUUID[]> entry = iBuilt.next();
+                CmsUUID[] ids = entry.getValue();
+                for (int i = 0; i < ids.length; i++) {
+                    add(entry.getKey(), ids[i]);
+                }
+            }
+            ready = true;
+        }
+        if (LOG.isInfoEnabled()) {
+            LOG.info("Built the thumbnail relation index (" + built.size() + " images with thumbnails) in "
+                    + (System.currentTimeMillis() - start) + " ms.");
+        }
+    }
+
+    /**
+     * Gets whether or not the index is ready for use.
+     *
+     * @return True if the index is ready for use, false if not.
+     */
+    public static boolean isReady() {
+        return ready;
+    }
+
+    /**
+     * Adds a relation to the index.
+     *
+     * @param originalId The original image's structure ID.
+     * @param thumbnailId The thumbnail's structure ID.
+     */
+    public static synchronized void add(CmsUUID originalId, CmsUUID thumbnailId) {
+        thumbnails.put(originalId, append(thumbnails.get(originalId), thumbnailId));
+        originals.put(thumbnailId, append(originals.get(thumbnailId), originalId));
+    }
+
+    /**
+     * Removes the given resource from the index, along with all its
+     * relations. Typically invoked when the resource is deleted.
+     *
+     * @param id The resource's structure ID.
+     */
+    public static synchronized void remove(CmsUUID id) {
+        CmsUUID[] thumbnailIds = thumbnails.remove(id);
+        if (thumbnailIds != null) {
+            for (int i = 0; i < thumbnailIds.length; i++) {
+                removeFrom(originals, thumbnailIds[i], id);
+            }
+        }
+        CmsUUID[] originalIds = originals.remove(id);
+        if (originalIds != null) {
+            for (int i = 0; i < originalIds.length; i++) {
+                removeFrom(thumbnails, originalIds[i], id);
+            }
+        }
+    }
+
+    /**
+     * Clears the index, and marks it as not ready. Use {@link #buildAsync()}
+     * to rebuild it.
+     */
+    public static synchronized void clear() {
+        thumbnails.clear();
+        originals.clear();
+        ready = false;
+        generation++;
+    }
+
+    /**
+     * Gets whether or not the resource with the given ID is a thumbnail.
+     *
+     * @param id The resource's structure ID.
+     * @return True if the resource with the given ID is a thumbnail, false if not.
+     */
+    public static synchronized boolean isThumbnail(CmsUUID id) {
+        return originals.containsKey(id);
+    }
+
+    /**
+     * Gets the IDs of the thumbnails of the image with the given ID.
+     *
+     * @param id The image's structure ID.
+     * @return The IDs of the thumbnails of the image with the given ID, or an empty array if none.
+     */
+    public static synchronized CmsUUID[] getThumbnailIds(CmsUUID id) {
+        CmsUUID[] ids = thumbnails.get(id);
+        return ids == null ? NONE : ids.clone();
+    }
+
+    /**
+     * Returns a copy of the given array, with the given ID appended (unless
+     * the array already contains it).
+     */
+    private static CmsUUID[] append(CmsUUID[] ids, CmsUUID id) {
+        if (ids == null) {
+            return new CmsUUID[] { id };
+        }
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i].equals(id)) {
+                return ids;
+            }
+        }
+        CmsUUID[] appended = new CmsUUID[ids.length + 1];
+        System.arraycopy(ids, 0, appended, 0, ids.length);
+        appended[ids.length] = id;
+        return appended;
+    }
+
+    /**
+     * Removes the given value ID from the array mapped to the given key ID,
+     * removing the mapping altogether if the array becomes empty.
+     */
+    private static void removeFrom(Map<CmsUUID, CmsUUID[]> map, CmsUUID key, CmsUUID value) {
+        CmsUUID[] ids = map.get(key);
+        if (ids == null) {
+            return;
+        }
+        int n = 0;
+        CmsUUID[] kept = new CmsUUID[ids.length];
+        for (int i = 0; i < ids.length; i++) {
+            if (!ids[i].equals(value)) {
+                kept[n++] = ids[i];
+            }
+        }
+        if (n == 0) {
+            map.remove(key);
+        } else if (n < ids.length) {
+            CmsUUID[] trimmed = new CmsUUID[n];
+            System.arraycopy(kept, 0, trimmed, 0, n);
+            map.put(key, trimmed);
+        }
+    }
+}
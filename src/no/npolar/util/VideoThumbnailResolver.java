@@ -0,0 +1,519 @@
+package no.npolar.util;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.opencms.json.JSONArray;
+import org.opencms.main.OpenCms;
+import org.opencms.module.CmsModule;
+import org.opencms.util.CmsRequestUtil;
+import org.opencms.util.CmsUriSplitter;
+
+/**
+ * Resolves video thumbnail URLs, without blocking the caller on remote
+ * lookups.
+ * <p>
+ * Thumbnails that require a remote lookup (e.g. Vimeo) are cached by video
+ * URL, in memory and in a local properties file (so the cache survives
+ * restarts). On a cache miss, null is returned immediately (or a
+ * placeholder, see {@link #resolveOrPlaceholder(java.lang.String)}), while
+ * the actual thumbnail is fetched in the background. Cached thumbnails older
+ * than the max. age are returned as-is, and refreshed in the background.
+ * <p>
+ * Remote lookups use connect and read timeouts, and failed lookups are not
+ * retried until the retry delay has passed.
+ * <p>
+ * Settings can be provided as module parameters, see the MODULE_PARAM_X
+ * members of this class.
+ *
+ * @author Paul-Inge Flakstad, Norwegian Polar Institute
+ */
+public class VideoThumbnailResolver {
+    /** Module parameter name for the cache file (absolute, or relative to WEB-INF). */
+    public static final String MODULE_PARAM_CACHE_FILE = "videothumbs.cachefile";
+    /** Module parameter name for the max. age of cached thumbnails (in milliseconds). */
+    public static final String MODULE_PARAM_MAX_AGE = "videothumbs.maxage";
+    /** Module parameter name for the placeholder image URL. */
+    public static final String MODULE_PARAM_PLACEHOLDER = "videothumbs.placeholder";
+    /** Module parameter name for the Vimeo API base URL. */
+    public static final String MODULE_PARAM_VIMEO_API = "videothumbs.vimeo.api";
+    /** Module parameter name for the connect and read timeout (in milliseconds). */
+    public static final String MODULE_PARAM_TIMEOUT = "videothumbs.timeout";
+
+    /** The default cache file, relative to WEB-INF. */
+    public static final String DEFAULT_CACHE_FILE = "npolar-videothumbs.properties";
+    /** The default max. age of cached thumbnails (1 week). */
+    public static final long DEFAULT_MAX_AGE = 1000L * 60 * 60 * 24 * 7;
+    /** The default placeholder: a transparent 1x1 pixel GIF. */
+    public static final String DEFAULT_PLACEHOLDER = "data:image/gif;base64,R0lGODlhAQABAIAAAAAAAP///yH5BAEAAAAALAAAAAABAAEAAAIBRAA7";
+    /** The default Vimeo API base URL. */
+    public static final String DEFAULT_VIMEO_API = "http://vimeo.com/api/v2/video/";
+    /** The default connect and read timeout (in milliseconds). */
+    public static final int DEFAULT_TIMEOUT = 3000;
+    /** The delay before retrying a failed lookup (5 minutes). */
+    public static final long RETRY_DELAY = 1000L * 60 * 5;
+
+    /** Separates the fetch time from the thumbnail URL in the cache file. */
+    private static final char VALUE_SEPARATOR = '|';
+
+    /** The logger. */
+    private static final Log LOG = LogFactory.getLog(VideoThumbnailResolver.class);
+
+    /** The shared instance. */
+    private static VideoThumbnailResolver instance = null;
+
+    /** The providers. */
+    private final List<I_VideoThumbnailProvider> providers;
+    /** The cache file, or null if the cache should not be persisted. */
+    private final File cacheFile;
+    /** The max. age of cached thumbnails. */
+    private final long maxAge;
+    /** The placeholder. */
+    private final String placeholder;
+    /** Cached thumbnails, keyed by video URL. */
+    private final Map<String, CachedThumbnail> cache = new ConcurrentHashMap<String, CachedThumbnail>();
+    /** Video URLs currently being fetched, mapped to the fetch start time. */
+    private final ConcurrentHashMap<String, Long> pending = new ConcurrentHashMap<String, Long>();
+    /** Video URLs of failed lookups, mapped to the failure time. */
+    private final Map<String, Long> failures = new ConcurrentHashMap<String, Long>();
+    /** Executes remote lookups. */
+    private final ExecutorService executor;
+
+    /**
+     * A cached thumbnail URL.
+     */
+    private static class CachedThumbnail {
+        final String thumbnailUrl;
+        final long fetched;
+        CachedThumbnail(String thumbnailUrl, long fetched) {
+            this.thumbnailUrl = thumbnailUrl;
+            this.fetched = fetched;
+        }
+    }
+
+    /**
+     * Creates a new resolver.
+     *
+     * @param providers The providers.
+     * @param cacheFile The cache file, or null if the cache should not be persisted.
+     * @param maxAge The max. age of cached thumbnails, in milliseconds.
+     * @param placeholder The placeholder, see {@link #resolveOrPlaceholder(java.lang.String)}.
+     */
+    public VideoThumbnailResolver(List<I_VideoThumbnailProvider> providers, File cacheFile, long maxAge, String placeholder) {
+        this.providers = new ArrayList<I_VideoThumbnailProvider>(providers);
+        this.cacheFile = cacheFile;
+        this.maxAge = maxAge;
+        this.placeholder = placeholder;
+        this.executor = Executors.newFixedThreadPool(2, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "npolar-video-thumbnails");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        load();
+    }
+
+    /**
+     * Gets the shared resolver, creating it using default settings if
+     * necessary.
+     *
+     * @return The shared resolver.
+     * @see #configure(org.opencms.module.CmsModule)
+     */
+    public static synchronized VideoThumbnailResolver getInstance() {
+        if (instance == null) {
+            instance = new VideoThumbnailResolver(
+                    getDefaultProviders(DEFAULT_VIMEO_API, DEFAULT_TIMEOUT),
+                    new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(DEFAULT_CACHE_FILE)),
+                    DEFAULT_MAX_AGE,
+                    DEFAULT_PLACEHOLDER
+            );
+        }
+        return instance;
+    }
+
+    /**
+     * (Re-)creates the shared resolver, using any settings found in the given
+     * module's parameters.
+     *
+     * @param module The module to read parameters from.
+     */
+    public static synchronized void configure(CmsModule module) {
+        String filePath = module.getParameter(MODULE_PARAM_CACHE_FILE, DEFAULT_CACHE_FILE);
+        File file = new File(filePath);
+        if (!file.isAbsolute()) {
+            file = new File(OpenCms.getSystemInfo().getAbsoluteRfsPathRelativeToWebInf(filePath));
+        }
+        long age = DEFAULT_MAX_AGE;
+        int timeout = DEFAULT_TIMEOUT;
+        try {
+            age = Long.parseLong(module.getParameter(MODULE_PARAM_MAX_AGE, String.valueOf(DEFAULT_MAX_AGE)).trim());
+            timeout = Integer.parseInt(module.getParameter(MODULE_PARAM_TIMEOUT, String.valueOf(DEFAULT_TIMEOUT)).trim());
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Invalid video thumbnail module parameter value, using defaults.", e);
+            }
+        }
+        if (instance != null) {
+            instance.shutDownExecutor();
+        }
+        instance = new VideoThumbnailResolver(
+                getDefaultProviders(module.getParameter(MODULE_PARAM_VIMEO_API, DEFAULT_VIMEO_API), timeout),
+                file,
+                age,
+                module.getParameter(MODULE_PARAM_PLACEHOLDER, DEFAULT_PLACEHOLDER)
+        );
+    }
+
+    /**
+     * Shuts down the shared resolver, if any.
+     */
+    public static synchronized void shutDown() {
+        if (instance != null) {
+            instance.shutDownExecutor();
+            instance = null;
+        }
+    }
+
+    /**
+     * Gets the default providers: YouTube and Vimeo.
+     *
+     * @param vimeoApiBase The Vimeo API base URL.
+     * @param timeout The connect and read timeout, in milliseconds.
+     * @return The default providers.
+     */
+    public static List<I_VideoThumbnailProvider> getDefaultProviders(String vimeoApiBase, int timeout) {
+        List<I_VideoThumbnailProvider> defaults = new ArrayList<I_VideoThumbnailProvider>(2);
+        defaults.add(new YouTubeProvider());
+        defaults.add(new VimeoProvider(vimeoApiBase, timeout));
+        return defaults;
+    }
+
+    /**
+     * Resolves the thumbnail URL for the given video URL, without blocking on
+     * remote lookups.
+     *
+     * @param videoUrl The video URL.
+     * @return The thumbnail URL, or null if it is not (yet) available, or if no provider handles the given video URL.
+     */
+    public String resolve(String videoUrl) {
+        I_VideoThumbnailProvider provider = getProvider(videoUrl);
+        if (provider == null) {
+            return null;
+        }
+        if (!provider.isRemote()) {
+            try {
+                return provider.getThumbnailUrl(videoUrl);
+            } catch (Exception e) {
+                return null;
+            }
+        }
+
+        CachedThumbnail cached = cache.get(videoUrl);
+        if (cached == null) {
+            fetch(provider, videoUrl);
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.fetched > maxAge) {
+            fetch(provider, videoUrl); // Refresh
+        }
+        return cached.thumbnailUrl;
+    }
+
+    /**
+     * Resolves the thumbnail URL for the given video URL, like
+     * {@link #resolve(java.lang.String)}, but returns the placeholder while
+     * the thumbnail is not yet available.
+     *
+     * @param videoUrl The video URL.
+     * @return The thumbnail URL, the placeholder (if the thumbnail is not yet available), or null if no provider handles the given video URL.
+     */
+    public String resolveOrPlaceholder(String videoUrl) {
+        String thumbnailUrl = resolve(videoUrl);
+        if (thumbnailUrl == null && getProvider(videoUrl) != null) {
+            return placeholder;
+        }
+        return thumbnailUrl;
+    }
+
+    /**
+     * Gets the placeholder.
+     *
+     * @return The placeholder.
+     */
+    public String getPlaceholder() {
+        return placeholder;
+    }
+
+    /**
+     * Gets the provider that handles the given video URL.
+     *
+     * @param videoUrl The video URL.
+     * @return The provider that handles the given video URL, or null if none.
+     */
+    public I_VideoThumbnailProvider getProvider(String videoUrl) {
+        if (videoUrl == null) {
+            return null;
+        }
+        Iterator<I_VideoThumbnailProvider> i = providers.iterator();
+        while (i.hasNext()) {
+            I_VideoThumbnailProvider provider = i.next();
+            if (provider.accepts(videoUrl)) {
+                return provider;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Fetches the thumbnail for the given video URL in the background, unless
+     * a fetch is already in progress or recently failed.
+     *
+     * @param provider The provider to use.
+     * @param videoUrl The video URL.
+     */
+    private void fetch(final I_VideoThumbnailProvider provider, final String videoUrl) {
+        Long failed = failures.get(videoUrl);
+        if (failed != null && System.currentTimeMillis() - failed.longValue() < RETRY_DELAY) {
+            return;
+        }
+        if (pending.putIfAbsent(videoUrl, Long.valueOf(System.currentTimeMillis())) != null) {
+            return; // Already in progress
+        }
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        String thumbnailUrl = provider.getThumbnailUrl(videoUrl);
+                        cache.put(videoUrl, new CachedThumbnail(thumbnailUrl, System.currentTimeMillis()));
+                        failures.remove(videoUrl);
+                        save();
+                    } catch (Exception e) {
+                        failures.put(videoUrl, Long.valueOf(System.currentTimeMillis()));
+                        if (LOG.isWarnEnabled()) {
+                            LOG.warn("Unable to resolve video thumbnail for '" + videoUrl + "': " + e.getMessage());
+                        }
+                    } finally {
+                        pending.remove(videoUrl);
+                    }
+                }
+            });
+        } catch (Exception e) {
+            // Rejected (shutting down)
+            pending.remove(videoUrl);
+        }
+    }
+
+    /**
+     * Loads cached thumbnails from the cache file, if any.
+     */
+    private void load() {
+        if (cacheFile == null || !cacheFile.exists()) {
+            return;
+        }
+        Properties p = new Properties();
+        InputStream in = null;
+        try {
+            in = new FileInputStream(cacheFile);
+            p.load(in);
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to load video thumbnail cache from '" + cacheFile.getAbsolutePath() + "'.", e);
+            }
+        } finally {
+            if (in != null) {
+                try { in.close(); } catch (Exception e) {}
+            }
+        }
+        Iterator<String> i = p.stringPropertyNames().iterator();
+        while (i.hasNext()) {
+            String videoUrl = i.next();
+            String value = p.getProperty(videoUrl);
+            int sep = value.indexOf(VALUE_SEPARATOR);
+            try {
+                cache.put(videoUrl, new CachedThumbnail(value.substring(sep + 1), Long.parseLong(value.substring(0, sep))));
+            } catch (Exception e) {
+                // Skip malformed entry
+            }
+        }
+    }
+
+    /**
+     * Saves the cached thumbnails to the cache file.
+     * <p>
+     * The file is written to a temporary file first, then moved into place.
+     */
+    private synchronized void save() {
+        if (cacheFile == null) {
+            return;
+        }
+        Properties p = new Properties();
+        Iterator<Map.Entry<String, CachedThumbnail>> i = cache.entrySet().iterator();
+        while (i.hasNext()) {
+            Map.Entry<String, CachedThumbnail> entry = i.next();
+            p.setProperty(entry.getKey(), entry.getValue().fetched + String.valueOf(VALUE_SEPARATOR) + entry.getValue().thumbnailUrl);
+        }
+        File temp = new File(cacheFile.getPath() + ".tmp");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            p.store(out, "Video thumbnail cache");
+            out.close();
+            out = null;
+            if (!temp.renameTo(cacheFile)) {
+                cacheFile.delete();
+                temp.renameTo(cacheFile);
+            }
+        } catch (Exception e) {
+            if (LOG.isErrorEnabled()) {
+                LOG.error("Unable to save video thumbnail cache to '" + cacheFile.getAbsolutePath() + "'.", e);
+            }
+        } finally {
+            if (out != null) {
+                try { out.close(); } catch (Exception e) {}
+            }
+        }
+    }
+
+    /**
+     * Shuts down this resolver's executor.
+     */
+    private void shutDownExecutor() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Resolves YouTube thumbnails directly from the video URL.
+     */
+    public static class YouTubeProvider implements I_VideoThumbnailProvider {
+        /** The thumbnail URL pattern. */
+        public static final String THUMBNAIL_URL_PATTERN = "http://img.youtube.com/vi/%(id)/0.jpg";
+
+        /**
+         * @see I_VideoThumbnailProvider#accepts(java.lang.String)
+         */
+        public boolean accepts(String videoUrl) {
+            return videoUrl.indexOf("youtube.com/") > -1;
+        }
+
+        /**
+         * @see I_VideoThumbnailProvider#isRemote()
+         */
+        public boolean isRemote() {
+            return false;
+        }
+
+        /**
+         * @see I_VideoThumbnailProvider#getThumbnailUrl(java.lang.String)
+         */
+        public String getThumbnailUrl(String videoUrl) {
+            String videoId = null;
+            try {
+                String videoUrlQueryPart = new CmsUriSplitter(videoUrl).getQuery();
+                Map ytUrlParts = CmsRequestUtil.createParameterMap(videoUrlQueryPart);
+                videoId = ((String[])(ytUrlParts.get("v")))[0];
+            } catch (Exception e) {
+                throw new NullPointerException("Error resolving video ID for '" + videoUrl + "': " + e.getMessage());
+            }
+            return THUMBNAIL_URL_PATTERN.replace("%(id)", videoId);
+        }
+    }
+
+    /**
+     * Resolves Vimeo thumbnails by reading the video metadata from the Vimeo
+     * API.
+     */
+    public static class VimeoProvider implements I_VideoThumbnailProvider {
+        /** The API base URL. */
+        private final String apiBase;
+        /** The connect and read timeout, in milliseconds. */
+        private final int timeout;
+
+        /**
+         * Creates a new provider.
+         *
+         * @param apiBase The API base URL, e.g. "http://vimeo.com/api/v2/video/".
+         * @param timeout The connect and read timeout, in milliseconds.
+         */
+        public VimeoProvider(String apiBase, int timeout) {
+            this.apiBase = apiBase.endsWith("/") ? apiBase : apiBase.concat("/");
+            this.timeout = timeout;
+        }
+
+        /**
+         * @see I_VideoThumbnailProvider#accepts(java.lang.String)
+         */
+        public boolean accepts(String videoUrl) {
+            return videoUrl.indexOf("vimeo.com/") > -1;
+        }
+
+        /**
+         * @see I_VideoThumbnailProvider#isRemote()
+         */
+        public boolean isRemote() {
+            return true;
+        }
+
+        /**
+         * @see I_VideoThumbnailProvider#getThumbnailUrl(java.lang.String)
+         */
+        public String getThumbnailUrl(String videoUrl) throws IOException {
+            String videoId = null;
+            try {
+                videoId = videoUrl.replace("https://", "").replace("http://", "");
+                videoId = videoId.substring(videoId.indexOf("/") + 1);
+                if (videoId.contains("?")) {
+                    videoId = videoId.substring(0, videoId.indexOf("?"));
+                }
+            } catch (Exception e) {
+                throw new NullPointerException("Error reading video ID for '" + videoUrl + "': " + e.getMessage());
+            }
+            //
+            // Read the video metadata from Vimeo
+            //
+            StringBuilder contentBuffer = new StringBuilder(1024);
+            BufferedReader in = null;
+            String inputLine = null;
+            try {
+                URLConnection connection = new URL(apiBase + videoId + ".json").openConnection();
+                connection.setConnectTimeout(timeout);
+                connection.setReadTimeout(timeout);
+                in = new BufferedReader(new InputStreamReader(connection.getInputStream(), "UTF-8"));
+                while ((inputLine = in.readLine()) != null) {
+                    contentBuffer.append(inputLine);
+                }
+            } catch (Exception e) {
+                throw new IOException("Error reading video metadata: " + e.getMessage());
+            } finally {
+                if (in != null) {
+                    try { in.close(); } catch (Exception e) {}
+                }
+            }
+            // Get thumbnail image
+            try {
+                return (String)new JSONArray(contentBuffer.toString()).getJSONObject(0).get("thumbnail_medium");
+            } catch (Exception e) {
+                throw new IOException("Error resolving thumbnail image: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -262,9 +262,10 @@ public class SearchFilterSets {
                                 String filterText = filter.getTerm();
 
                                 // Try to fetch a better (and localized) text for the filter
-                                try {
-                                    filterText = labels.getString( filterSet.labelKeyFor(filter) );
-                                } catch (Exception skip) {}
+                                String labelKey = filterSet.labelKeyFor(filter);
+                                if (labels != null && labels.containsKey(labelKey)) {
+                                    filterText = labels.getString(labelKey);
+                                }
 
                                 // The filter
                                 s += "<li><a href=\"" + cms.link(cms.getRequestContext().getUri() + "?" + CmsStringUtil.escapeHtml(filter.getUrlPartParameters())) + "\""